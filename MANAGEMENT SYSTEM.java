@@ -28,20 +28,24 @@ interface RecordActions {
 class Student extends Person {
     int rollNo;
     String course;
-    double marks;
-    char grade;
+    int hundredths; // marks * 100, so 85.5 is held exactly as 8550
+    byte grade;     // ASCII letter
 
     public Student(int rollNo, String name, String email, String course, double marks) {
         super(name, email);
         this.rollNo = rollNo;
         this.course = course;
-        this.marks = marks;
+        this.hundredths = (int) Math.round(marks * 100);
         calculateGrade();
     }
 
+    double marks() { return hundredths / 100.0; }
+
+    char grade() { return (char) grade; }
+
     // Method Overloading -> Update Marks
     public void update(double marks) {
-        this.marks = marks;
+        this.hundredths = (int) Math.round(marks * 100);
         calculateGrade();
     }
 
@@ -50,17 +54,21 @@ class Student extends Person {
         this.email = email;
     }
 
+    // Grades indexed by whole marks, filled once from the cut-offs
+    static final int[] CUTOFFS = {90, 75, 60, 45};
+    static final char[] LETTERS = {'A', 'B', 'C', 'D', 'F'};
+    static final char[] GRADE_TABLE = new char[101];
+
+    static {
+        for (int m = 0; m <= 100; m++) {
+            int i = 0;
+            while (i < CUTOFFS.length && m < CUTOFFS[i]) i++;
+            GRADE_TABLE[m] = LETTERS[i];
+        }
+    }
+
     void calculateGrade() {
-        if (marks >= 90)
-            grade = 'A';
-        else if (marks >= 75)
-            grade = 'B';
-        else if (marks >= 60)
-            grade = 'C';
-        else if (marks >= 45)
-            grade = 'D';
-        else
-            grade = 'F';
+        grade = (byte) GRADE_TABLE[Math.max(0, Math.min(10000, hundredths)) / 100];
     }
 
     // Method overriding
@@ -70,8 +78,8 @@ class Student extends Person {
                 ", Name: " + name +
                 ", Email: " + email +
                 ", Course: " + course +
-                ", Marks: " + marks +
-                ", Grade: " + grade);
+                ", Marks: " + marks() +
+                ", Grade: " + grade());
     }
 }
 
@@ -41,28 +41,40 @@ interface RecordActions {
 class Student extends Person {
     int rollNo;
     String course;
-    double marks; // primitive, but we'll use Double wrapper where helpful
-    char grade;
+    int hundredths; // marks * 100, exact for two decimals; no wrapper anywhere
+    byte grade;     // ASCII letter
 
     public Student(int rollNo, String name, String email, String course, double marks) {
         super(name, email);
         this.rollNo = rollNo;
         this.course = course;
-        this.marks = marks;
+        this.hundredths = (int) Math.round(marks * 100);
         calculateGrade();
     }
 
+    double marks() { return hundredths / 100.0; }
+
+    char grade() { return (char) grade; }
+
+    // grade for every whole mark 0-100, built once from the cut-offs
+    static final int[] CUTOFFS = {90, 75, 60, 45};
+    static final char[] LETTERS = {'A', 'B', 'C', 'D', 'F'};
+    private static final char[] GRADE_TABLE = new char[101];
+    static {
+        for (int m = 0; m <= 100; m++) {
+            int i = 0;
+            while (i < CUTOFFS.length && m < CUTOFFS[i]) i++;
+            GRADE_TABLE[m] = LETTERS[i];
+        }
+    }
+
     public void calculateGrade() {
-        if (marks >= 90) grade = 'A';
-        else if (marks >= 75) grade = 'B';
-        else if (marks >= 60) grade = 'C';
-        else if (marks >= 45) grade = 'D';
-        else grade = 'F';
+        grade = (byte) GRADE_TABLE[Math.max(0, Math.min(10000, hundredths)) / 100];
     }
 
     // Overloaded update methods (method overloading)
     public void update(double newMarks) {
-        this.marks = newMarks;
+        this.hundredths = (int) Math.round(newMarks * 100);
         calculateGrade();
     }
 
@@ -76,12 +88,12 @@ class Student extends Person {
                 ", Name: " + name +
                 ", Email: " + email +
                 ", Course: " + course +
-                ", Marks: " + marks +
-                ", Grade: " + grade);
+                ", Marks: " + marks() +
+                ", Grade: " + grade());
     }
 
     public String toFileString() {
-        return rollNo + "|" + name + "|" + email + "|" + course + "|" + marks;
+        return rollNo + "|" + name + "|" + email + "|" + course + "|" + marks();
     }
 
     public static Student fromFileString(String line) {
@@ -134,11 +146,9 @@ class StudentManager implements RecordActions {
         return false;
     }
 
-    // Validate marks using wrapper Double to show boxing/unboxing
-    private void validateMarks(Double marksWrapper) throws InvalidMarksException {
-        if (marksWrapper == null) throw new InvalidMarksException("Marks is null");
-        double marks = marksWrapper.doubleValue(); // unboxing
-        if (marks < 0 || marks > 100)
+    // Validate marks before they are stored (NaN fails both comparisons, so test the range positively)
+    private void validateMarks(double marks) throws InvalidMarksException {
+        if (!(marks >= 0 && marks <= 100))
             throw new InvalidMarksException("Marks out of range (0-100): " + marks);
     }
 
@@ -151,14 +161,13 @@ class StudentManager implements RecordActions {
             System.out.println("Roll No cannot be empty.");
             return;
         }
-        Integer rollWrapper;
+        int rollNo;
         try {
-            rollWrapper = Integer.valueOf(rollInput);
+            rollNo = Integer.parseInt(rollInput);
         } catch (NumberFormatException e) {
             System.out.println("Invalid roll number format.");
             return;
         }
-        int rollNo = rollWrapper;
 
         if (isDuplicate(rollNo)) {
             System.out.println("Error: Duplicate roll number. Add aborted.");
@@ -188,15 +197,15 @@ class StudentManager implements RecordActions {
 
         System.out.print("Enter Marks (0-100): ");
         String marksStr = sc.nextLine().trim();
-        Double marksWrapper;
+        double marks;
         try {
-            marksWrapper = Double.valueOf(marksStr); // wrapper
+            marks = Double.parseDouble(marksStr);
         } catch (NumberFormatException e) {
             System.out.println("Invalid marks format.");
             return;
         }
 
-        validateMarks(marksWrapper);
+        validateMarks(marks);
 
         // simulate loading with thread
         Loader loader = new Loader("Adding student");
@@ -208,7 +217,7 @@ class StudentManager implements RecordActions {
         } catch (InterruptedException ignored) {}
 
         // Ensure insertion is atomic and visible
-        students[count++] = new Student(rollNo, name, email, course, marksWrapper);
+        students[count++] = new Student(rollNo, name, email, course, marks);
 
         loader.stop();
         try { loaderThread.join(); } catch (InterruptedException ignored) {}
@@ -240,12 +249,12 @@ class StudentManager implements RecordActions {
                 if (opt.equals("1")) {
                     System.out.print("Enter new marks: ");
                     String mstr = sc.nextLine().trim();
-                    Double marksWrapper;
-                    try { marksWrapper = Double.valueOf(mstr); }
+                    double marks;
+                    try { marks = Double.parseDouble(mstr); }
                     catch (NumberFormatException e) { System.out.println("Invalid marks format."); return; }
 
-                    validateMarks(marksWrapper);
-                    students[i].update(marksWrapper); // autounboxing
+                    validateMarks(marks);
+                    students[i].update(marks);
                     System.out.println("Marks updated.");
                     return;
                 } else if (opt.equals("2")) {
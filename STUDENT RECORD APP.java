@@ -1,5 +1,40 @@
+import com.sun.net.httpserver.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.*;
+import java.util.zip.*;
+import javax.management.*;
+import jdk.jfr.*;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 // --------------------- Custom Exceptions ---------------------
 class InvalidMarksException extends Exception {
@@ -10,10 +45,22 @@ class StudentNotFoundException extends Exception {
     public StudentNotFoundException(String msg) { super(msg); }
 }
 
+class TransactionConflictException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public TransactionConflictException(String msg) { super(msg); }
+}
+
+class InvalidQueryException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidQueryException(String msg) { super(msg); }
+}
+
 // --------------------- Abstract Person ---------------------
 abstract class Person {
-    protected String name;
-    protected String email;
+    protected final String name;
+    protected final String email;
 
     Person(String name, String email) {
         this.name = name;
@@ -28,290 +75,8213 @@ interface RecordActions {
     void addStudent(Scanner sc) throws InvalidMarksException;
     void updateStudent(Scanner sc, int rollNo) throws StudentNotFoundException, InvalidMarksException;
     void deleteStudent(int rollNo) throws StudentNotFoundException;
+    // non-interactive variants (no prompts, no console output) used by the server front-ends
+    boolean addStudent(Student s) throws InvalidMarksException;
+    Student updateMarks(int rollNo, double marks) throws StudentNotFoundException, InvalidMarksException;
+    Student updateEmail(int rollNo, String email) throws StudentNotFoundException;
+    Student removeStudent(int rollNo) throws StudentNotFoundException;
     Student searchStudent(int rollNo) throws StudentNotFoundException;
+    boolean contains(int rollNo);
     List<Student> getAllStudents();
     void loadFromFile(String filename) throws IOException;
     void saveToFile(String filename) throws IOException;
     void randomRead(String filename) throws IOException;
+    Student readRecord(String filename, int rollNo) throws IOException, StudentNotFoundException;
+    List<Student> getStudentsSortedByMarks();
+    List<Student> getStudentsSorted(Comparator<? super Student> order);
+    List<Student> topK(int k, Comparator<? super Student> order);
+    Map<String, List<Student>> topKPerCourse(int k);
+    int regrade(GradingPolicy policy);
+    // multi-record changes: build a Transaction, then commit it atomically (see Transaction)
+    Transaction beginTransaction();
+    int commit(Transaction tx) throws TransactionConflictException;
+    int moveCourse(String from, String to) throws TransactionConflictException;
+    int curveCourse(String course, double points) throws TransactionConflictException;
+    // streamed on demand instead of returned as a list; course null for everyone
+    StudentPublisher publishStudents(String course, boolean sortedByMarks);
+    // filter DSL, e.g. course = "CS" AND marks BETWEEN 60 AND 75 ORDER BY marks DESC LIMIT 50 (see StudentQuery)
+    List<Student> query(String expression) throws InvalidQueryException;
+    int size();
+    long estimatedHeapBytes();
 }
 
 // --------------------- Student class ---------------------
+// immutable: a published Student may be shared by any number of roster versions (snapshots, pinned
+// readers), so a change is always a new instance from one of the with* methods, swapped in by the manager
 class Student extends Person {
-    int rollNo;
-    String course;
-    double marks;
-    char grade;
+    final int rollNo;
+    final String course;
+    final int hundredths; // marks * 100: every mark is kept to two decimals, so compares and sorts are exact ints
+    final byte grade;     // the letter as ASCII, read through grade()
+
+    public Student(int rollNo, String name, String email, String course, double marks) {
+        this(rollNo, name, email, course, toHundredths(marks));
+    }
+
+    private Student(int rollNo, String name, String email, String course, int hundredths) {
+        this(rollNo, name, email, course, hundredths, GradingPolicy.current().gradeOfHundredths(course, hundredths));
+    }
+
+    private Student(int rollNo, String name, String email, String course, int hundredths, char grade) {
+        super(name, email);
+        this.rollNo = rollNo;
+        this.course = course;
+        this.hundredths = hundredths;
+        this.grade = (byte) grade;
+    }
+
+    // for parsers that already hold the marks in hundredths
+    static Student ofHundredths(int rollNo, String name, String email, String course, int hundredths) {
+        return new Student(rollNo, name, email, course, hundredths);
+    }
+
+    double marks() { return hundredths / 100.0; }
+
+    char grade() { return (char) grade; }
+
+    // nearest hundredth; NaN and huge values land outside 0..10000 so validation still turns them away
+    static int toHundredths(double marks) {
+        if (marks != marks) return Integer.MIN_VALUE;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(marks * 100)));
+    }
+
+    // marks text to hundredths without a double or a substring: digits with at most two decimals are
+    // read in place, anything else (sign, exponent, more decimals, blanks) goes through Double.parseDouble
+    static int parseHundredths(String s, int from, int to) {
+        int h = 0, digits = 0, decimals = -1;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9' && decimals < 2 && digits < 8) {
+                h = h * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0) decimals++;
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return toHundredths(Double.parseDouble(s.substring(from, to)));
+            }
+        }
+        if (digits == 0) throw new NumberFormatException("Not a number: \"" + s.substring(from, to) + "\"");
+        return decimals == 2 ? h : decimals == 1 ? h * 10 : h * 100;
+    }
+
+    // re-graded under the current policy
+    Student withMarks(double newMarks) { return new Student(rollNo, name, email, course, toHundredths(newMarks)); }
+
+    Student withEmail(String newEmail) { return new Student(rollNo, name, newEmail, course, hundredths, grade()); }
+
+    // re-graded as well, since the policy may have its own scale for the new course
+    Student withCourse(String newCourse) { return new Student(rollNo, name, email, newCourse, hundredths); }
+
+    Student withGrade(char newGrade) { return new Student(rollNo, name, email, course, hundredths, newGrade); }
+
+    // same record contents, whichever instance holds them (disk-resident reads may return fresh copies)
+    boolean sameState(Student o) {
+        return rollNo == o.rollNo && hundredths == o.hundredths && grade == o.grade
+                && name.equals(o.name) && email.equals(o.email) && course.equals(o.course);
+    }
+
+    @Override
+    void displayDetails() {
+        System.out.printf("Roll: %d | Name: %s | Email: %s | Course: %s | Marks: %.2f | Grade: %c%n",
+                rollNo, name, email, course, marks(), grade());
+    }
+
+    // rough heap footprint: Student object (40) + 3 Strings (40 + chars each)
+    long estimatedBytes() {
+        return 40 + 3 * 40 + name.length() + email.length() + course.length();
+    }
+
+    public String toFileString() {
+        // CSV safe: escape commas by replacing with space (simple approach)
+        return rollNo + "," + name.replace(",", " ") + "," + email.replace(",", " ") + "," + course.replace(",", " ") + "," + marks();
+    }
+
+    public static Student fromFileString(String line) {
+        String[] p = line.split(",", 5);
+        int r = Integer.parseInt(p[0]);
+        String n = p[1];
+        String e = p[2];
+        String c = p[3];
+        return new Student(r, n, e, c, parseHundredths(p[4], 0, p[4].length()));
+    }
+}
+
+// --------------------- Student views (flyweight cursor for full passes) ---------------------
+// a full pass over a large roster need not touch a Student per row: StudentManager.forEachView re-points
+// one mutable view at each record in turn, a heap Student as it is or a disk-resident line straight out of
+// the read buffer. Roll, marks and grade are primitives; display and export copy the text fields from
+// wherever they already are. A view is only good inside the visit that got it; toStudent() keeps one
+final class StudentView {
+    interface Visitor {
+        void visit(StudentView v) throws IOException;
+    }
+
+    private static final char DECIMAL_POINT =
+            java.text.DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getDecimalSeparator();
+
+    private Student student;   // the record viewed, or null for a stored line
+    private byte[] line;       // UTF-8 without terminator; fields end at the commas c1..c4
+    private int c1, c2, c3, c4, lineLen;
+    private int rollNo, hundredths;
+    private byte grade;        // a line's grade is 0 until asked for
+
+    private byte[] out = new byte[256];
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer wrapped; // over line, wrapped again only when the reader grows its buffer
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    StudentView of(Student s) {
+        student = s;
+        line = null;
+        rollNo = s.rollNo;
+        hundredths = s.hundredths;
+        grade = s.grade;
+        return this;
+    }
+
+    // a toFileString() line; false where Student.fromFileString would throw
+    boolean ofLine(byte[] bytes, int len) {
+        student = null;
+        line = bytes;
+        lineLen = len;
+        grade = 0;
+        c1 = comma(0);
+        c2 = c1 < 0 ? -1 : comma(c1 + 1);
+        c3 = c2 < 0 ? -1 : comma(c2 + 1);
+        c4 = c3 < 0 ? -1 : comma(c3 + 1);
+        if (c4 < 0) return false;
+        try {
+            rollNo = parseRoll(0, c1);
+            hundredths = parseHundredths(c4 + 1, len);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private int comma(int from) {
+        for (int i = from; i < lineLen; i++) if (line[i] == ',') return i;
+        return -1;
+    }
+
+    int rollNo() { return rollNo; }
+    int hundredths() { return hundredths; }
+    double marks() { return hundredths / 100.0; }
+
+    // a line is graded on first use; per-course rules need its course decoded
+    char grade() {
+        if (grade == 0) {
+            GradingPolicy policy = GradingPolicy.current();
+            grade = (byte) policy.gradeOfHundredths(policy.hasCourseRules() ? course() : null, hundredths);
+        }
+        return (char) grade;
+    }
+
+    // these three build a String for a stored line; display and export below do not
+    String name() { return student != null ? student.name : decode(c1 + 1, c2); }
+    String email() { return student != null ? student.email : decode(c2 + 1, c3); }
+    String course() { return student != null ? student.course : decode(c3 + 1, c4); }
+
+    Student toStudent() {
+        return student != null ? student : Student.ofHundredths(rollNo, name(), email(), course(), hundredths);
+    }
+
+    // the record as toFileString() has it, UTF-8 encoded, without a line terminator; returns the byte count
+    int writeLine(OutputStream os) throws IOException {
+        int n = putInt(0, rollNo);
+        if (student != null) {
+            n = putText(n, student.name);
+            n = putText(n, student.email);
+            n = putText(n, student.course);
+        } else {
+            ensure(n + c4 - c1);
+            System.arraycopy(line, c1, out, n, c4 - c1);
+            n += c4 - c1;
+        }
+        ensure(n + 8);
+        out[n++] = ',';
+        n = putMarks(n);
+        os.write(out, 0, n);
+        return n;
+    }
+
+    // the line displayDetails() prints, line separator included
+    StringBuilder appendDetails(StringBuilder sb) {
+        sb.append("Roll: ").append(rollNo).append(" | Name: ");
+        if (student != null) {
+            sb.append(student.name).append(" | Email: ").append(student.email).append(" | Course: ").append(student.course);
+        } else {
+            appendText(sb, c1 + 1, c2).append(" | Email: ");
+            appendText(sb, c2 + 1, c3).append(" | Course: ");
+            appendText(sb, c3 + 1, c4);
+        }
+        sb.append(" | Marks: ");
+        if (hundredths >= 0 && hundredths <= 10000) {
+            int frac = hundredths % 100;
+            sb.append(hundredths / 100).append(DECIMAL_POINT).append((char) ('0' + frac / 10)).append((char) ('0' + frac % 10));
+        } else {
+            sb.append(String.format("%.2f", marks()));
+        }
+        return sb.append(" | Grade: ").append(grade()).append(System.lineSeparator());
+    }
+
+    // ---- parsing and encoding in place ----
+
+    private int parseRoll(int from, int to) {
+        int i = from;
+        boolean negative = i < to && line[i] == '-';
+        if (negative) i++;
+        long v = 0;
+        if (i == to || to - i > 10) return Integer.parseInt(decode(from, to));
+        for (; i < to; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9) return Integer.parseInt(decode(from, to));
+            v = v * 10 + d;
+        }
+        v = negative ? -v : v;
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw new NumberFormatException("Roll out of range");
+        return (int) v;
+    }
+
+    // same rules as Student.parseHundredths, over bytes
+    private int parseHundredths(int from, int to) {
+        int h = 0, digits = 0, decimals = -1;
+        for (int i = from; i < to; i++) {
+            byte c = line[i];
+            if (c >= '0' && c <= '9' && decimals < 2 && digits < 8) {
+                h = h * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0) decimals++;
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return Student.toHundredths(Double.parseDouble(decode(from, to)));
+            }
+        }
+        if (digits == 0) throw new NumberFormatException("Not a number");
+        return decimals == 2 ? h : decimals == 1 ? h * 10 : h * 100;
+    }
+
+    private String decode(int from, int to) { return new String(line, from, to - from, StandardCharsets.UTF_8); }
+
+    // bytes from..to of the line as chars; ASCII is copied straight, anything else goes through the decoder
+    private StringBuilder appendText(StringBuilder sb, int from, int to) {
+        int i = from;
+        while (i < to && line[i] >= 0) sb.append((char) line[i++]);
+        if (i == to) return sb;
+        if (wrapped == null || wrapped.array() != line) wrapped = ByteBuffer.wrap(line);
+        if (chars.capacity() < to - i) chars = CharBuffer.allocate(Math.max(to - i, chars.capacity() * 2));
+        wrapped.limit(to).position(i);
+        chars.clear();
+        decoder.reset();
+        decoder.decode(wrapped, chars, true);
+        decoder.flush(chars);
+        return sb.append(chars.flip());
+    }
+
+    private int putInt(int n, int value) {
+        ensure(n + 11);
+        long v = value;
+        if (v < 0) {
+            out[n++] = '-';
+            v = -v;
+        }
+        int start = n;
+        do {
+            out[n++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        for (int a = start, b = n - 1; a < b; a++, b--) {
+            byte t = out[a];
+            out[a] = out[b];
+            out[b] = t;
+        }
+        return n;
+    }
+
+    // ',' then s in UTF-8 with its commas turned into spaces, as toFileString does
+    private int putText(int n, String s) {
+        ensure(n + 1 + 3 * s.length());
+        out[n++] = ',';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) (c == ',' ? ' ' : c);
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | c >> 6);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                int cp = Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))
+                        ? Character.toCodePoint(c, s.charAt(++i)) : -1;
+                if (cp < 0) {
+                    out[n++] = '?';
+                    continue;
+                }
+                out[n++] = (byte) (0xF0 | cp >> 18);
+                out[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                out[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                out[n++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                out[n++] = (byte) (0xE0 | c >> 12);
+                out[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return n;
+    }
+
+    // marks as Double.toString writes them: 85.5, 85.55, 90.0
+    private int putMarks(int n) {
+        if (hundredths < 0 || hundredths > 10000) {
+            byte[] text = Double.toString(marks()).getBytes(StandardCharsets.US_ASCII);
+            ensure(n + text.length);
+            System.arraycopy(text, 0, out, n, text.length);
+            return n + text.length;
+        }
+        int frac = hundredths % 100;
+        n = putInt(n, hundredths / 100);
+        out[n++] = '.';
+        out[n++] = (byte) ('0' + frac / 10);
+        if (frac % 10 != 0) out[n++] = (byte) ('0' + frac % 10);
+        return n;
+    }
+
+    private void ensure(int capacity) {
+        if (capacity > out.length) out = Arrays.copyOf(out, Math.max(capacity, out.length * 2));
+    }
+}
+
+// --------------------- Grading policy (compiled grade scales) ---------------------
+// a scale is letter:minimum pairs; the lowest letter also covers anything under its minimum. It is
+// compiled into a 101-entry table on whole marks, so a grade is one clamped array read. Only a whole-mark
+// bucket with a fractional cut-off inside it (55.5 splits 55..56) is marked -1 and counted exactly
+final class GradeScale {
+    private final double[] cutoffs; // ascending, without the lowest letter's minimum
+    private final char[] grades;    // grades[i] = letter reached by passing i cut-offs
+    private final byte[] table;     // whole mark 0..100 -> grades index, or -1 for a split bucket
+    private final String spec;
+
+    private GradeScale(double[] cutoffs, char[] grades, String spec) {
+        this.cutoffs = cutoffs;
+        this.grades = grades;
+        this.spec = spec;
+        this.table = new byte[101];
+        for (int m = 0; m <= 100; m++) {
+            int level = 0;
+            boolean split = false;
+            for (double cut : cutoffs) {
+                if (cut <= m) level++;
+                else if (cut < m + 1) split = true;
+            }
+            table[m] = (byte) (split ? -1 : level);
+        }
+    }
+
+    static GradeScale parse(String spec) {
+        String[] parts = spec.split(",");
+        double[] mins = new double[parts.length];
+        char[] letters = new char[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].trim().split(":");
+            if (kv.length != 2 || kv[0].trim().length() != 1) throw new IllegalArgumentException("Expected letter:minimum, got: " + parts[i]);
+            letters[i] = Character.toUpperCase(kv[0].trim().charAt(0));
+            if (letters[i] < 'A' || letters[i] > 'Z') throw new IllegalArgumentException("Grade must be a letter: " + kv[0]);
+            mins[i] = Double.parseDouble(kv[1].trim());
+            if (!(mins[i] >= 0 && mins[i] <= 100)) throw new IllegalArgumentException("Minimum must be within 0-100: " + kv[1]);
+        }
+        // order entries by minimum, ascending
+        Integer[] order = new Integer[parts.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> mins[i]));
+        double[] cutoffs = new double[parts.length - 1];
+        char[] grades = new char[parts.length];
+        StringBuilder normal = new StringBuilder();
+        for (int j = 0; j < order.length; j++) {
+            int i = order[j];
+            if (j > 0 && mins[i] == mins[order[j - 1]]) throw new IllegalArgumentException("Duplicate minimum: " + mins[i]);
+            grades[j] = letters[i];
+            if (j > 0) cutoffs[j - 1] = mins[i];
+            String min = mins[i] == Math.rint(mins[i]) ? String.valueOf((long) mins[i]) : String.valueOf(mins[i]);
+            normal.insert(0, letters[i] + ":" + min + (j > 0 ? "," : ""));
+        }
+        return new GradeScale(cutoffs, grades, normal.toString());
+    }
+
+    char gradeOf(double marks) {
+        int level = table[Math.max(0, Math.min(100, (int) marks))];
+        return grades[level >= 0 ? level : countLevel(marks)];
+    }
+
+    // the same grade from marks in hundredths; h / 100.0 is the double a two-decimal mark parses to,
+    // so it meets a cut-off like 60.1 exactly where that mark would
+    char gradeOfHundredths(int h) {
+        int level = table[Math.max(0, Math.min(10000, h)) / 100];
+        return grades[level >= 0 ? level : countLevel(h / 100.0)];
+    }
+
+    private int countLevel(double marks) {
+        int level = 0;
+        for (double cut : cutoffs) level += marks >= cut ? 1 : 0;
+        return level;
+    }
+
+    char[] letters() { return grades.clone(); }
+
+    @Override
+    public String toString() { return spec; }
+}
+
+// default scale plus per-course overrides, one policy per term:
+//   -Dstudents.gradingPolicy="A:90,B:75,C:60,D:45,F:0; CS=A:85,B:70,C:55,D:40,F:0"
+// (-Dstudents.gradeScale alone still sets just the default). A new term installs a new policy through
+// regrade, which re-grades everyone under it
+final class GradingPolicy {
+    private static final int CHUNK = 1 << 16;
+    private static volatile GradingPolicy current = parse(System.getProperty("students.gradingPolicy",
+            System.getProperty("students.gradeScale", "A:90,B:75,C:60,D:45,F:0")));
+
+    private final GradeScale defaultScale;
+    private final Map<String, GradeScale> byCourse;
+
+    private GradingPolicy(GradeScale defaultScale, Map<String, GradeScale> byCourse) {
+        this.defaultScale = defaultScale;
+        this.byCourse = byCourse;
+    }
+
+    static GradingPolicy current() { return current; }
+
+    static void use(GradingPolicy policy) { current = policy; }
+
+    // "<default scale>; COURSE=<scale>; ..."
+    static GradingPolicy parse(String spec) {
+        GradeScale def = null;
+        Map<String, GradeScale> byCourse = new TreeMap<>();
+        for (String part : spec.split(";")) {
+            if (part.trim().isEmpty()) continue;
+            int eq = part.indexOf('=');
+            if (eq < 0) {
+                if (def != null) throw new IllegalArgumentException("More than one default scale in: " + spec);
+                def = GradeScale.parse(part);
+            } else {
+                byCourse.put(part.substring(0, eq).trim(), GradeScale.parse(part.substring(eq + 1)));
+            }
+        }
+        if (def == null) throw new IllegalArgumentException("Missing default scale in: " + spec);
+        return new GradingPolicy(def, byCourse);
+    }
+
+    boolean hasCourseRules() { return !byCourse.isEmpty(); }
+
+    GradeScale scaleFor(String course) {
+        if (byCourse.isEmpty() || course == null) return defaultScale;
+        return byCourse.getOrDefault(course, defaultScale);
+    }
+
+    char gradeOf(String course, double marks) { return scaleFor(course).gradeOf(marks); }
+
+    char gradeOfHundredths(String course, int hundredths) { return scaleFor(course).gradeOfHundredths(hundredths); }
+
+    // every letter any scale can give, alphabetical
+    char[] letters() {
+        TreeSet<Character> all = new TreeSet<>();
+        for (char g : defaultScale.letters()) all.add(g);
+        for (GradeScale s : byCourse.values()) for (char g : s.letters()) all.add(g);
+        char[] out = new char[all.size()];
+        int i = 0;
+        for (char g : all) out[i++] = g;
+        return out;
+    }
+
+    // bulk re-grade in parallel chunks; a student whose grade changes is replaced in the array by a
+    // re-graded copy, the original is left alone. Returns how many changed
+    int regrade(Student[] students) {
+        int n = students.length;
+        return IntStream.range(0, (n + CHUNK - 1) / CHUNK).parallel().map(c -> {
+            int changed = 0;
+            for (int i = c * CHUNK, end = Math.min(n, i + CHUNK); i < end; i++) {
+                char g = gradeOfHundredths(students[i].course, students[i].hundredths);
+                if (students[i].grade() != g) {
+                    students[i] = students[i].withGrade(g);
+                    changed++;
+                }
+            }
+            return changed;
+        }).sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(defaultScale.toString());
+        byCourse.forEach((course, scale) -> sb.append("; ").append(course).append('=').append(scale));
+        return sb.toString();
+    }
+}
+
+// --------------------- Loader (multithreaded UI effect) ---------------------
+class Loader implements Runnable {
+    private final String message;
+    private volatile boolean running = true;
+
+    Loader(String message) { this.message = message; }
+
+    public void stop() { running = false; }
+
+    @Override
+    public void run() {
+        System.out.print(message);
+        try {
+            int dots = 0;
+            while (running && dots < 10) {
+                System.out.print(".");
+                Thread.sleep(300);
+                dots++;
+            }
+        } catch (InterruptedException ignored) { }
+        System.out.println(" done.");
+    }
+}
+
+// --------------------- Metrics (enable with -Dstudents.metrics=true) ---------------------
+class LatencyHistogram {
+    // log-linear buckets: 8 sub-buckets per power of two, so any value is off by at most 12.5%
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int indexOf(long v) {
+        if (v < SUB_COUNT) return (int) Math.max(v, 0);
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_COUNT - 1);
+        return (msb - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int msb = index / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + index % SUB_COUNT) << (msb - SUB_BITS);
+    }
+
+    void record(long value) {
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        total.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long count() { return count.sum(); }
+    long total() { return total.sum(); }
+    long max() { return max.get(); }
+
+    long percentile(double p) {
+        long n = count();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(n * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return lowerBound(i);
+        }
+        return max();
+    }
+}
+
+final class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("students.metrics");
+
+    enum Op { addStudent, updateStudent, deleteStudent, searchStudent, getAllStudents, loadFromFile, saveToFile, randomRead, topK, scan, commit, query }
+
+    private static final LatencyHistogram[] LATENCY = new LatencyHistogram[Op.values().length];
+    private static final LongAdder[] FAILURES = new LongAdder[Op.values().length];
+    static {
+        for (int i = 0; i < LATENCY.length; i++) { LATENCY[i] = new LatencyHistogram(); FAILURES[i] = new LongAdder(); }
+    }
+    private static final LatencyHistogram LOCK_WAIT = new LatencyHistogram();
+    private static final LongAdder BYTES_LOADED = new LongAdder(), RECORDS_LOADED = new LongAdder(), RECORDS_REJECTED = new LongAdder();
+    private static final LongAdder BYTES_SAVED = new LongAdder(), RECORDS_SAVED = new LongAdder();
+
+    private static volatile RecordActions manager;
+
+    private Metrics() { }
+
+    static void register(RecordActions m) { manager = m; }
+
+    // returns 0 when disabled so callers pay only a static-final branch
+    static long start() { return ENABLED ? System.nanoTime() : 0L; }
+
+    static void record(Op op, long start) {
+        if (ENABLED) LATENCY[op.ordinal()].record(System.nanoTime() - start);
+    }
+
+    // for a caller that stops the clock before cleanup it does not want counted, see recordElapsed
+    static long elapsed(long start) { return ENABLED ? System.nanoTime() - start : 0L; }
+
+    static void recordElapsed(Op op, long nanos) {
+        if (ENABLED) LATENCY[op.ordinal()].record(nanos);
+    }
+
+    static void failed(Op op) {
+        if (ENABLED) FAILURES[op.ordinal()].increment();
+    }
+
+    static void lockWaited(long nanos) {
+        if (ENABLED) LOCK_WAIT.record(nanos);
+    }
+
+    static void loaded(long bytes, long records) {
+        if (ENABLED) { BYTES_LOADED.add(bytes); RECORDS_LOADED.add(records); }
+    }
+
+    static void rejected(long lines) {
+        if (ENABLED) RECORDS_REJECTED.add(lines);
+    }
+
+    static void saved(long bytes, long records) {
+        if (ENABLED) { BYTES_SAVED.add(bytes); RECORDS_SAVED.add(records); }
+    }
+
+    private static double perSecond(long amount, long nanos) {
+        return nanos == 0 ? 0.0 : amount * 1e9 / nanos;
+    }
+
+    // flat name -> value view, shared by the JMX bean and the text dump
+    static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            LatencyHistogram h = LATENCY[op.ordinal()];
+            m.put(op + ".count", h.count());
+            m.put(op + ".failures", FAILURES[op.ordinal()].sum());
+            m.put(op + ".p50Micros", h.percentile(50) / 1000);
+            m.put(op + ".p99Micros", h.percentile(99) / 1000);
+            m.put(op + ".maxMicros", h.max() / 1000);
+        }
+        m.put("lockWait.count", LOCK_WAIT.count());
+        m.put("lockWait.totalMicros", LOCK_WAIT.total() / 1000);
+        m.put("lockWait.p99Micros", LOCK_WAIT.percentile(99) / 1000);
+        long loadNanos = LATENCY[Op.loadFromFile.ordinal()].total();
+        long saveNanos = LATENCY[Op.saveToFile.ordinal()].total();
+        m.put("load.bytesPerSec", perSecond(BYTES_LOADED.sum(), loadNanos));
+        m.put("load.recordsPerSec", perSecond(RECORDS_LOADED.sum(), loadNanos));
+        m.put("load.rejected", RECORDS_REJECTED.sum());
+        m.put("save.bytesPerSec", perSecond(BYTES_SAVED.sum(), saveNanos));
+        m.put("save.recordsPerSec", perSecond(RECORDS_SAVED.sum(), saveNanos));
+        RecordActions sm = manager;
+        m.put("records", sm == null ? 0 : sm.size());
+        m.put("estimatedHeapBytes", sm == null ? 0L : sm.estimatedHeapBytes());
+        if (sm instanceof StudentManager) {
+            // zeros while in memory, so the attribute set does not change with the storage mode
+            long[] cache = ((StudentManager) sm).cacheCounters();
+            if (cache == null) cache = new long[3];
+            m.put("cache.hits", cache[0]);
+            m.put("cache.misses", cache[1]);
+            m.put("cache.evictions", cache[2]);
+        }
+        if (sm instanceof StudentManager) ((StudentManager) sm).addChangeStats(m);
+        if (sm instanceof ReplicationLeader) ((ReplicationLeader) sm).addStats(m);
+        else if (sm instanceof ReplicationFollower) ((ReplicationFollower) sm).addStats(m);
+        return m;
+    }
+
+    static String dump() {
+        StringBuilder sb = new StringBuilder("--- metrics @ ").append(new Date()).append(" ---").append(System.lineSeparator());
+        for (Map.Entry<String, Object> e : snapshot().entrySet())
+            sb.append(e.getKey()).append('=').append(e.getValue()).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    static void startIfEnabled(RecordActions m) {
+        if (!ENABLED) return;
+        register(m);
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new MetricsMBean(), new ObjectName("StudentRecordApp:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics MBean not registered: " + e.getMessage());
+        }
+        long seconds = Long.getLong("students.metrics.interval", 60);
+        Thread t = new Thread(new MetricsReporter(System.getProperty("students.metrics.file", "metrics.txt"), seconds), "metrics-reporter");
+        t.setDaemon(true);
+        t.start();
+    }
+}
+
+// read-only JMX view over Metrics.snapshot(). A snapshot walks the roster (estimatedHeapBytes), so a console
+// polling attribute by attribute is served from one snapshot for -Dstudents.metrics.jmxTtlMillis (default
+// 1000); the attribute list is fixed when the bean is registered
+class MetricsMBean implements DynamicMBean {
+    private static final long TTL_NANOS = Long.getLong("students.metrics.jmxTtlMillis", 1000) * 1_000_000;
+
+    private final MBeanInfo info;
+    private Map<String, Object> snap;
+    private long takenAt;
+
+    MetricsMBean() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (Map.Entry<String, Object> e : snapshot().entrySet())
+            attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+        info = new MBeanInfo(getClass().getName(), "Student record metrics",
+                attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private synchronized Map<String, Object> snapshot() {
+        long now = System.nanoTime();
+        if (snap == null || now - takenAt >= TTL_NANOS) {
+            snap = Metrics.snapshot();
+            takenAt = now;
+        }
+        return snap;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object v = snapshot().get(attribute);
+        if (v == null) throw new AttributeNotFoundException(attribute);
+        return v;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) if (values.containsKey(a)) list.add(new Attribute(a, values.get(a)));
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() { return info; }
+}
+
+class MetricsReporter implements Runnable {
+    private final String filename;
+    private final long intervalSeconds;
+
+    MetricsReporter(String filename, long intervalSeconds) {
+        this.filename = filename;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(intervalSeconds * 1000);
+                try (BufferedWriter bw = new BufferedWriter(new FileWriter(filename, true))) {
+                    bw.write(Metrics.dump());
+                } catch (IOException e) {
+                    System.err.println("Metrics dump failed: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException ignored) { }
+    }
+}
+
+// --------------------- JFR events (record with -XX:StartFlightRecording) ---------------------
+// the first Event subclass used brings up the JFR runtime (~0.4 s here), so events are only created once a
+// recorder exists: started with -XX:StartFlightRecording or later through jcmd JFR.start
+final class Jfr {
+    static boolean recording() { return FlightRecorder.isInitialized(); }
+}
+
+@Name("StudentRecordApp.StudentAdd")
+@Label("Student Add")
+@Category("Student Records")
+class StudentAddEvent extends jdk.jfr.Event {
+    @Label("Roll No") int rollNo;
+    @Label("Course") String course;
+}
+
+@Name("StudentRecordApp.StudentLookup")
+@Label("Student Lookup")
+@Category("Student Records")
+class StudentLookupEvent extends jdk.jfr.Event {
+    @Label("Roll No") int rollNo;
+    @Label("Found") boolean found;
+}
+
+@Name("StudentRecordApp.FileLoad")
+@Label("File Load")
+@Category("Student Records")
+class FileLoadEvent extends jdk.jfr.Event {
+    @Label("File") String file;
+    @Label("Records") int records;
+    @Label("Bytes") @DataAmount long bytes;
+}
+
+@Name("StudentRecordApp.FileSave")
+@Label("File Save")
+@Category("Student Records")
+class FileSaveEvent extends jdk.jfr.Event {
+    @Label("File") String file;
+    @Label("Records") int records;
+    @Label("Bytes") @DataAmount long bytes;
+}
+
+@Name("StudentRecordApp.LockContention")
+@Label("Manager Lock Contention")
+@Category("Student Records")
+@Description("Wait for the StudentManager monitor longer than -Dstudents.jfr.lockThresholdMicros (default 1000)")
+class LockContentionEvent extends jdk.jfr.Event {
+    static final EventType TYPE = EventType.getEventType(LockContentionEvent.class);
+    private static final long THRESHOLD_NANOS = Long.getLong("students.jfr.lockThresholdMicros", 1000) * 1000;
+
+    @Label("Operation") String operation;
+    @Label("Wait Time") @Timespan long waitTime;
+
+    static void emit(String operation, long waitNanos) {
+        if (waitNanos < THRESHOLD_NANOS || !TYPE.isEnabled()) return;
+        LockContentionEvent e = new LockContentionEvent();
+        e.operation = operation;
+        e.waitTime = waitNanos;
+        e.commit();
+    }
+}
+
+// --------------------- Buffered line reader over FileChannel ---------------------
+// one read() per bufferSize bytes (-Dstudents.readBuffer, default 64 KB) instead of one per byte as with
+// RandomAccessFile.readLine; lines are decoded as UTF-8 and carry their exact starting byte offset
+class ChannelLineReader implements Closeable {
+    static final int DEFAULT_BUFFER = Integer.getInteger("students.readBuffer", 64 * 1024);
+
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private byte[] line = new byte[256];
+    private int lineLen;
+    private long lineStart, nextStart;
+
+    ChannelLineReader(FileChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buf = ByteBuffer.allocate(bufferSize);
+        buf.flip();
+    }
+
+    static ChannelLineReader open(File f) throws IOException {
+        return open(f, DEFAULT_BUFFER);
+    }
+
+    static ChannelLineReader open(File f, int bufferSize) throws IOException {
+        return new ChannelLineReader(FileChannel.open(f.toPath(), StandardOpenOption.READ), bufferSize);
+    }
+
+    // next line without its terminator ("\n" or "\r\n"), or null at end of file
+    String readLine() throws IOException {
+        return nextLine() ? new String(line, 0, contentLength(), StandardCharsets.UTF_8) : null;
+    }
+
+    // as readLine, but the line is left undecoded in bytes()[0..contentLength()); false at end of file
+    boolean nextLine() throws IOException {
+        lineLen = 0;
+        lineStart = nextStart;
+        boolean any = false;
+        while (true) {
+            if (!buf.hasRemaining()) {
+                buf.clear();
+                int n = channel.read(buf);
+                buf.flip();
+                if (n < 0) {
+                    if (!any) return false;
+                    break;
+                }
+                continue;
+            }
+            any = true;
+            byte[] a = buf.array();
+            int from = buf.position(), limit = buf.limit(), i = from;
+            while (i < limit && a[i] != '\n') i++;
+            append(a, from, i - from);
+            nextStart += i - from;
+            if (i < limit) {
+                buf.position(i + 1);
+                nextStart++;
+                break;
+            }
+            buf.position(limit);
+        }
+        return true;
+    }
+
+    // the reader's line buffer; overwritten by the next call, and replaced when a longer line grows it
+    byte[] bytes() { return line; }
+
+    // length of the current line without its terminator
+    int contentLength() { return lineLen > 0 && line[lineLen - 1] == '\r' ? lineLen - 1 : lineLen; }
+
+    private void append(byte[] src, int from, int n) {
+        if (lineLen + n > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, lineLen + n));
+        System.arraycopy(src, from, line, lineLen, n);
+        lineLen += n;
+    }
+
+    // byte offset of the line last returned by readLine
+    long position() { return lineStart; }
+
+    // byte length of that line, excluding the '\n' but including a '\r' before it
+    int length() { return lineLen; }
+
+    @Override
+    public void close() throws IOException { channel.close(); }
+}
+
+// --------------------- Memory-mapped read-only scan (--report) ---------------------
+// flyweight cursor over a mapped students.txt: next() parses roll and marks in place, so a full pass
+// allocates no Student or String per row. Rows are reported as stored (duplicate rolls are not collapsed)
+// and lines that do not parse are skipped. Files beyond 2 GB are mapped in windows ending on a line break.
+class MappedRosterCursor implements Closeable {
+    private static final long WINDOW = Long.getLong("students.mapWindow", 1L << 30);
+    private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final FileChannel channel;
+    private final long fileSize, window;
+    private MappedByteBuffer map;
+    private long mapStart, nextMapStart;
+    private int pos, end;
+
+    private int rollNo;
+    private double marks;
+    private long offset;
+    private int courseStart, courseStop;
+
+    private MappedRosterCursor(FileChannel channel, long window) throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.window = window;
+    }
+
+    static MappedRosterCursor open(File f) throws IOException {
+        return open(f, WINDOW);
+    }
+
+    static MappedRosterCursor open(File f, long window) throws IOException {
+        return new MappedRosterCursor(FileChannel.open(f.toPath(), StandardOpenOption.READ), window);
+    }
+
+    int rollNo() { return rollNo; }
+    double marks() { return marks; }
+    // the course is only decoded when the grading policy has per-course rules
+    char grade() {
+        GradingPolicy policy = GradingPolicy.current();
+        return policy.gradeOf(policy.hasCourseRules() ? course() : null, marks);
+    }
+
+    String course() {
+        byte[] raw = new byte[courseStop - courseStart];
+        for (int i = 0; i < raw.length; i++) raw[i] = map.get(courseStart + i);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+    long offset() { return offset; }
+
+    boolean next() throws IOException {
+        while (true) {
+            if (pos >= end && !remap()) return false;
+            int start = pos, stop = start;
+            while (stop < end && map.get(stop) != '\n') stop++;
+            pos = stop + 1;
+            if (parse(start, stop)) {
+                offset = mapStart + start;
+                return true;
+            }
+        }
+    }
+
+    private boolean remap() throws IOException {
+        if (nextMapStart >= fileSize) return false;
+        long size = Math.min(window, fileSize - nextMapStart);
+        map = channel.map(FileChannel.MapMode.READ_ONLY, nextMapStart, size);
+        mapStart = nextMapStart;
+        end = (int) size;
+        if (mapStart + size < fileSize) {
+            while (end > 0 && map.get(end - 1) != '\n') end--;
+            if (end == 0) throw new IOException("Line at offset " + mapStart + " is longer than the map window");
+        }
+        nextMapStart += end;
+        pos = 0;
+        return true;
+    }
+
+    // roll is the first field and marks the fifth, as written by Student.toFileString
+    private boolean parse(int start, int stop) {
+        if (stop > start && map.get(stop - 1) == '\r') stop--;
+        int i = start;
+        boolean negative = i < stop && map.get(i) == '-';
+        if (negative) i++;
+        long roll = 0;
+        int digits = 0;
+        for (; i < stop && map.get(i) != ','; i++, digits++) {
+            byte b = map.get(i);
+            if (b < '0' || b > '9' || digits > 10) return false;
+            roll = roll * 10 + (b - '0');
+        }
+        if (digits == 0 || i == stop) return false;
+        roll = negative ? -roll : roll;
+        if (roll < Integer.MIN_VALUE || roll > Integer.MAX_VALUE) return false;
+        for (int commas = 1; commas < 4; commas++) {
+            i++;
+            if (commas == 3) courseStart = i;
+            while (i < stop && map.get(i) != ',') i++;
+            if (i >= stop) return false;
+        }
+        courseStop = i;
+        rollNo = (int) roll;
+        return parseMarks(i + 1, stop);
+    }
+
+    // plain "ddd.ddd" is decoded exactly without allocating; anything else goes through Double.parseDouble
+    private boolean parseMarks(int start, int stop) {
+        long mantissa = 0;
+        int digits = 0, scale = 0;
+        boolean dot = false, plain = start < stop;
+        for (int i = start; i < stop && plain; i++) {
+            byte b = map.get(i);
+            if (b == '.' && !dot) dot = true;
+            else if (b >= '0' && b <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (dot) scale++;
+            } else plain = false;
+        }
+        if (plain && digits > 0) {
+            marks = mantissa / POW10[scale];
+            return true;
+        }
+        byte[] raw = new byte[stop - start];
+        for (int i = 0; i < raw.length; i++) raw[i] = map.get(start + i);
+        try {
+            marks = Double.parseDouble(new String(raw, StandardCharsets.UTF_8));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException { channel.close(); }
+}
+
+// --------------------- Block-compressed snapshots (*.snap) ---------------------
+// layout: MAGIC | deflated blocks | block table | long tableOffset | MAGIC
+// each block holds ~64 KB of toFileString() lines sorted by roll, and the table keeps every block's
+// offset, sizes and roll range, so a point lookup inflates one block and a full load inflates in parallel
+final class CompressedSnapshot {
+    static final String SUFFIX = ".snap";
+    private static final int MAGIC = 0x53525A31; // "SRZ1"
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private final long[] offsets;
+    private final int[] compressedLengths, rawLengths, firstRolls, lastRolls;
+
+    private CompressedSnapshot(int blocks) {
+        offsets = new long[blocks];
+        compressedLengths = new int[blocks];
+        rawLengths = new int[blocks];
+        firstRolls = new int[blocks];
+        lastRolls = new int[blocks];
+    }
+
+    static boolean isSnapshot(String filename) { return filename.endsWith(SUFFIX); }
+
+    // students must already be sorted by roll number
+    static void write(File f, List<Student> students) throws IOException {
+        List<long[]> table = new ArrayList<>(); // offset, compressed, raw, firstRoll, lastRoll
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ch, ByteBuffer.allocate(4).putInt(0, MAGIC));
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+            byte[] out = new byte[BLOCK_BYTES + 1024];
+            int first = 0;
+            for (int i = 0; i < students.size(); i++) {
+                Student s = students.get(i);
+                if (raw.size() == 0) first = s.rollNo;
+                raw.write(s.toFileString().getBytes(StandardCharsets.UTF_8));
+                raw.write('\n');
+                if (raw.size() >= BLOCK_BYTES || i == students.size() - 1) {
+                    deflater.reset();
+                    deflater.setInput(raw.toByteArray());
+                    deflater.finish();
+                    ByteArrayOutputStream block = new ByteArrayOutputStream();
+                    while (!deflater.finished()) block.write(out, 0, deflater.deflate(out));
+                    table.add(new long[] {ch.position(), block.size(), raw.size(), first, s.rollNo});
+                    writeFully(ch, ByteBuffer.wrap(block.toByteArray()));
+                    raw.reset();
+                }
+            }
+            long tableOffset = ch.position();
+            ByteBuffer footer = ByteBuffer.allocate(4 + table.size() * 24 + 12);
+            footer.putInt(table.size());
+            for (long[] b : table) footer.putLong(b[0]).putInt((int) b[1]).putInt((int) b[2]).putInt((int) b[3]).putInt((int) b[4]);
+            footer.putLong(tableOffset).putInt(MAGIC).flip();
+            writeFully(ch, footer);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (ch.read(b, position + b.position()) < 0) throw new EOFException("Truncated snapshot");
+        }
+        b.flip();
+    }
+
+    private static CompressedSnapshot readTable(FileChannel ch) throws IOException {
+        long size = ch.size();
+        if (size == 0) return new CompressedSnapshot(0);
+        ByteBuffer tail = ByteBuffer.allocate(12);
+        readFully(ch, tail, size - 12);
+        long tableOffset = tail.getLong();
+        if (tail.getInt() != MAGIC) throw new IOException("Not a student snapshot");
+        ByteBuffer table = ByteBuffer.allocate((int) (size - 12 - tableOffset));
+        readFully(ch, table, tableOffset);
+        CompressedSnapshot snap = new CompressedSnapshot(table.getInt());
+        for (int i = 0; i < snap.offsets.length; i++) {
+            snap.offsets[i] = table.getLong();
+            snap.compressedLengths[i] = table.getInt();
+            snap.rawLengths[i] = table.getInt();
+            snap.firstRolls[i] = table.getInt();
+            snap.lastRolls[i] = table.getInt();
+        }
+        return snap;
+    }
+
+    private List<Student> readBlock(FileChannel ch, int i) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLengths[i]);
+        readFully(ch, compressed, offsets[i]);
+        byte[] raw = new byte[rawLengths[i]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) n += inflater.inflate(raw, n, raw.length - n);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt snapshot block " + i, e);
+        } finally {
+            inflater.end();
+        }
+        List<Student> students = new ArrayList<>();
+        int start = 0;
+        for (int j = 0; j < raw.length; j++) {
+            if (raw[j] != '\n') continue;
+            students.add(Student.fromFileString(new String(raw, start, j - start, StandardCharsets.UTF_8)));
+            start = j + 1;
+        }
+        return students;
+    }
+
+    // all records in roll order; blocks are inflated on the common fork-join pool
+    static List<Student> readAll(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            CompressedSnapshot snap = readTable(ch);
+            List<List<Student>> blocks = IntStream.range(0, snap.offsets.length).parallel().mapToObj(i -> {
+                try { return snap.readBlock(ch, i); }
+                catch (IOException e) { throw new UncheckedIOException(e); }
+            }).collect(Collectors.toList());
+            List<Student> all = new ArrayList<>();
+            for (List<Student> b : blocks) all.addAll(b);
+            return all;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // inflates only the block whose roll range covers rollNo
+    static Student read(File f, int rollNo) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            CompressedSnapshot snap = readTable(ch);
+            int lo = 0, hi = snap.offsets.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (snap.lastRolls[mid] < rollNo) lo = mid + 1;
+                else if (snap.firstRolls[mid] > rollNo) hi = mid - 1;
+                else {
+                    for (Student s : snap.readBlock(ch, mid)) if (s.rollNo == rollNo) return s;
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    static void describe(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            CompressedSnapshot snap = readTable(ch);
+            for (int i = 0; i < snap.offsets.length; i++)
+                System.out.printf("pos=%d -> block %d: rolls %d..%d, %d -> %d bytes%n", snap.offsets[i], i,
+                        snap.firstRolls[i], snap.lastRolls[i], snap.rawLengths[i], snap.compressedLengths[i]);
+        }
+    }
+}
+
+// roll -> (byte offset, byte length) of each record, sorted by roll and persisted beside the data file
+// as <file>.idx by saveToFile, so a single record can be read with one positioned read. The file is an
+// image of the columns themselves (header, then rolls, lengths and offsets, little-endian), so load maps
+// it instead of reading it: opening costs the same at 10M records as at 10, and only the pages a binary
+// search actually touches are faulted in
+class RecordIndex {
+    private static final int MAGIC = 0x53524933; // "SRI3"
+    private static final int HEADER = 24;         // magic, data length, count, rejected lines, 4 spare
+
+    private final IntBuffer rolls;
+    private final LongBuffer offsets;
+    private final IntBuffer lengths;
+    private final int size;
+    final long dataLength; // size of the data file this index describes
+    final int rejected;    // lines of it the scan left out, kept so a mapped index still reports them
+
+    private RecordIndex(IntBuffer rolls, LongBuffer offsets, IntBuffer lengths, long dataLength, int rejected) {
+        this.rolls = rolls;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.size = rolls.limit();
+        this.dataLength = dataLength;
+        this.rejected = rejected;
+    }
+
+    static File sidecar(File data) { return new File(data.getPath() + ".idx"); }
+
+    // collects entries in file order; when a roll repeats the first record wins, as in loadFromFile
+    static class Builder {
+        private int[] rolls = new int[1024];
+        private long[] offsets = new long[1024];
+        private int[] lengths = new int[1024];
+        private int n;
+
+        void add(int roll, long offset, int length) {
+            if (n == rolls.length) {
+                rolls = Arrays.copyOf(rolls, n * 2);
+                offsets = Arrays.copyOf(offsets, n * 2);
+                lengths = Arrays.copyOf(lengths, n * 2);
+            }
+            rolls[n] = roll;
+            offsets[n] = offset;
+            lengths[n] = length;
+            n++;
+        }
+
+        RecordIndex build(long dataLength) {
+            // sort (roll, position) pairs as one primitive long; ties keep file order
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) keys[i] = ((long) rolls[i] << 32) | i;
+            Arrays.parallelSort(keys);
+            int[] r = new int[n];
+            long[] o = new long[n];
+            int[] l = new int[n];
+            int m = 0;
+            for (long key : keys) {
+                int i = (int) key;
+                if (m > 0 && r[m - 1] == rolls[i]) continue;
+                r[m] = rolls[i];
+                o[m] = offsets[i];
+                l[m] = lengths[i];
+                m++;
+            }
+            return new RecordIndex(IntBuffer.wrap(r, 0, m).slice(), LongBuffer.wrap(o, 0, m).slice(),
+                    IntBuffer.wrap(l, 0, m).slice(), dataLength, 0);
+        }
+    }
+
+    // one sequential pass over the data file, for files saved before the sidecar existed. Lines the import
+    // would reject, unreadable or repeating an earlier line's roll, are left out and go to rejects in line
+    // order, and their count goes in the index; listing them takes a second pass, made only when there are any
+    static RecordIndex scan(File data, ImportValidator.Rejects rejects) throws IOException {
+        Builder b = new Builder();
+        String[] why = new String[1];
+        int[] unreadable = {0};
+        DiskStudentStore.scan(data, (lineNo, offset, length, line) -> {
+            Student s = ImportValidator.parse(line, why);
+            if (s != null) b.add(s.rollNo, offset, length);
+            else unreadable[0]++;
+        });
+        RecordIndex idx = b.build(data.length());
+        if (unreadable[0] == 0 && idx.size() == b.n) return idx;
+        int before = rejects.count();
+        DiskStudentStore.forEachIndexed(data, idx, s -> { }, rejects);
+        return new RecordIndex(idx.rolls, idx.offsets, idx.lengths, idx.dataLength, rejects.count() - before);
+    }
+
+    // the persisted index when it is present and newer than the data, otherwise a fresh scan (its rejected
+    // lines reported to rejects), which is then saved so the next start can map it
+    static RecordIndex forFile(File data, ImportValidator.Rejects rejects) throws IOException {
+        RecordIndex idx = load(data);
+        if (idx != null) return idx;
+        idx = scan(data, rejects);
+        try { idx.write(data); } catch (IOException ignored) { } // read-only directory: scan again next time
+        return idx;
+    }
+
+    // maps the sidecar read-only; null when it is missing, stale, from the old row format or malformed
+    static RecordIndex load(File data) {
+        File f = sidecar(data);
+        if (!f.exists() || f.lastModified() < data.lastModified()) return null;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            if (fileSize < HEADER || fileSize > Integer.MAX_VALUE) return null;
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt(0) != MAGIC) return null;
+            long dataLength = map.getLong(4);
+            int n = map.getInt(12);
+            int rejected = map.getInt(16);
+            if (dataLength != data.length() || n < 0 || rejected < 0 || fileSize != HEADER + 16L * n) return null;
+            return new RecordIndex(map.slice(HEADER, 4 * n).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                    map.slice(HEADER + 8 * n, 8 * n).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer(),
+                    map.slice(HEADER + 4 * n, 4 * n).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(), dataLength, rejected);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // written beside and moved over the old sidecar, which may still be mapped by an open store
+    void write(File data) throws IOException {
+        File target = sidecar(data), tmp = new File(target.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putLong(dataLength).putInt(size).putInt(rejected).putInt(0);
+            for (int i = 0; i < size; i++) buf = drain(ch, buf, 4).putInt(rolls.get(i));
+            for (int i = 0; i < size; i++) buf = drain(ch, buf, 4).putInt(lengths.get(i));
+            for (int i = 0; i < size; i++) buf = drain(ch, buf, 8).putLong(offsets.get(i));
+            drain(ch, buf, buf.capacity());
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // writes buf out once fewer than room bytes are left in it
+    private static ByteBuffer drain(FileChannel ch, ByteBuffer buf, int room) throws IOException {
+        if (buf.remaining() >= room) return buf;
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        return buf.clear();
+    }
+
+    int size() { return size; }
+
+    boolean contains(int rollNo) { return find(rollNo) >= 0; }
+
+    long offsetOf(int rollNo) {
+        int i = find(rollNo);
+        return i < 0 ? -1 : offsets.get(i);
+    }
+
+    private int find(int rollNo) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1, r = rolls.get(mid);
+            if (r < rollNo) lo = mid + 1;
+            else if (r > rollNo) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    // one positioned read of exactly the record's bytes; null when the roll is not indexed
+    Student read(FileChannel channel, int rollNo) throws IOException {
+        int i = find(rollNo);
+        if (i < 0) return null;
+        int len = lengths.get(i);
+        long offset = offsets.get(i);
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) throw new EOFException("Index points past end of data file");
+        }
+        if (len > 0 && buf.get(len - 1) == '\r') len--;
+        return Student.fromFileString(new String(buf.array(), 0, len, StandardCharsets.UTF_8));
+    }
+}
+
+// --------------------- Disk-resident store with a bounded hot set ---------------------
+interface StudentVisitor {
+    void visit(Student s) throws IOException;
+}
+
+// LRU hot set bounded by the estimated heap bytes of the cached students
+class StudentCache {
+    private final long budgetBytes;
+    private final LinkedHashMap<Integer, Student> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes, hits, misses, evictions;
+
+    StudentCache(long budgetBytes) { this.budgetBytes = budgetBytes; }
+
+    synchronized Student get(int rollNo) {
+        Student s = map.get(rollNo);
+        if (s == null) misses++;
+        else hits++;
+        return s;
+    }
+
+    synchronized void put(Student s) {
+        Student old = map.put(s.rollNo, s);
+        if (old != null) usedBytes -= old.estimatedBytes();
+        usedBytes += s.estimatedBytes();
+        Iterator<Student> eldest = map.values().iterator();
+        while (usedBytes > budgetBytes && eldest.hasNext()) {
+            usedBytes -= eldest.next().estimatedBytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void invalidate(int rollNo) {
+        Student old = map.remove(rollNo);
+        if (old != null) usedBytes -= old.estimatedBytes();
+    }
+
+    synchronized void clear() {
+        map.clear();
+        usedBytes = 0;
+    }
+
+    synchronized long usedBytes() { return usedBytes; }
+    synchronized long hits() { return hits; }
+    synchronized long misses() { return misses; }
+    synchronized long evictions() { return evictions; }
+
+    synchronized String stats() {
+        return String.format("cache: %d entries, %d/%d bytes, hits=%d misses=%d evictions=%d",
+                map.size(), usedBytes, budgetBytes, hits, misses, evictions);
+    }
+}
+
+// read-only view of a students.txt file: only roll -> byte offset stays in memory
+class DiskStudentStore implements Closeable {
+    interface LineVisitor {
+        // lineNo counts from 1, blank lines included; length is the record's byte count without the terminator
+        void visit(long lineNo, long offset, int length, String line) throws IOException;
+    }
+
+    final File file;
+    private final FileChannel channel;
+    private final RecordIndex index;
+    final int rejected; // lines of the file left out of the index (see RecordIndex.scan)
+
+    private DiskStudentStore(File file, FileChannel channel, RecordIndex index, int rejected) {
+        this.file = file;
+        this.channel = channel;
+        this.index = index;
+        this.rejected = rejected;
+    }
+
+    // uses the sidecar index from the last save, or indexes the file in one sequential pass
+    static DiskStudentStore open(File f) throws IOException {
+        try (ImportValidator.Rejects rejects = new ImportValidator.Rejects(f)) {
+            RecordIndex index = RecordIndex.forFile(f, rejects);
+            return new DiskStudentStore(f, FileChannel.open(f.toPath(), StandardOpenOption.READ), index, index.rejected);
+        }
+    }
+
+    // visits every non-blank line with its line number and byte offset
+    static void scan(File f, LineVisitor visitor) throws IOException {
+        try (ChannelLineReader in = ChannelLineReader.open(f)) {
+            String line;
+            long lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                if (!line.trim().isEmpty()) visitor.visit(lineNo, in.position(), in.length(), line);
+            }
+        }
+    }
+
+    // the records of f that index points at; every other line goes to rejects, if given, with the reason
+    static void forEachIndexed(File f, RecordIndex index, StudentVisitor visitor, ImportValidator.Rejects rejects) throws IOException {
+        String[] why = new String[1];
+        scan(f, (lineNo, offset, length, line) -> {
+            Student s = ImportValidator.parse(line, why);
+            if (s != null && index.offsetOf(s.rollNo) == offset) visitor.visit(s);
+            else if (rejects != null) rejects.add(lineNo, s == null ? why[0] : ImportValidator.duplicate(s.rollNo), line);
+        });
+    }
+
+    int size() { return index.size(); }
+
+    boolean contains(int rollNo) { return index.contains(rollNo); }
+
+    Student read(int rollNo) throws IOException { return index.read(channel, rollNo); }
+
+    // whether the line at offset is the indexed copy of rollNo (and not a later duplicate)
+    boolean isIndexed(int rollNo, long offset) { return index.offsetOf(rollNo) == offset; }
+
+    // streams every indexed record without keeping them; duplicates and unreadable lines go to rejects,
+    // or are skipped when it is null (the opening scan has reported them)
+    void forEach(StudentVisitor visitor, ImportValidator.Rejects rejects) throws IOException {
+        forEachIndexed(file, index, visitor, rejects);
+    }
+
+    // as forEach, with each indexed line shown through view while it is still in the read buffer
+    void forEachView(StudentView view, StudentView.Visitor visitor) throws IOException {
+        try (ChannelLineReader in = ChannelLineReader.open(file)) {
+            while (in.nextLine()) {
+                if (view.ofLine(in.bytes(), in.contentLength()) && index.offsetOf(view.rollNo()) == in.position())
+                    visitor.visit(view);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException { channel.close(); }
+}
+
+// --------------------- Top-K (bounded heap) ---------------------
+// keeps the first k elements under 'order' in an array heap rooted at the worst one kept: most offers
+// cost a single comparison and only a displacement pays O(log k), so n offers are O(n log k) in O(k) space
+final class TopK<T> {
+    private final int k;
+    private final Comparator<? super T> order;
+    private Object[] heap;
+    private int size;
+
+    TopK(int k, Comparator<? super T> order) {
+        if (k < 0) throw new IllegalArgumentException("k must not be negative: " + k);
+        this.k = k;
+        this.order = order;
+        this.heap = new Object[Math.min(k, 16)];
+    }
+
+    void offer(T t) {
+        if (size < k) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, (int) Math.min(k, 2L * size));
+            heap[size] = t;
+            siftUp(size++);
+        } else if (k > 0 && order.compare(t, at(0)) < 0) {
+            heap[0] = t;
+            siftDown(0);
+        }
+    }
+
+    void addAll(Collection<? extends T> items) {
+        for (T t : items) offer(t);
+    }
+
+    // best first
+    List<T> toList() {
+        List<T> out = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) out.add(at(i));
+        out.sort(order);
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T at(int i) { return (T) heap[i]; }
+
+    private void siftUp(int i) {
+        T x = at(i);
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (order.compare(at(parent), x) >= 0) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = x;
+    }
+
+    private void siftDown(int i) {
+        T x = at(i);
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && order.compare(at(child + 1), at(child)) > 0) child++;
+            if (order.compare(x, at(child)) >= 0) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+}
+
+// --------------------- Persistent roster map (MVCC snapshots) ---------------------
+// immutable roll -> Student trie, 32 ways per level on successive 5-bit slices of the roll number, with
+// bitmap-compressed nodes. put/remove copy only the path to the changed slot (at most 7 nodes), so every
+// version stays valid: a reader's snapshot is just a root reference, taken in O(1) while writers go on.
+// Students reachable from a map are never modified; writers publish changed copies instead
+final class RosterMap implements Iterable<Student> {
+    static final RosterMap EMPTY = new RosterMap(null, 0);
+
+    private static final class Node {
+        int bitmap;
+        Object[] slots;     // a Student leaf or a child Node per set bit, in bit order
+        final Object owner; // the Builder allowed to edit this node in place, null for published nodes
+
+        Node(int bitmap, Object[] slots, Object owner) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+            this.owner = owner;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private RosterMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    int size() { return size; }
+
+    boolean containsKey(int rollNo) { return get(root, rollNo) != null; }
+
+    Student get(int rollNo) { return get(root, rollNo); }
+
+    RosterMap put(Student s) {
+        boolean[] added = new boolean[1];
+        Node r = put(root, 0, s, added, null);
+        return new RosterMap(r, added[0] ? size + 1 : size);
+    }
+
+    RosterMap remove(int rollNo) {
+        if (get(root, rollNo) == null) return this;
+        return new RosterMap(remove(root, 0, rollNo), size - 1);
+    }
+
+    List<Student> toList() {
+        List<Student> all = new ArrayList<>(size);
+        for (Student s : this) all.add(s);
+        return all;
+    }
+
+    private static Student get(Node n, int rollNo) {
+        for (int shift = 0; n != null; shift += 5) {
+            int bit = 1 << ((rollNo >>> shift) & 31);
+            if ((n.bitmap & bit) == 0) return null;
+            Object o = n.slots[Integer.bitCount(n.bitmap & (bit - 1))];
+            if (o instanceof Student) return ((Student) o).rollNo == rollNo ? (Student) o : null;
+            n = (Node) o;
+        }
+        return null;
+    }
+
+    // nodes owned by 'owner' are edited in place, anything else is copied
+    private static Node put(Node n, int shift, Student s, boolean[] added, Object owner) {
+        int bit = 1 << ((s.rollNo >>> shift) & 31);
+        if (n == null) {
+            added[0] = true;
+            return new Node(bit, new Object[] {s}, owner);
+        }
+        int idx = Integer.bitCount(n.bitmap & (bit - 1));
+        if ((n.bitmap & bit) == 0) {
+            added[0] = true;
+            Object[] slots = new Object[n.slots.length + 1];
+            System.arraycopy(n.slots, 0, slots, 0, idx);
+            slots[idx] = s;
+            System.arraycopy(n.slots, idx, slots, idx + 1, n.slots.length - idx);
+            if (owner != null && n.owner == owner) {
+                n.bitmap |= bit;
+                n.slots = slots;
+                return n;
+            }
+            return new Node(n.bitmap | bit, slots, owner);
+        }
+        Object o = n.slots[idx];
+        Object replacement;
+        if (o instanceof Node) {
+            replacement = put((Node) o, shift + 5, s, added, owner);
+        } else if (((Student) o).rollNo == s.rollNo) {
+            replacement = s;
+        } else {
+            // two rolls share this slice: push both one level down (they differ by shift 30 at the latest)
+            replacement = put(put(null, shift + 5, (Student) o, new boolean[1], owner), shift + 5, s, added, owner);
+        }
+        if (owner != null && n.owner == owner) {
+            n.slots[idx] = replacement;
+            return n;
+        }
+        Object[] slots = n.slots.clone();
+        slots[idx] = replacement;
+        return new Node(n.bitmap, slots, owner);
+    }
+
+    // rollNo is known to be present; empty nodes disappear and single-leaf children fold into their parent
+    private static Node remove(Node n, int shift, int rollNo) {
+        int bit = 1 << ((rollNo >>> shift) & 31);
+        int idx = Integer.bitCount(n.bitmap & (bit - 1));
+        if (n.slots[idx] instanceof Node) {
+            Node child = remove((Node) n.slots[idx], shift + 5, rollNo);
+            if (child != null) {
+                Object[] slots = n.slots.clone();
+                slots[idx] = child.slots.length == 1 && child.slots[0] instanceof Student ? child.slots[0] : child;
+                return new Node(n.bitmap, slots, null);
+            }
+        }
+        if (n.slots.length == 1) return null;
+        Object[] slots = new Object[n.slots.length - 1];
+        System.arraycopy(n.slots, 0, slots, 0, idx);
+        System.arraycopy(n.slots, idx + 1, slots, idx, slots.length - idx);
+        return new Node(n.bitmap & ~bit, slots, null);
+    }
+
+    @Override
+    public Iterator<Student> iterator() {
+        return new Iterator<Student>() {
+            private final Node[] nodes = new Node[8];
+            private final int[] pos = new int[8];
+            private int depth = root == null ? -1 : 0;
+            private Student next;
+
+            {
+                nodes[0] = root;
+                advance();
+            }
+
+            private void advance() {
+                next = null;
+                while (depth >= 0) {
+                    Node n = nodes[depth];
+                    if (pos[depth] == n.slots.length) {
+                        depth--;
+                        continue;
+                    }
+                    Object o = n.slots[pos[depth]++];
+                    if (o instanceof Student) {
+                        next = (Student) o;
+                        return;
+                    }
+                    nodes[++depth] = (Node) o;
+                    pos[depth] = 0;
+                }
+            }
+
+            @Override
+            public boolean hasNext() { return next != null; }
+
+            @Override
+            public Student next() {
+                if (next == null) throw new NoSuchElementException();
+                Student s = next;
+                advance();
+                return s;
+            }
+        };
+    }
+
+    // bulk changes without a path copy per record: nodes created here are edited in place until build()
+    static final class Builder {
+        private Object owner = new Object();
+        private Node root;
+        private int size;
+
+        Builder() { }
+
+        Builder(RosterMap from) {
+            root = from.root;
+            size = from.size;
+        }
+
+        // first record wins, as in the file loaders
+        boolean putIfAbsent(Student s) {
+            if (get(root, s.rollNo) != null) return false;
+            put(s);
+            return true;
+        }
+
+        void put(Student s) {
+            if (owner == null) throw new IllegalStateException("Builder already built");
+            boolean[] added = new boolean[1];
+            root = RosterMap.put(root, 0, s, added, owner);
+            if (added[0]) size++;
+        }
+
+        RosterMap build() {
+            owner = null;
+            return new RosterMap(root, size);
+        }
+    }
+}
+
+// --------------------- Transactions (optimistic, per-record versions) ---------------------
+// a multi-record change built up without holding any lock. Every record read is remembered as the
+// version seen (a published Student is never modified, so that is simply the instance) and writes stay
+// local; commit re-checks all of them and applies every write in one step, or applies none and throws
+// TransactionConflictException if anything read has changed since
+final class Transaction {
+    interface Reader {
+        Student read(int rollNo); // current published record, null if absent
+    }
+
+    interface Body {
+        void run(Transaction tx) throws StudentNotFoundException, InvalidMarksException;
+    }
+
+    // one per record touched: the version read, if it was read, and the pending write, if any
+    static final class Slot {
+        final int rollNo;
+        final boolean read;
+        final Student seen;
+        boolean written;
+        Student write; // null when written means delete
+
+        Slot(int rollNo, boolean read, Student seen) {
+            this.rollNo = rollNo;
+            this.read = read;
+            this.seen = seen;
+        }
+
+        Student current() { return written ? write : seen; }
+    }
+
+    static final int MAX_ATTEMPTS = 5;
+
+    private final Reader reader;
+    private final Object base;
+    // open addressing on the roll number (bulk operations touch a lot of records, so no boxing), plus
+    // the slots in the order first touched: a scan's order, which keeps the commit's trie walk local
+    private Slot[] table = new Slot[16];
+    private Slot[] touched = new Slot[8];
+    private int count, writes;
+
+    // base: the version reads start from, if the manager has one; a commit that finds the same version
+    // still current knows nothing has changed and can skip checking reads one by one
+    Transaction(Reader reader, Object base) {
+        this.reader = reader;
+        this.base = base;
+    }
+
+    Object base() { return base; }
+
+    private int indexOf(int rollNo) {
+        int mask = table.length - 1;
+        int h = rollNo * 0x9E3779B9;
+        int i = (h ^ h >>> 16) & mask;
+        while (table[i] != null && table[i].rollNo != rollNo) i = (i + 1) & mask;
+        return i;
+    }
+
+    private Slot find(int rollNo) { return table[indexOf(rollNo)]; }
+
+    private Slot insert(Slot slot) {
+        if (2 * (count + 1) > table.length) {
+            Slot[] old = table;
+            table = new Slot[old.length * 2];
+            for (Slot o : old) if (o != null) table[indexOf(o.rollNo)] = o;
+        }
+        table[indexOf(slot.rollNo)] = slot;
+        if (count == touched.length) touched = Arrays.copyOf(touched, count * 2);
+        touched[count++] = slot;
+        return slot;
+    }
+
+    private Slot slot(int rollNo) {
+        Slot slot = find(rollNo);
+        return slot != null ? slot : insert(new Slot(rollNo, true, reader.read(rollNo)));
+    }
+
+    private Slot existing(int rollNo) throws StudentNotFoundException {
+        Slot slot = slot(rollNo);
+        if (slot.current() == null) throw new StudentNotFoundException("Student not found: " + rollNo);
+        return slot;
+    }
+
+    private Student write(Slot slot, Student s) {
+        if (!slot.written) writes++;
+        slot.written = true;
+        slot.write = s;
+        return s;
+    }
+
+    // the record as this transaction sees it: its own write if any, else the version first read
+    Student get(int rollNo) { return slot(rollNo).current(); }
+
+    // records a version already in hand (e.g. from a scan) as read, without looking it up again
+    Student track(Student s) {
+        Slot slot = find(s.rollNo);
+        return (slot != null ? slot : insert(new Slot(s.rollNo, true, s))).current();
+    }
+
+    private Slot blind(int rollNo) {
+        Slot slot = find(rollNo);
+        return slot != null ? slot : insert(new Slot(rollNo, false, null));
+    }
+
+    boolean add(Student s) throws InvalidMarksException {
+        StudentManager.validateMarks(s.marks());
+        Slot slot = slot(s.rollNo);
+        if (slot.current() != null) return false;
+        write(slot, s);
+        return true;
+    }
+
+    // blind write of a whole record, as replication applies it; nothing is read, and the record goes in as
+    // the leader has it, even one kept out of policy on load
+    void put(Student s) {
+        write(blind(s.rollNo), s);
+    }
+
+    Student updateMarks(int rollNo, double marks) throws StudentNotFoundException, InvalidMarksException {
+        StudentManager.validateMarks(marks);
+        Slot slot = existing(rollNo);
+        return write(slot, slot.current().withMarks(marks));
+    }
+
+    Student updateEmail(int rollNo, String email) throws StudentNotFoundException {
+        Slot slot = existing(rollNo);
+        return write(slot, slot.current().withEmail(email));
+    }
+
+    // re-graded as well, since the policy may have its own scale for the new course
+    Student updateCourse(int rollNo, String course) throws StudentNotFoundException {
+        Slot slot = existing(rollNo);
+        return write(slot, slot.current().withCourse(course));
+    }
+
+    Student remove(int rollNo) throws StudentNotFoundException {
+        Slot slot = existing(rollNo);
+        Student s = slot.current();
+        write(slot, null);
+        return s;
+    }
+
+    // blind delete, the counterpart of put
+    void delete(int rollNo) { write(blind(rollNo), null); }
+
+    List<Slot> slots() { return Arrays.asList(touched).subList(0, count); }
+
+    int writeCount() { return writes; }
+
+    // runs body in a fresh transaction and commits it, starting over on conflict; returns the write count
+    static int run(RecordActions m, Body body) throws TransactionConflictException, StudentNotFoundException, InvalidMarksException {
+        for (int attempt = 1; ; attempt++) {
+            Transaction tx = m.beginTransaction();
+            body.run(tx);
+            try {
+                return m.commit(tx);
+            } catch (TransactionConflictException e) {
+                if (attempt == MAX_ATTEMPTS) throw e;
+            }
+        }
+    }
+
+    // the bulk operations behind RecordActions.moveCourse / curveCourse: one scan, one commit
+    static int moveCourse(RecordActions m, String from, String to) throws TransactionConflictException {
+        try {
+            return run(m, tx -> {
+                for (Student s : m.getAllStudents())
+                    if (from.equals(s.course)) tx.updateCourse(tx.track(s).rollNo, to);
+            });
+        } catch (StudentNotFoundException | InvalidMarksException e) {
+            throw new IllegalStateException(e); // only records just scanned are touched, marks unchanged
+        }
+    }
+
+    // adds points to every mark in the course, kept to hundredths and capped to 0..100
+    static int curveCourse(RecordActions m, String course, double points) throws TransactionConflictException {
+        long delta = Student.toHundredths(points);
+        try {
+            return run(m, tx -> {
+                for (Student s : m.getAllStudents()) {
+                    if (!course.equals(s.course)) continue;
+                    Student seen = tx.track(s);
+                    tx.updateMarks(seen.rollNo, Math.max(0, Math.min(10000, seen.hundredths + delta)) / 100.0);
+                }
+            });
+        } catch (StudentNotFoundException | InvalidMarksException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+// --------------------- Change data capture (in-process feed) ---------------------
+// one committed write of a StudentManager; before/after are published versions, so never modified
+final class ChangeEvent {
+    enum Type { ADD, UPDATE, DELETE, RESET } // RESET: the whole roster was replaced (a load), resync from it
+
+    final long seq;
+    final Type type;
+    final int rollNo;
+    final Student before, after;
+
+    ChangeEvent(long seq, Type type, int rollNo, Student before, Student after) {
+        this.seq = seq;
+        this.type = type;
+        this.rollNo = rollNo;
+        this.before = before;
+        this.after = after;
+    }
+
+    @Override
+    public String toString() { return "#" + seq + " " + type + (type == Type.RESET ? "" : " " + rollNo); }
+}
+
+// bounded ring of ChangeEvents without locks: one producer at a time (the manager publishes under its
+// monitor) moves a volatile head past each slot it fills; every subscriber has its own volatile cursor.
+// Flow control happens before the monitor: a writer first calls awaitRoom, which holds that writer
+// back while a subscriber is a full capacity behind, so a slow consumer slows writes down instead of
+// losing events, and nothing else (reads, other subscribers) waits with it. The ring is twice the
+// capacity, so writes already past awaitRoom when a subscriber reached its limit still fit. A
+// subscriber is cut off (its next poll throws, so it knows to resync) only when writers have waited
+// maxStallMillis on it, or when one write of more events than the headroom laps it.
+// Sized by -Dstudents.changes.capacity (rounded up to a power of two) and -Dstudents.changes.maxStallMillis
+final class ChangeFeed {
+    private final ChangeEvent[] ring;
+    private final int mask, capacity;
+    private final long maxStallNanos;
+    private final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+    private volatile long head; // seq of the next event; everything below it is readable
+    private final AtomicLong stalledNanos = new AtomicLong(), cutOff = new AtomicLong();
+
+    ChangeFeed(int capacity, long maxStallMillis) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new ChangeEvent[2 * this.capacity];
+        mask = ring.length - 1;
+        maxStallNanos = TimeUnit.MILLISECONDS.toNanos(maxStallMillis);
+    }
+
+    static ChangeFeed fromProperties() {
+        return new ChangeFeed(Integer.getInteger("students.changes.capacity", 1 << 14),
+                Long.getLong("students.changes.maxStallMillis", 1000));
+    }
+
+    boolean hasSubscribers() { return !subscribers.isEmpty(); }
+
+    // events committed from now on; 'start' is the roster as of that point, if the caller has one
+    Subscription subscribe(RosterMap start) {
+        Subscription s = new Subscription(head, start);
+        subscribers.add(s);
+        return s;
+    }
+
+    // writer side, called without the manager's monitor before a write that publishes up to 'events'
+    // events: waits until every subscriber is far enough behind capacity for them (for a larger write,
+    // until it has caught up). After maxStallMillis the slowest is cut off instead
+    void awaitRoom(int events) {
+        if (subscribers.isEmpty()) return;
+        long limit = capacity - Math.min(Math.max(events, 1), capacity), start = 0;
+        for (int spins = 0; ; spins++) {
+            long h = head;
+            Subscription slowest = null;
+            for (Subscription s : subscribers)
+                if (h - s.cursor > limit && (slowest == null || s.cursor < slowest.cursor)) slowest = s;
+            if (slowest == null) {
+                if (start != 0) stalledNanos.addAndGet(System.nanoTime() - start);
+                return;
+            }
+            if (start == 0) {
+                start = System.nanoTime();
+            } else if (System.nanoTime() - start > maxStallNanos) {
+                if (slowest.cut()) cutOff.incrementAndGet();
+                continue;
+            }
+            if (spins < 100) Thread.onSpinWait();
+            else LockSupport.parkNanos(50_000);
+        }
+    }
+
+    // producer side, under the manager's monitor; never waits (see awaitRoom)
+    void publish(ChangeEvent.Type type, int rollNo, Student before, Student after) {
+        if (subscribers.isEmpty()) return;
+        long seq = head;
+        if (seq >= ring.length) dropLapped(seq - ring.length);
+        ring[(int) seq & mask] = new ChangeEvent(seq, type, rollNo, before, after);
+        head = seq + 1;
+    }
+
+    // cuts off every subscriber that has not yet read event 'overwritten'
+    private void dropLapped(long overwritten) {
+        for (Subscription s : subscribers)
+            if (s.cursor <= overwritten && s.cut()) cutOff.incrementAndGet();
+    }
+
+    void addStats(Map<String, Object> m) {
+        long published = head, maxLag = 0;
+        for (Subscription s : subscribers) maxLag = Math.max(maxLag, published - s.cursor);
+        m.put("changes.published", published);
+        m.put("changes.subscribers", subscribers.size());
+        m.put("changes.maxSubscriberLag", maxLag);
+        m.put("changes.writerStallMicros", stalledNanos.get() / 1000);
+        m.put("changes.cutOff", cutOff.get());
+    }
+
+    final class Subscription implements AutoCloseable {
+        private volatile long cursor; // seq of the next event to hand out
+        private volatile boolean lapped;
+        final RosterMap start; // null for a disk-resident roster
+
+        private Subscription(long from, RosterMap start) {
+            this.cursor = from;
+            this.start = start;
+        }
+
+        long position() { return cursor; }
+
+        // the next batch of up to max events in commit order, waiting up to timeoutMillis for the first
+        // one; empty if none came. Throws IllegalStateException once cut off for falling behind
+        List<ChangeEvent> poll(int max, long timeoutMillis) throws InterruptedException {
+            if (lapped) throw lapped();
+            long from = cursor, deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (int spins = 0; head == from; spins++) {
+                if (lapped) throw lapped();
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (System.nanoTime() - deadline >= 0) return Collections.emptyList();
+                if (spins < 100) Thread.onSpinWait();
+                else LockSupport.parkNanos(100_000);
+            }
+            int n = (int) Math.min(max, head - from);
+            List<ChangeEvent> batch = new ArrayList<>(n);
+            for (long seq = from; seq < from + n; seq++) {
+                ChangeEvent e = ring[(int) seq & mask];
+                if (e == null || e.seq != seq) throw lapped(); // slot already reused: we were cut off
+                batch.add(e);
+            }
+            cursor = from + n;
+            return batch;
+        }
+
+        private IllegalStateException lapped() {
+            return new IllegalStateException("Change subscriber fell behind and was cut off; resubscribe and resync");
+        }
+
+        // false if it already was
+        private synchronized boolean cut() {
+            if (lapped) return false;
+            lapped = true;
+            subscribers.remove(this);
+            return true;
+        }
+
+        @Override
+        public void close() { subscribers.remove(this); }
+    }
+}
+
+// --------------------- Streaming queries (Flow.Publisher) ---------------------
+// cold publisher: each subscriber gets a fresh iterator from the source, created on first demand, and
+// is sent exactly as many students as it has requested. Whoever bumps the work counter from zero runs
+// the delivery loop and others just add to it, so request() from inside onNext never recurses and an
+// inline executor (Runnable::run) streams on the subscribing thread
+final class StudentPublisher implements Flow.Publisher<Student> {
+    private static volatile Executor defaultExecutor;
+
+    private final Supplier<Iterator<Student>> source;
+    private final Executor executor;
+
+    StudentPublisher(Supplier<Iterator<Student>> source) { this(source, null); }
+
+    private StudentPublisher(Supplier<Iterator<Student>> source, Executor executor) {
+        this.source = source;
+        this.executor = executor;
+    }
+
+    // same query, delivered on the given executor
+    StudentPublisher on(Executor executor) { return new StudentPublisher(source, executor); }
+
+    // virtual threads where available, else daemon platform threads so an idle stream never holds up exit
+    private static Executor defaultExecutor() {
+        Executor e = defaultExecutor;
+        if (e == null) {
+            try {
+                e = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException unavailable) {
+                e = Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "student-stream");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            defaultExecutor = e;
+        }
+        return e;
+    }
+
+    static Iterator<Student> onlyCourse(Iterator<Student> it, String course) {
+        if (course == null) return it;
+        return new Iterator<Student>() {
+            private Student next = advance();
+
+            private Student advance() {
+                while (it.hasNext()) {
+                    Student s = it.next();
+                    if (course.equals(s.course)) return s;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() { return next != null; }
+
+            @Override
+            public Student next() {
+                if (next == null) throw new NoSuchElementException();
+                Student s = next;
+                next = advance();
+                return s;
+            }
+        };
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Student> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        Delivery d = new Delivery(subscriber);
+        subscriber.onSubscribe(d);
+    }
+
+    private final class Delivery implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Student> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable badRequest;
+        private Iterator<Student> it; // touched only by the delivery loop
+
+        Delivery(Flow.Subscriber<? super Student> subscriber) { this.subscriber = subscriber; }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) badRequest = new IllegalArgumentException("request must be positive: " + n);
+            else demand.getAndAccumulate(n, (d, add) -> d + add < 0 ? Long.MAX_VALUE : d + add);
+            if (work.getAndIncrement() == 0) {
+                try {
+                    (executor != null ? executor : defaultExecutor()).execute(this);
+                } catch (RejectedExecutionException e) {
+                    finish(e);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() { cancelled = true; }
+
+        private void finish(Throwable error) {
+            if (cancelled) return;
+            cancelled = true;
+            if (error == null) subscriber.onComplete();
+            else subscriber.onError(error);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    if (badRequest != null) {
+                        finish(badRequest);
+                    } else if (!cancelled) {
+                        if (it == null) it = source.get();
+                        long wanted = demand.get(), sent = 0;
+                        while (sent < wanted && !cancelled && it.hasNext()) {
+                            subscriber.onNext(it.next());
+                            sent++;
+                        }
+                        if (!cancelled && !it.hasNext()) finish(null);
+                        if (wanted != Long.MAX_VALUE) demand.addAndGet(-sent);
+                    }
+                } catch (RuntimeException e) {
+                    finish(e);
+                }
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
+
+// --------------------- Query engine (filter DSL) ---------------------
+// course = "CS" AND marks BETWEEN 60 AND 75 ORDER BY marks DESC LIMIT 50
+// fields roll, name, email, course, marks and grade; comparisons = != <> < <= > >=, BETWEEN .. AND ..,
+// [NOT] IN (..), joined by AND, OR, NOT and parentheses. Keywords are case-insensitive, strings are quoted
+// ('..' or "..", a bare word also works) and a grade is one letter. ORDER BY ties go by roll number;
+// without ORDER BY rows come in no particular order. The filter is evaluated against a Row, so a scan can
+// test columns or an unparsed line and only build or collect a Student for the rows that match
+final class StudentQuery {
+    enum Field {
+        ROLL, NAME, EMAIL, COURSE, MARKS, GRADE;
+
+        boolean textual() { return this == NAME || this == EMAIL || this == COURSE; }
+
+        // grades compare as their letters' char values
+        double number(Row r) { return this == ROLL ? r.roll() : this == MARKS ? r.marks() : r.grade(); }
+
+        String text(Row r) { return this == NAME ? r.name() : this == EMAIL ? r.email() : r.course(); }
+
+        Comparator<Student> order() {
+            switch (this) {
+                case ROLL: return Comparator.comparingInt(s -> s.rollNo);
+                case NAME: return Comparator.comparing(s -> s.name);
+                case EMAIL: return Comparator.comparing(s -> s.email);
+                case COURSE: return Comparator.comparing(s -> s.course);
+                case MARKS: return Comparator.comparingInt(s -> s.hundredths);
+                default: return Comparator.comparingInt(s -> s.grade);
+            }
+        }
+
+        static Field of(String word) {
+            switch (word.toLowerCase(Locale.ROOT)) {
+                case "roll": case "rollno": case "roll_no": return ROLL;
+                case "name": return NAME;
+                case "email": return EMAIL;
+                case "course": return COURSE;
+                case "marks": return MARKS;
+                case "grade": return GRADE;
+                default: return null;
+            }
+        }
+    }
+
+    // one record's fields as the filter sees them
+    interface Row {
+        int roll();
+        String name();
+        String email();
+        String course();
+        double marks();
+        char grade();
+    }
+
+    abstract static class Expr {
+        abstract boolean test(Row r);
+    }
+
+    // field op value; 'want' has a bit for each of less (1), equal (2) and greater (4) that satisfies op
+    static final class Compare extends Expr {
+        final Field field;
+        final String op;
+        final double num;
+        final String str;
+        private final int want;
+
+        Compare(Field field, String op, Object value) {
+            this.field = field;
+            this.op = op;
+            this.num = value instanceof Double ? (Double) value : 0;
+            this.str = value instanceof String ? (String) value : null;
+            switch (op) {
+                case "=": want = 2; break;
+                case "!=": case "<>": want = 5; break;
+                case "<": want = 1; break;
+                case "<=": want = 3; break;
+                case ">": want = 4; break;
+                default: want = 6;
+            }
+        }
+
+        @Override
+        boolean test(Row r) {
+            int c = field.textual() ? field.text(r).compareTo(str) : Double.compare(field.number(r), num);
+            return (want & (c < 0 ? 1 : c == 0 ? 2 : 4)) != 0;
+        }
+    }
+
+    static final class Between extends Expr {
+        final Field field;
+        final double lo, hi;
+        final String loStr, hiStr;
+
+        Between(Field field, Object lo, Object hi) {
+            this.field = field;
+            this.lo = lo instanceof Double ? (Double) lo : 0;
+            this.hi = hi instanceof Double ? (Double) hi : 0;
+            this.loStr = lo instanceof String ? (String) lo : null;
+            this.hiStr = hi instanceof String ? (String) hi : null;
+        }
+
+        @Override
+        boolean test(Row r) {
+            if (field.textual()) {
+                String v = field.text(r);
+                return v.compareTo(loStr) >= 0 && v.compareTo(hiStr) <= 0;
+            }
+            double v = field.number(r);
+            return v >= lo && v <= hi;
+        }
+    }
+
+    static final class In extends Expr {
+        final Field field;
+        final boolean negated;
+        final double[] nums; // sorted
+        final Set<String> strs;
+
+        In(Field field, List<Object> values, boolean negated) {
+            this.field = field;
+            this.negated = negated;
+            if (field.textual()) {
+                strs = new HashSet<>();
+                for (Object v : values) strs.add((String) v);
+                nums = null;
+            } else {
+                nums = values.stream().mapToDouble(v -> (Double) v).sorted().toArray();
+                strs = null;
+            }
+        }
+
+        @Override
+        boolean test(Row r) {
+            boolean in = field.textual() ? strs.contains(field.text(r)) : Arrays.binarySearch(nums, field.number(r)) >= 0;
+            return in != negated;
+        }
+    }
+
+    static final class Not extends Expr {
+        final Expr e;
+
+        Not(Expr e) { this.e = e; }
+
+        @Override
+        boolean test(Row r) { return !e.test(r); }
+    }
+
+    // terms on name or email (which the query columns do not hold) are tested after the others
+    static final class And extends Expr {
+        final Expr[] terms;
+
+        And(List<Expr> terms) {
+            this.terms = terms.toArray(new Expr[0]);
+            Arrays.sort(this.terms, Comparator.comparing(StudentQuery::readsRecord));
+        }
+
+        @Override
+        boolean test(Row r) {
+            for (Expr t : terms) if (!t.test(r)) return false;
+            return true;
+        }
+    }
+
+    static final class Or extends Expr {
+        final Expr[] terms;
+
+        Or(List<Expr> terms) { this.terms = terms.toArray(new Expr[0]); }
+
+        @Override
+        boolean test(Row r) {
+            for (Expr t : terms) if (t.test(r)) return true;
+            return false;
+        }
+    }
+
+    static boolean readsRecord(Expr e) {
+        if (e instanceof Compare) return ((Compare) e).field == Field.NAME || ((Compare) e).field == Field.EMAIL;
+        if (e instanceof Between) return ((Between) e).field == Field.NAME || ((Between) e).field == Field.EMAIL;
+        if (e instanceof In) return ((In) e).field == Field.NAME || ((In) e).field == Field.EMAIL;
+        if (e instanceof Not) return readsRecord(((Not) e).e);
+        Expr[] terms = e instanceof And ? ((And) e).terms : ((Or) e).terms;
+        for (Expr t : terms) if (readsRecord(t)) return true;
+        return false;
+    }
+
+    // a published Student seen as a Row; callers reuse one per scan
+    static final class StudentRow implements Row {
+        Student s;
+
+        @Override public int roll() { return s.rollNo; }
+        @Override public String name() { return s.name; }
+        @Override public String email() { return s.email; }
+        @Override public String course() { return s.course; }
+        @Override public double marks() { return s.marks(); }
+        @Override public char grade() { return s.grade(); }
+    }
+
+    // a toFileString() line seen as a Row: roll and marks are parsed up front, the text fields are cut
+    // out only when the filter asks for them, and the course only for a grade under per-course rules
+    static final class LineRow implements Row {
+        private String line;
+        private int c1, c2, c3, c4;
+        private int roll, hundredths;
+        private String course;
+
+        // false for a line Student.fromFileString would reject
+        boolean reset(String line) {
+            this.line = line;
+            c1 = line.indexOf(',');
+            c2 = c1 < 0 ? -1 : line.indexOf(',', c1 + 1);
+            c3 = c2 < 0 ? -1 : line.indexOf(',', c2 + 1);
+            c4 = c3 < 0 ? -1 : line.indexOf(',', c3 + 1);
+            if (c4 < 0) return false;
+            course = null;
+            try {
+                roll = Integer.parseInt(line, 0, c1, 10);
+                hundredths = Student.parseHundredths(line, c4 + 1, line.length());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return true;
+        }
+
+        @Override public int roll() { return roll; }
+        @Override public String name() { return line.substring(c1 + 1, c2); }
+        @Override public String email() { return line.substring(c2 + 1, c3); }
+
+        @Override
+        public String course() {
+            if (course == null) course = line.substring(c3 + 1, c4);
+            return course;
+        }
+
+        @Override public double marks() { return hundredths / 100.0; }
+
+        @Override
+        public char grade() {
+            GradingPolicy policy = GradingPolicy.current();
+            return policy.gradeOfHundredths(policy.hasCourseRules() ? course() : null, hundredths);
+        }
+    }
+
+    static final class OrderKey {
+        final Field field;
+        final boolean descending;
+
+        OrderKey(Field field, boolean descending) {
+            this.field = field;
+            this.descending = descending;
+        }
+    }
+
+    final String text;
+    final Expr filter;          // null matches everyone
+    final List<OrderKey> order;
+    final int limit;            // -1 for none
+    private final List<Expr> conjuncts;
+    private final Comparator<Student> comparator;
+
+    private StudentQuery(String text, Expr filter, List<OrderKey> order, int limit) {
+        this.text = text;
+        this.filter = filter;
+        this.order = order;
+        this.limit = limit;
+        this.conjuncts = filter == null ? Collections.emptyList()
+                : filter instanceof And ? Arrays.asList(((And) filter).terms) : Collections.singletonList(filter);
+        Comparator<Student> c = null;
+        for (OrderKey k : order) {
+            Comparator<Student> key = k.descending ? k.field.order().reversed() : k.field.order();
+            c = c == null ? key : c.thenComparing(key);
+        }
+        this.comparator = c == null ? null : c.thenComparingInt(s -> s.rollNo);
+    }
+
+    boolean matches(Row r) { return filter == null || filter.test(r); }
+
+    boolean orderedByMarksOnly() { return order.size() == 1 && order.get(0).field == Field.MARKS; }
+
+    // applies ORDER BY and LIMIT to the matching rows: a bounded heap when only the first few are wanted
+    List<Student> finish(List<Student> rows) {
+        if (comparator == null) return limit >= 0 && rows.size() > limit ? new ArrayList<>(rows.subList(0, limit)) : rows;
+        if (limit >= 0 && limit < rows.size()) {
+            TopK<Student> top = new TopK<>(limit, comparator);
+            top.addAll(rows);
+            return top.toList();
+        }
+        Student[] sorted = rows.toArray(new Student[0]);
+        Arrays.parallelSort(sorted, comparator);
+        return Arrays.asList(sorted);
+    }
+
+    // ---- access paths: what the top-level AND terms pin down, for the planner ----
+
+    // the roll numbers the filter is limited to (=, IN, or a BETWEEN over at most 1024 rolls), or null
+    int[] rollKeys() {
+        int[] best = null;
+        for (Expr e : conjuncts) {
+            double[] values = null;
+            if (e instanceof Compare && ((Compare) e).field == Field.ROLL && "=".equals(((Compare) e).op)) {
+                values = new double[] {((Compare) e).num};
+            } else if (e instanceof In && ((In) e).field == Field.ROLL && !((In) e).negated) {
+                values = ((In) e).nums;
+            } else if (e instanceof Between && ((Between) e).field == Field.ROLL) {
+                Between b = (Between) e;
+                double lo = Math.max(Math.ceil(b.lo), Integer.MIN_VALUE), hi = Math.min(Math.floor(b.hi), Integer.MAX_VALUE);
+                if (hi - lo <= 1024) values = DoubleStream.iterate(lo, v -> v <= hi, v -> v + 1).toArray();
+            }
+            if (values == null) continue;
+            int[] keys = Arrays.stream(values).filter(v -> v == (int) v).mapToInt(v -> (int) v).distinct().toArray();
+            if (best == null || keys.length < best.length) best = keys;
+        }
+        return best;
+    }
+
+    // {lowest, highest} marks the filter allows, or null when marks are not constrained
+    double[] marksRange() {
+        double lo = Double.NEGATIVE_INFINITY, hi = Double.POSITIVE_INFINITY;
+        boolean found = false;
+        for (Expr e : conjuncts) {
+            if (e instanceof Compare && ((Compare) e).field == Field.MARKS) {
+                Compare c = (Compare) e;
+                if (c.op.equals("=") || c.op.startsWith(">")) lo = Math.max(lo, c.num);
+                if (c.op.equals("=") || c.op.startsWith("<") && !c.op.equals("<>")) hi = Math.min(hi, c.num);
+                found |= !c.op.equals("!=") && !c.op.equals("<>");
+            } else if (e instanceof Between && ((Between) e).field == Field.MARKS) {
+                lo = Math.max(lo, ((Between) e).lo);
+                hi = Math.min(hi, ((Between) e).hi);
+                found = true;
+            } else if (e instanceof In && ((In) e).field == Field.MARKS && !((In) e).negated) {
+                double[] v = ((In) e).nums;
+                lo = Math.max(lo, v.length == 0 ? Double.POSITIVE_INFINITY : v[0]);
+                hi = Math.min(hi, v.length == 0 ? Double.NEGATIVE_INFINITY : v[v.length - 1]);
+                found = true;
+            }
+        }
+        return found ? new double[] {lo, hi} : null;
+    }
+
+    // the courses the filter is limited to (= or IN), or null
+    String[] courseKeys() {
+        String[] best = null;
+        for (Expr e : conjuncts) {
+            String[] keys = null;
+            if (e instanceof Compare && ((Compare) e).field == Field.COURSE && "=".equals(((Compare) e).op))
+                keys = new String[] {((Compare) e).str};
+            else if (e instanceof In && ((In) e).field == Field.COURSE && !((In) e).negated)
+                keys = ((In) e).strs.toArray(new String[0]);
+            if (keys != null && (best == null || keys.length < best.length)) best = keys;
+        }
+        return best;
+    }
+
+    // the grades the filter is limited to (= or IN), or null
+    char[] gradeKeys() {
+        char[] best = null;
+        for (Expr e : conjuncts) {
+            char[] keys = null;
+            if (e instanceof Compare && ((Compare) e).field == Field.GRADE && "=".equals(((Compare) e).op)) {
+                keys = new char[] {(char) ((Compare) e).num};
+            } else if (e instanceof In && ((In) e).field == Field.GRADE && !((In) e).negated) {
+                double[] v = Arrays.stream(((In) e).nums).distinct().toArray();
+                keys = new char[v.length];
+                for (int i = 0; i < v.length; i++) keys[i] = (char) v[i];
+            }
+            if (keys != null && (best == null || keys.length < best.length)) best = keys;
+        }
+        return best;
+    }
+
+    // ---- parsing ----
+
+    private static final int WORD = 0, NUMBER = 1, STRING = 2, SYMBOL = 3, END = 4;
+
+    private static final class Token {
+        final int kind;
+        final String text;
+        final int pos;
+
+        Token(int kind, String text, int pos) {
+            this.kind = kind;
+            this.text = text;
+            this.pos = pos;
+        }
+    }
+
+    static StudentQuery parse(String text) throws InvalidQueryException {
+        Parser p = new Parser(tokenize(text));
+        Expr filter = p.atClauseEnd() ? null : p.or();
+        List<OrderKey> order = new ArrayList<>();
+        if (p.keyword("ORDER")) {
+            p.expectKeyword("BY");
+            do {
+                Field f = p.field();
+                boolean desc = p.keyword("DESC");
+                if (!desc) p.keyword("ASC");
+                order.add(new OrderKey(f, desc));
+            } while (p.symbol(","));
+        }
+        int limit = -1;
+        if (p.keyword("LIMIT")) {
+            Token t = p.next();
+            try { limit = t.kind == NUMBER ? Integer.parseInt(t.text) : -1; } catch (NumberFormatException e) { limit = -1; }
+            if (limit < 0) throw new InvalidQueryException("LIMIT needs a whole number, found '" + t.text + "' at position " + t.pos);
+        }
+        Token t = p.peek();
+        if (t.kind != END) throw new InvalidQueryException("Unexpected '" + t.text + "' at position " + t.pos);
+        return new StudentQuery(text, filter, order, limit);
+    }
+
+    private static List<Token> tokenize(String s) throws InvalidQueryException {
+        List<Token> out = new ArrayList<>();
+        int i = 0, n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"' || c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= n) throw new InvalidQueryException("Unterminated string at position " + start);
+                    char d = s.charAt(i++);
+                    if (d != c) sb.append(d);
+                    else if (i < n && s.charAt(i) == c) sb.append(s.charAt(i++)); // doubled quote
+                    else break;
+                }
+                out.add(new Token(STRING, sb.toString(), start));
+            } else if (Character.isDigit(c) || c == '.' || c == '-' && i + 1 < n && (Character.isDigit(s.charAt(i + 1)) || s.charAt(i + 1) == '.')) {
+                i++;
+                while (i < n && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.')) i++;
+                out.add(new Token(NUMBER, s.substring(start, i), start));
+            } else if (Character.isLetter(c) || c == '_') {
+                while (i < n && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '_')) i++;
+                out.add(new Token(WORD, s.substring(start, i), start));
+            } else if (c == '<' || c == '>' || c == '=' || c == '!') {
+                i++;
+                if (i < n && (s.charAt(i) == '=' || c == '<' && s.charAt(i) == '>')) i++;
+                String op = s.substring(start, i);
+                if (op.equals("!") || op.equals("==")) throw new InvalidQueryException("Unknown operator '" + op + "' at position " + start);
+                out.add(new Token(SYMBOL, op, start));
+            } else if (c == '(' || c == ')' || c == ',') {
+                i++;
+                out.add(new Token(SYMBOL, String.valueOf(c), start));
+            } else {
+                throw new InvalidQueryException("Unexpected '" + c + "' at position " + start);
+            }
+        }
+        out.add(new Token(END, "end of query", n));
+        return out;
+    }
+
+    // recursive descent: or := and {OR and}; and := unary {AND unary}; unary := NOT unary | (or) | comparison
+    private static final class Parser {
+        private final List<Token> tokens;
+        private int p;
+
+        Parser(List<Token> tokens) { this.tokens = tokens; }
+
+        Token peek() { return tokens.get(p); }
+
+        Token next() {
+            Token t = tokens.get(p);
+            if (t.kind != END) p++;
+            return t;
+        }
+
+        boolean keyword(String k) {
+            Token t = peek();
+            if (t.kind != WORD || !t.text.equalsIgnoreCase(k)) return false;
+            p++;
+            return true;
+        }
+
+        boolean symbol(String s) {
+            Token t = peek();
+            if (t.kind != SYMBOL || !t.text.equals(s)) return false;
+            p++;
+            return true;
+        }
+
+        void expectKeyword(String k) throws InvalidQueryException {
+            if (!keyword(k)) throw expected(k);
+        }
+
+        void expectSymbol(String s) throws InvalidQueryException {
+            if (!symbol(s)) throw expected("'" + s + "'");
+        }
+
+        InvalidQueryException expected(String what) {
+            Token t = peek();
+            return new InvalidQueryException("Expected " + what + " but found '" + t.text + "' at position " + t.pos);
+        }
+
+        boolean atClauseEnd() {
+            Token t = peek();
+            return t.kind == END || t.kind == WORD && (t.text.equalsIgnoreCase("ORDER") || t.text.equalsIgnoreCase("LIMIT"));
+        }
+
+        Expr or() throws InvalidQueryException {
+            List<Expr> terms = new ArrayList<>();
+            terms.add(and());
+            while (keyword("OR")) terms.add(and());
+            return terms.size() == 1 ? terms.get(0) : new Or(terms);
+        }
+
+        Expr and() throws InvalidQueryException {
+            List<Expr> terms = new ArrayList<>();
+            terms.add(unary());
+            while (keyword("AND")) terms.add(unary());
+            return terms.size() == 1 ? terms.get(0) : new And(terms);
+        }
+
+        Expr unary() throws InvalidQueryException {
+            if (keyword("NOT")) return new Not(unary());
+            if (symbol("(")) {
+                Expr e = or();
+                expectSymbol(")");
+                return e;
+            }
+            return comparison();
+        }
+
+        Expr comparison() throws InvalidQueryException {
+            Field f = field();
+            if (keyword("BETWEEN")) {
+                Object lo = value(f);
+                expectKeyword("AND");
+                return new Between(f, lo, value(f));
+            }
+            boolean not = keyword("NOT");
+            if (keyword("IN")) {
+                expectSymbol("(");
+                List<Object> values = new ArrayList<>();
+                do values.add(value(f)); while (symbol(","));
+                expectSymbol(")");
+                return new In(f, values, not);
+            }
+            if (not) throw expected("IN");
+            Token t = peek();
+            if (t.kind != SYMBOL || t.text.equals("(") || t.text.equals(")") || t.text.equals(",")) throw expected("a comparison");
+            p++;
+            return new Compare(f, t.text, value(f));
+        }
+
+        Field field() throws InvalidQueryException {
+            Token t = peek();
+            Field f = t.kind == WORD ? Field.of(t.text) : null;
+            if (f == null) throw expected("a field (roll, name, email, course, marks, grade)");
+            p++;
+            return f;
+        }
+
+        // a Double for roll and marks, the letter's char value (as a Double) for grade, a String otherwise
+        Object value(Field f) throws InvalidQueryException {
+            Token t = peek();
+            if (f.textual()) {
+                if (t.kind != STRING && t.kind != WORD && t.kind != NUMBER) throw expected("a value for " + f.name().toLowerCase(Locale.ROOT));
+                p++;
+                return t.text;
+            }
+            if (f == Field.GRADE) {
+                if ((t.kind != STRING && t.kind != WORD) || t.text.length() != 1) throw expected("a grade letter");
+                p++;
+                return (double) Character.toUpperCase(t.text.charAt(0));
+            }
+            if (t.kind != NUMBER) throw expected("a number for " + f.name().toLowerCase(Locale.ROOT));
+            p++;
+            try { return Double.valueOf(t.text); }
+            catch (NumberFormatException e) { throw new InvalidQueryException("Invalid number '" + t.text + "' at position " + t.pos); }
+        }
+    }
+}
+
+// column-wise copy of one in-memory roster version for queries: roll, hundredths and grade as primitive arrays,
+// courses dictionary-encoded, plus row ids per course and per grade and all rows in marks order. Built once
+// for a version and only read afterwards, so concurrent queries share it without locking
+final class RosterColumns {
+    private static final int CHUNK = 1 << 16;
+    private static final int RANDOM_ACCESS = 4;
+
+    final RosterMap version;
+    private final Student[] rows;
+    private final int[] roll, courseId, hundredths;
+    private final char[] grade;
+    private final String[] courses;
+    private final Map<String, Integer> courseIds = new HashMap<>();
+    private final int[][] byCourse;
+    private final char[] grades;   // distinct grades, a handful
+    private final int[][] byGrade; // row ids per entry of grades
+    private final int[] byMarks;
+
+    RosterColumns(RosterMap version) {
+        this.version = version;
+        int n = version.size();
+        rows = new Student[n];
+        roll = new int[n];
+        courseId = new int[n];
+        hundredths = new int[n];
+        grade = new char[n];
+        List<String> names = new ArrayList<>();
+        int[] perCourse = new int[16];
+        StringBuilder distinctGrades = new StringBuilder();
+        boolean[] seenGrade = new boolean[128];
+        int i = 0;
+        for (Student s : version) {
+            rows[i] = s;
+            roll[i] = s.rollNo;
+            hundredths[i] = s.hundredths;
+            grade[i] = s.grade();
+            Integer id = courseIds.get(s.course);
+            if (id == null) {
+                id = names.size();
+                courseIds.put(s.course, id);
+                names.add(s.course);
+                if (id == perCourse.length) perCourse = Arrays.copyOf(perCourse, id * 2);
+            }
+            courseId[i] = id;
+            perCourse[id]++;
+            if (!seenGrade[s.grade]) {
+                seenGrade[s.grade] = true;
+                distinctGrades.append(s.grade());
+            }
+            i++;
+        }
+        courses = names.toArray(new String[0]);
+        grades = distinctGrades.toString().toCharArray();
+        int[] gradeId = new int[n], perGrade = new int[grades.length];
+        for (i = 0; i < n; i++) {
+            int g = 0;
+            while (grades[g] != grade[i]) g++;
+            gradeId[i] = g;
+            perGrade[g]++;
+        }
+        byCourse = new int[courses.length][];
+        for (int c = 0; c < courses.length; c++) byCourse[c] = new int[perCourse[c]];
+        byGrade = new int[grades.length][];
+        for (int g = 0; g < grades.length; g++) byGrade[g] = new int[perGrade[g]];
+        int[] courseFill = new int[courses.length], gradeFill = new int[grades.length];
+        for (i = 0; i < n; i++) {
+            byCourse[courseId[i]][courseFill[courseId[i]]++] = i;
+            byGrade[gradeId[i]][gradeFill[gradeId[i]]++] = i;
+        }
+        byMarks = marksOrder();
+    }
+
+    // row ids by ascending marks: a counting sort over hundredths, as StudentManager.sortedByMarks does
+    private int[] marksOrder() {
+        return StudentManager.countingOrder(hundredths);
+    }
+
+    // one row as the filter sees it; a cursor per scanning thread
+    private final class Cursor implements StudentQuery.Row {
+        int i;
+
+        @Override public int roll() { return roll[i]; }
+        @Override public String name() { return rows[i].name; }
+        @Override public String email() { return rows[i].email; }
+        @Override public String course() { return courses[courseId[i]]; }
+        @Override public double marks() { return hundredths[i] / 100.0; }
+        @Override public char grade() { return grade[i]; }
+    }
+
+    // tests whichever of these is cheapest: a course or grade posting list, the marks index range, or every
+    // row. Rows reached through the marks index are visited out of row order and cost about RANDOM_ACCESS
+    // sequential ones, so a wide marks range loses to the plain scan. With ORDER BY marks and a LIMIT it may
+    // instead walk the marks index from the wanted end and stop once the limit is met, when that is expected
+    // to test fewer rows. plan (may be null) gets the choice
+    List<Student> execute(StudentQuery q, StringBuilder plan) {
+        int n = rows.length;
+        int from = 0, to = n;
+        double[] range = q.marksRange();
+        if (range != null) {
+            from = lowerBound(range[0]);
+            to = Math.max(from, upperBound(range[1]));
+        }
+        int span = to - from;
+        int estimate = span; // rows the tightest single condition lets through
+        long cost = n;
+        int[] candidates = null;
+        boolean marksRange = false;
+        String path = "parallel columnar scan";
+        if (range != null && (long) RANDOM_ACCESS * span < cost) {
+            cost = (long) RANDOM_ACCESS * span;
+            marksRange = true;
+            path = "marks index " + range[0] + ".." + range[1];
+        }
+        String[] courseKeys = q.courseKeys();
+        if (courseKeys != null) {
+            int[] p = postings(courseKeys);
+            estimate = Math.min(estimate, p.length);
+            if (p.length < cost) {
+                cost = p.length;
+                candidates = p;
+                marksRange = false;
+                path = "course index " + String.join(", ", courseKeys);
+            }
+        }
+        char[] gradeKeys = q.gradeKeys();
+        if (gradeKeys != null) {
+            int[] p = postings(gradeKeys);
+            estimate = Math.min(estimate, p.length);
+            if (p.length < cost) {
+                cost = p.length;
+                candidates = p;
+                marksRange = false;
+                path = "grade index " + new String(gradeKeys);
+            }
+        }
+
+        List<Student> out;
+        int tested;
+        if (q.orderedByMarksOnly() && q.limit >= 0 && (double) RANDOM_ACCESS * q.limit * span / Math.max(estimate, 1) < cost) {
+            out = new ArrayList<>();
+            tested = walkByMarks(q, from, to, out);
+            path = "marks index" + (range == null ? "" : " " + range[0] + ".." + range[1]) + ", walked "
+                    + (q.order.get(0).descending ? "downwards" : "upwards") + " to LIMIT " + q.limit;
+        } else {
+            int[] rowsOf = candidates;
+            int base = from;
+            int[] hits;
+            if (rowsOf != null) hits = filter(q, j -> rowsOf[j], tested = rowsOf.length);
+            else if (marksRange) hits = filter(q, j -> byMarks[base + j], tested = span);
+            else hits = filter(q, j -> j, tested = n);
+            out = new ArrayList<>(hits.length);
+            for (int i : hits) out.add(rows[i]);
+        }
+        if (plan != null) plan.append(path).append(": ").append(tested).append(" of ").append(n).append(" row(s) tested, ")
+                .append(out.size()).append(" matched");
+        return q.finish(out);
+    }
+
+    // rows matching the filter among count candidates (rowAt(j) is the j-th), in parallel chunks
+    private int[] filter(StudentQuery q, IntUnaryOperator rowAt, int count) {
+        int chunks = (count + CHUNK - 1) / CHUNK;
+        int[][] parts = IntStream.range(0, chunks).parallel().mapToObj(k -> {
+            Cursor c = new Cursor();
+            int lo = k * CHUNK, hi = Math.min(count, lo + CHUNK), m = 0;
+            int[] hit = new int[hi - lo];
+            for (int j = lo; j < hi; j++) {
+                c.i = rowAt.applyAsInt(j);
+                if (q.matches(c)) hit[m++] = c.i;
+            }
+            return Arrays.copyOf(hit, m);
+        }).toArray(int[][]::new);
+        int total = 0;
+        for (int[] p : parts) total += p.length;
+        int[] all = new int[total];
+        int at = 0;
+        for (int[] p : parts) {
+            System.arraycopy(p, 0, all, at, p.length);
+            at += p.length;
+        }
+        return all;
+    }
+
+    // byMarks[from..to) from the end ORDER BY wants, until LIMIT matches are in hand and the marks move
+    // on (rows tied with the last match may still win on roll number); returns the rows tested
+    private int walkByMarks(StudentQuery q, int from, int to, List<Student> out) {
+        boolean desc = q.order.get(0).descending;
+        int last = Integer.MIN_VALUE;
+        Cursor c = new Cursor();
+        int k = 0;
+        for (; k < to - from; k++) {
+            int i = byMarks[desc ? to - 1 - k : from + k];
+            if (out.size() >= q.limit && hundredths[i] != last) break;
+            c.i = i;
+            if (q.matches(c)) {
+                out.add(rows[i]);
+                last = hundredths[i];
+            }
+        }
+        return k;
+    }
+
+    private int lowerBound(double v) {
+        int lo = 0, hi = byMarks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (hundredths[byMarks[mid]] / 100.0 < v) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int upperBound(double v) {
+        int lo = 0, hi = byMarks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (hundredths[byMarks[mid]] / 100.0 <= v) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int[] postings(String[] keys) {
+        return Arrays.stream(keys).map(courseIds::get).filter(Objects::nonNull)
+                .flatMapToInt(id -> Arrays.stream(byCourse[id])).toArray();
+    }
+
+    private int[] postings(char[] keys) {
+        IntStream all = IntStream.empty();
+        for (char key : keys)
+            for (int g = 0; g < grades.length; g++) if (grades[g] == key) all = IntStream.concat(all, Arrays.stream(byGrade[g]));
+        return all.toArray();
+    }
+}
+
+// --------------------- Import validation (parallel batches, rejects file) ---------------------
+// a text import is cut into batches of BATCH_LINES lines. Each batch is parsed and checked (field count,
+// roll, marks range, email syntax) on the common pool while the reader moves on, at most a few batches
+// ahead. The loader only inserts what passed, batch by batch in file order, and that is also where a
+// repeated roll number shows up (the first record wins). A line is only rejected if it cannot be read as
+// a record at all, or repeats a roll: marks outside 0..100 or an email not of today's form are kept as
+// they were, since the next save writes the roster back over the file. Rejected and kept-with-a-warning
+// lines are written to <file>.rejects as line<TAB>reason<TAB>record instead of to the console. The file is
+// replaced by the next import with something to report and otherwise left alone, so it is never the
+// only copy of a line that gets deleted
+final class ImportValidator {
+    static final int BATCH_LINES = 4096;
+    static final String REJECTS_SUFFIX = ".rejects";
+
+    interface Sink {
+        // false if the roll number is already taken
+        boolean insert(Student s);
+    }
+
+    // one batch once checked: the records that passed with their line numbers, and the rejected lines
+    private static final class Batch {
+        final long firstLine;
+        final String[] lines;
+        final int count;
+        Student[] valid;
+        long[] validLine;
+        String[] validWarning; // why a kept record is out of policy, else null
+        int validCount;
+        long[] rejectLine = new long[0];
+        String[] rejectReason = new String[0];
+        int rejectCount;
+
+        Batch(long firstLine, String[] lines, int count) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+            this.count = count;
+        }
+
+        Batch check() {
+            valid = new Student[count];
+            validLine = new long[count];
+            validWarning = new String[count];
+            for (int i = 0; i < count; i++) {
+                String line = lines[i];
+                if (line.trim().isEmpty()) continue;
+                Student s = parse(line, firstLine + i);
+                if (s == null) continue;
+                validLine[validCount] = firstLine + i;
+                validWarning[validCount] = warning(s, line);
+                valid[validCount++] = s;
+            }
+            return this;
+        }
+
+        private final String[] why = new String[1];
+
+        private Student parse(String line, long lineNo) {
+            Student s = ImportValidator.parse(line, why);
+            if (s == null) reject(lineNo, why[0]);
+            return s;
+        }
+
+        // records the policy would refuse as new input are still loaded, with the reason noted
+        private static String warning(Student s, String line) {
+            if (!StudentManager.validHundredths(s.hundredths)) return "kept, but marks are not between 0 and 100";
+            if (!validEmail(s.email)) return "kept, but email is not of the form name@domain.tld";
+            return null;
+        }
+
+        void reject(long line, String reason) {
+            if (rejectCount == rejectLine.length) {
+                rejectLine = Arrays.copyOf(rejectLine, Math.max(8, rejectCount * 2));
+                rejectReason = Arrays.copyOf(rejectReason, rejectLine.length);
+            }
+            rejectLine[rejectCount] = line;
+            rejectReason[rejectCount++] = reason;
+        }
+    }
+
+    // the rejects file beside a source as "line<TAB>reason<TAB>text" rows, created at the first one, so a
+    // clean load leaves any earlier file alone. Lines are reported in file order
+    static final class Rejects implements Closeable {
+        private final File file;
+        private Writer out;
+        private int count;
+
+        Rejects(File source) { file = rejectsFile(source); }
+
+        void add(long line, String reason, String text) throws IOException {
+            if (out == null) out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            out.write(line + "\t" + reason + "\t" + text + System.lineSeparator());
+            count++;
+        }
+
+        int count() { return count; }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) out.close();
+        }
+    }
+
+    private final File source;
+    private final Rejects rejects;
+    private int loaded, rejected, kept;
+
+    private ImportValidator(File source, Rejects rejects) {
+        this.source = source;
+        this.rejects = rejects;
+    }
+
+    static File rejectsFile(File source) { return new File(source.getPath() + REJECTS_SUFFIX); }
+
+    // imports source into sink; returns {records loaded, lines rejected, records kept with a warning}
+    static int[] importText(File source, Sink sink) throws IOException {
+        try (Rejects rejects = new Rejects(source)) {
+            ImportValidator v = new ImportValidator(source, rejects);
+            v.run(sink);
+            return new int[] {v.loaded, v.rejected, v.kept};
+        }
+    }
+
+    // the record Student.fromFileString would build, or null with the reason in why[0]. Fields are located
+    // by index and checked as primitives, and a good line is parsed only this once. The disk-resident
+    // scans (RecordIndex.scan, DiskStudentStore.forEach) turn lines away by the same rules
+    static Student parse(String line, String[] why) {
+        int c1 = line.indexOf(','), c2 = c1 < 0 ? -1 : line.indexOf(',', c1 + 1);
+        int c3 = c2 < 0 ? -1 : line.indexOf(',', c2 + 1), c4 = c3 < 0 ? -1 : line.indexOf(',', c3 + 1);
+        if (c4 < 0) {
+            why[0] = "expected 5 comma-separated fields (roll,name,email,course,marks)";
+            return null;
+        }
+        int roll, hundredths;
+        try {
+            roll = Integer.parseInt(line, 0, c1, 10);
+        } catch (NumberFormatException e) {
+            why[0] = "roll is not a whole number";
+            return null;
+        }
+        try {
+            hundredths = Student.parseHundredths(line, c4 + 1, line.length());
+        } catch (NumberFormatException e) {
+            hundredths = Integer.MIN_VALUE;
+        }
+        if (hundredths == Integer.MIN_VALUE) { // NaN as well
+            why[0] = "marks is not a number";
+            return null;
+        }
+        return Student.ofHundredths(roll, line.substring(c1 + 1, c2), line.substring(c2 + 1, c3), line.substring(c3 + 1, c4), hundredths);
+    }
+
+    static String duplicate(int rollNo) { return "duplicate roll " + rollNo + ": an earlier line has it"; }
+
+    private void run(Sink sink) throws IOException {
+        // with a single CPU the hand-off costs more than it overlaps, so batches are checked inline there
+        Executor pool = Runtime.getRuntime().availableProcessors() > 1 ? ForkJoinPool.commonPool() : Runnable::run;
+        int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+        Deque<CompletableFuture<Batch>> inFlight = new ArrayDeque<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+            String[] lines = new String[BATCH_LINES];
+            int n = 0;
+            long lineNo = 0;
+            String line;
+            while ((line = br.readLine()) != null) {
+                lines[n++] = line;
+                lineNo++;
+                if (n < BATCH_LINES) continue;
+                Batch batch = new Batch(lineNo - n + 1, lines, n);
+                inFlight.add(CompletableFuture.supplyAsync(batch::check, pool));
+                lines = new String[BATCH_LINES];
+                n = 0;
+                while (inFlight.size() >= window) insert(inFlight.poll().join(), sink);
+            }
+            if (n > 0) {
+                Batch batch = new Batch(lineNo - n + 1, lines, n);
+                inFlight.add(CompletableFuture.supplyAsync(batch::check, pool));
+            }
+        }
+        while (!inFlight.isEmpty()) insert(inFlight.poll().join(), sink);
+    }
+
+    // caller's thread, in file order
+    private void insert(Batch b, Sink sink) throws IOException {
+        int warned = 0;
+        for (int i = 0; i < b.validCount; i++) {
+            Student s = b.valid[i];
+            if (!sink.insert(s)) b.reject(b.validLine[i], duplicate(s.rollNo));
+            else {
+                loaded++;
+                if (b.validWarning[i] == null) continue;
+                b.reject(b.validLine[i], b.validWarning[i]);
+                warned++;
+            }
+        }
+        kept += warned;
+        rejected += b.rejectCount - warned;
+        if (b.rejectCount == 0) return;
+        // format rejects and duplicates back into line order: (line within batch, reject index) as one long
+        long[] order = new long[b.rejectCount];
+        for (int k = 0; k < order.length; k++) order[k] = (b.rejectLine[k] - b.firstLine) << 32 | k;
+        Arrays.sort(order);
+        for (long key : order) {
+            int k = (int) key;
+            long line = b.rejectLine[k];
+            rejects.add(line, b.rejectReason[k], b.lines[(int) (line - b.firstLine)]);
+        }
+    }
+
+    static boolean validEmail(String email) { return validEmail(email, 0, email.length()); }
+
+    // one '@' with something before it, and after it a domain with an inner dot; no spaces
+    static boolean validEmail(CharSequence s, int from, int to) {
+        int at = -1, lastDot = -1;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c <= ' ' || c == ',') return false;
+            if (c == '@') {
+                if (at >= 0) return false;
+                at = i;
+            } else if (c == '.' && at >= 0) {
+                if (i == at + 1 || i == lastDot + 1) return false;
+                lastDot = i;
+            }
+        }
+        return at > from && lastDot > at + 1 && lastDot < to - 1;
+    }
+}
+
+// --------------------- StudentManager ---------------------
+class StudentManager implements RecordActions {
+    // writers hold the monitor and publish a new version; in-memory reads take the current root without
+    // locking and see one consistent point in time however long they run
+    private volatile RosterMap studentMap = RosterMap.EMPTY;
+
+    // disk-resident mode (see openDiskResident): studentMap only holds records added or changed since the
+    // last save; everything else is read through the cache from the indexed data file. Reads lock there
+    private volatile DiskStudentStore store;
+    private StudentCache cache;
+    private final Set<Integer> deletedFromStore = new HashSet<>();
+    private volatile CompletableFuture<Integer> loading; // image startup's background load (loadIntoMemory)
+
+    // progress dots and completion messages; shards of a ShardedStudentManager run quietly
+    private final boolean verbose;
+    private final Object saveLock = new Object();
+    private final ChangeFeed changes = ChangeFeed.fromProperties();
+
+    // query columns for one in-memory version (see columnsFor)
+    private volatile RosterColumns columns;
+    private volatile RosterMap lastQueried;
+    private volatile int rejectedOnLoad, keptOnLoad;
+
+    StudentManager() { this(true); }
+
+    StudentManager(boolean verbose) { this.verbose = verbose; }
+
+    // best first: higher marks, then name; the course ranking groups by course ahead of that
+    static final Comparator<Student> RANK_BY_MARKS =
+            Comparator.comparingInt((Student s) -> s.hundredths).reversed().thenComparing(s -> s.name);
+    static final Comparator<Student> RANK_BY_COURSE =
+            Comparator.comparing((Student s) -> s.course).thenComparing(RANK_BY_MARKS);
+
+    // monitor wait probes feed both the metrics histogram and the JFR LockContention event
+    private static long waitStart() {
+        return Metrics.ENABLED || Jfr.recording() && LockContentionEvent.TYPE.isEnabled() ? System.nanoTime() : 0L;
+    }
+
+    private static void lockAcquired(Metrics.Op op, long waitStart) {
+        if (waitStart == 0L) return;
+        long waited = System.nanoTime() - waitStart;
+        Metrics.lockWaited(waited);
+        if (Jfr.recording()) LockContentionEvent.emit(op.name(), waited);
+    }
+
+    public boolean contains(int rollNo) {
+        if (store == null) return studentMap.containsKey(rollNo);
+        synchronized (this) { return find(rollNo) != null; }
+    }
+
+    // in-memory lookups never wait for the monitor (see studentMap)
+    boolean readsWithoutBlocking() { return store == null; }
+
+    // O(1) point-in-time view of an in-memory roster, unaffected by later writes
+    public RosterMap snapshot() {
+        if (store != null) throw new IllegalStateException("Snapshots need an in-memory roster, this one is disk-resident");
+        return studentMap;
+    }
+
+    // caller holds the monitor
+    private Student find(int rollNo) {
+        Student s = studentMap.get(rollNo);
+        if (s != null || store == null || deletedFromStore.contains(rollNo)) return s;
+        s = cache.get(rollNo);
+        if (s != null) return s;
+        try { s = store.read(rollNo); }
+        catch (IOException e) { throw new UncheckedIOException(e); }
+        if (s != null) cache.put(s);
+        return s;
+    }
+
+    // caller holds the monitor; publishes 'after' in place of 'before' (null for a new record)
+    private void commit(Student before, Student after) {
+        if (store != null) cache.invalidate(after.rollNo);
+        studentMap = studentMap.put(after);
+        changes.publish(before == null ? ChangeEvent.Type.ADD : ChangeEvent.Type.UPDATE, after.rollNo, before, after);
+    }
+
+    // every write from now on, in commit order; taken under the monitor so nothing falls in between
+    // the subscription and the roster version it starts from
+    public synchronized ChangeFeed.Subscription subscribeChanges() {
+        return changes.subscribe(store == null ? studentMap : null);
+    }
+
+    void addChangeStats(Map<String, Object> m) { changes.addStats(m); }
+
+    // for a caller about to apply writes itself under the monitor (ShardedStudentManager.commit)
+    void awaitChangeRoom(int events) { changes.awaitRoom(events); }
+
+    // returns the number of students visited. With a store the caller holds the monitor; an in-memory
+    // roster is walked as the version passed in
+    private int forEachStudent(RosterMap map, StudentVisitor visitor) throws IOException {
+        for (Student s : map) visitor.visit(s);
+        if (store == null) return map.size();
+        int[] count = {map.size()};
+        store.forEach(s -> {
+            if (map.containsKey(s.rollNo) || deletedFromStore.contains(s.rollNo)) return;
+            visitor.visit(s);
+            count[0]++;
+        }, null);
+        return count[0];
+    }
+
+    // forEachStudent through one view; a record the heap overrides or deleted is skipped as there
+    private int forEachView(RosterMap map, StudentView view, StudentView.Visitor visitor) throws IOException {
+        for (Student s : map) visitor.visit(view.of(s));
+        if (store == null) return map.size();
+        int[] count = {map.size()};
+        int[] deleted = deletedFromStore.stream().mapToInt(Integer::intValue).sorted().toArray(); // no boxing per row
+        store.forEachView(view, v -> {
+            if (map.containsKey(v.rollNo()) || deleted.length > 0 && Arrays.binarySearch(deleted, v.rollNo()) >= 0) return;
+            visitor.visit(v);
+            count[0]++;
+        });
+        return count[0];
+    }
+
+    // every student through a single reused StudentView instead of a Student per row: the in-memory
+    // roster as of now, or a disk-resident one under the monitor, its lines parsed in the read buffer.
+    // Returns how many were visited
+    public int forEachView(StudentView.Visitor visitor) throws IOException {
+        awaitLoad();
+        StudentView view = new StudentView();
+        if (store == null) return forEachView(studentMap, view, visitor);
+        synchronized (this) { return forEachView(studentMap, view, visitor); }
+    }
+
+    // everyone as displayDetails() prints them, through forEachView and a text buffer written out in chunks
+    public int printAll(PrintStream out) throws IOException {
+        StringBuilder text = new StringBuilder(16 * 1024);
+        int n = forEachView(v -> {
+            v.appendDetails(text);
+            if (text.length() > 8192) {
+                out.print(text);
+                text.setLength(0);
+            }
+        });
+        out.print(text);
+        return n;
+    }
+
+    // roster larger than RAM: index filename and keep at most cacheBytes of students on the heap
+    public synchronized void openDiskResident(String filename, long cacheBytes) throws IOException {
+        File f = new File(filename);
+        if (!f.exists()) f.createNewFile();
+        closeStore();
+        studentMap = RosterMap.EMPTY;
+        store = DiskStudentStore.open(f);
+        rejectedOnLoad = store.rejected;
+        keptOnLoad = 0;
+        Metrics.rejected(rejectedOnLoad);
+        cache = new StudentCache(cacheBytes);
+        changes.publish(ChangeEvent.Type.RESET, 0, null, null);
+        System.out.println("Indexed " + store.size() + " record(s) from " + f.getAbsolutePath() + " (disk-resident)."
+                + loadNotes(rejectedOnLoad, 0, ImportValidator.rejectsFile(f).getAbsolutePath()));
+    }
+
+    // image startup (see StudentRecordApp.main): reads the indexed file into an in-memory roster without
+    // the monitor while the disk-resident store keeps answering, then swaps it in together with whatever
+    // was written meanwhile; from then on this is the same as after loadFromFile. Completes with the
+    // roster size, or -1 if the roster was reloaded from elsewhere first
+    public CompletableFuture<Integer> loadIntoMemory() {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        loading = done;
+        Thread t = new Thread(() -> {
+            try { done.complete(promote()); }
+            catch (Throwable e) { done.completeExceptionally(e); }
+        }, "roster-loader");
+        t.setDaemon(true);
+        t.start();
+        return done;
+    }
+
+    private int promote() throws IOException {
+        while (true) {
+            DiskStudentStore base;
+            synchronized (this) { base = store; }
+            if (base == null) return -1;
+            RosterMap.Builder loaded = new RosterMap.Builder();
+            int rejected;
+            try (ImportValidator.Rejects rejects = new ImportValidator.Rejects(base.file)) {
+                base.forEach(loaded::put, rejects);
+                rejected = rejects.count();
+            }
+            synchronized (this) {
+                if (store != base) continue; // a save rebased the store on a new file: read that one
+                rejectedOnLoad = rejected;
+                RosterMap merged = loaded.build();
+                for (Student s : studentMap) merged = merged.put(s);
+                for (int roll : deletedFromStore) merged = merged.remove(roll);
+                studentMap = merged;
+                closeStore();
+                return merged.size();
+            }
+        }
+    }
+
+    // a full pass started while that load runs waits for it instead of scanning the file alongside it
+    // (not under the monitor, which the load needs to finish); if the load fails, the pass scans the file
+    private void awaitLoad() {
+        CompletableFuture<Integer> f = loading;
+        if (f == null || store == null || Thread.holdsLock(this)) return;
+        try { f.join(); } catch (CompletionException | CancellationException ignored) { }
+    }
+
+    private void closeStore() throws IOException {
+        if (store != null) store.close();
+        store = null;
+        cache = null;
+        deletedFromStore.clear();
+    }
+
+    public synchronized String cacheStats() {
+        return cache == null ? null : cache.stats();
+    }
+
+    public synchronized long[] cacheCounters() {
+        return cache == null ? null : new long[] { cache.hits(), cache.misses(), cache.evictions() };
+    }
+
+    static void validateMarks(double marks) throws InvalidMarksException {
+        if (!validMarks(marks)) throw new InvalidMarksException("Marks must be between 0 and 100");
+    }
+
+    // false for NaN as well
+    static boolean validMarks(double marks) { return marks >= 0 && marks <= 100; }
+
+    static boolean validHundredths(int hundredths) { return hundredths >= 0 && hundredths <= 10000; }
+
+    // shared by the sharded manager: prompts for a new record, returns null (after saying why) if aborted
+    static Student promptNewStudent(Scanner sc, IntPredicate taken) throws InvalidMarksException {
+        System.out.print("Enter Roll No: ");
+        String rs = sc.nextLine().trim();
+        if (rs.isEmpty()) { System.out.println("Roll No required."); return null; }
+        int roll;
+        try { roll = Integer.parseInt(rs); } catch (NumberFormatException e) { System.out.println("Invalid roll format."); return null; }
+
+        if (taken.test(roll)) { System.out.println("Duplicate roll number. Aborted."); return null; }
+
+        System.out.print("Enter Name: ");
+        String name = sc.nextLine().trim();
+        if (name.isEmpty()) { System.out.println("Name required."); return null; }
+
+        System.out.print("Enter Email: ");
+        String email = sc.nextLine().trim();
+        if (email.isEmpty()) { System.out.println("Email required."); return null; }
+
+        System.out.print("Enter Course: ");
+        String course = sc.nextLine().trim();
+        if (course.isEmpty()) { System.out.println("Course required."); return null; }
+
+        System.out.print("Enter Marks (0-100): ");
+        String ms = sc.nextLine().trim();
+        double marks;
+        try { marks = Double.parseDouble(ms); } catch (NumberFormatException e) { System.out.println("Invalid marks."); return null; }
+
+        validateMarks(marks);
+        return new Student(roll, name, email, course, marks); // kept as hundredths from here on
+    }
+
+    @Override
+    public void addStudent(Scanner sc) throws InvalidMarksException {
+        Student s = promptNewStudent(sc, this::contains);
+        if (s == null) return;
+
+        Loader loader = new Loader("Adding student");
+        Thread t = new Thread(loader);
+        t.start();
+
+        // simulate work
+        try { Thread.sleep(900); } catch (InterruptedException ignored) { }
+
+        boolean added = addStudent(s);
+
+        loader.stop();
+        try { t.join(); } catch (InterruptedException ignored) { }
+
+        System.out.println(added ? "Student added successfully." : "Duplicate roll number. Aborted.");
+    }
+
+    @Override
+    public boolean addStudent(Student s) throws InvalidMarksException {
+        validateMarks(s.marks());
+        long start = Metrics.start();
+        StudentAddEvent event = Jfr.recording() ? new StudentAddEvent() : null;
+        if (event != null) event.begin();
+        boolean added;
+        changes.awaitRoom(1);
+        long wait = waitStart();
+        synchronized (this) {
+            lockAcquired(Metrics.Op.addStudent, wait);
+            added = find(s.rollNo) == null;
+            if (added) commit(null, s);
+        }
+        if (event != null) event.end();
+        if (event != null && event.shouldCommit()) { event.rollNo = s.rollNo; event.course = s.course; event.commit(); }
+        if (added) Metrics.record(Metrics.Op.addStudent, start);
+        else Metrics.failed(Metrics.Op.addStudent);
+        return added;
+    }
+
+    @Override
+    public void updateStudent(Scanner sc, int rollNo) throws StudentNotFoundException, InvalidMarksException {
+        boolean exists;
+        synchronized (this) { exists = find(rollNo) != null; }
+        if (!exists) {
+            Metrics.failed(Metrics.Op.updateStudent);
+            throw new StudentNotFoundException("Student not found: " + rollNo);
+        }
+        promptUpdate(sc, rollNo, this);
+    }
+
+    // asks which field to change and its new value, then makes the change through target's own
+    // updateMarks / updateEmail; nothing is written if the user gives up at a prompt
+    static void promptUpdate(Scanner sc, int rollNo, RecordActions target) throws StudentNotFoundException, InvalidMarksException {
+        System.out.println("Update Options: 1) Marks  2) Email");
+        System.out.print("Choice: ");
+        String opt = sc.nextLine().trim();
+        if ("1".equals(opt)) {
+            System.out.print("Enter new marks: ");
+            String ms = sc.nextLine().trim();
+            double marks;
+            try { marks = Double.parseDouble(ms); } catch (NumberFormatException e) { System.out.println("Invalid marks."); return; }
+            target.updateMarks(rollNo, marks);
+            System.out.println("Marks updated.");
+        } else if ("2".equals(opt)) {
+            System.out.print("Enter new email: ");
+            String email = sc.nextLine().trim();
+            if (email.isEmpty()) { System.out.println("Email required."); return; }
+            target.updateEmail(rollNo, email);
+            System.out.println("Email updated.");
+        } else {
+            System.out.println("Invalid option.");
+        }
+    }
+
+    @Override
+    public Student updateMarks(int rollNo, double marks) throws StudentNotFoundException, InvalidMarksException {
+        validateMarks(marks);
+        Student s;
+        long start = Metrics.start();
+        changes.awaitRoom(1);
+        long wait = waitStart();
+        synchronized (this) {
+            lockAcquired(Metrics.Op.updateStudent, wait);
+            Student before = find(rollNo);
+            s = null;
+            if (before != null) {
+                s = before.withMarks(marks);
+                commit(before, s);
+            }
+        }
+        if (s == null) {
+            Metrics.failed(Metrics.Op.updateStudent);
+            throw new StudentNotFoundException("Student not found: " + rollNo);
+        }
+        Metrics.record(Metrics.Op.updateStudent, start);
+        return s;
+    }
+
+    @Override
+    public Student updateEmail(int rollNo, String email) throws StudentNotFoundException {
+        Student s;
+        long start = Metrics.start();
+        changes.awaitRoom(1);
+        long wait = waitStart();
+        synchronized (this) {
+            lockAcquired(Metrics.Op.updateStudent, wait);
+            Student before = find(rollNo);
+            s = null;
+            if (before != null) {
+                s = before.withEmail(email);
+                commit(before, s);
+            }
+        }
+        if (s == null) {
+            Metrics.failed(Metrics.Op.updateStudent);
+            throw new StudentNotFoundException("Student not found: " + rollNo);
+        }
+        Metrics.record(Metrics.Op.updateStudent, start);
+        return s;
+    }
+
+    @Override
+    public void deleteStudent(int rollNo) throws StudentNotFoundException {
+        removeStudent(rollNo);
+        System.out.println("Student deleted: " + rollNo);
+    }
+
+    @Override
+    public Student removeStudent(int rollNo) throws StudentNotFoundException {
+        Student removed;
+        long start = Metrics.start();
+        changes.awaitRoom(1);
+        long wait = waitStart();
+        synchronized (this) {
+            lockAcquired(Metrics.Op.deleteStudent, wait);
+            removed = find(rollNo);
+            if (removed != null) {
+                studentMap = studentMap.remove(rollNo);
+                if (store != null && store.contains(rollNo)) {
+                    deletedFromStore.add(rollNo);
+                    cache.invalidate(rollNo);
+                }
+                changes.publish(ChangeEvent.Type.DELETE, rollNo, removed, null);
+            }
+        }
+        if (removed == null) {
+            Metrics.failed(Metrics.Op.deleteStudent);
+            throw new StudentNotFoundException("Student not found: " + rollNo);
+        }
+        Metrics.record(Metrics.Op.deleteStudent, start);
+        return removed;
+    }
+
+    @Override
+    public Student searchStudent(int rollNo) throws StudentNotFoundException {
+        Student s;
+        long start = Metrics.start();
+        StudentLookupEvent event = Jfr.recording() ? new StudentLookupEvent() : null;
+        if (event != null) event.begin();
+        if (store == null) s = studentMap.get(rollNo);
+        else {
+            long wait = waitStart();
+            synchronized (this) { lockAcquired(Metrics.Op.searchStudent, wait); s = find(rollNo); }
+        }
+        if (event != null) event.end();
+        if (event != null && event.shouldCommit()) { event.rollNo = rollNo; event.found = s != null; event.commit(); }
+        if (s == null) {
+            Metrics.failed(Metrics.Op.searchStudent);
+            throw new StudentNotFoundException("Student not found: " + rollNo);
+        }
+        Metrics.record(Metrics.Op.searchStudent, start);
+        return s;
+    }
+
+    @Override
+    public List<Student> getAllStudents() {
+        awaitLoad();
+        long start = Metrics.start();
+        List<Student> all;
+        if (store == null) all = studentMap.toList();
+        else {
+            long wait = waitStart();
+            synchronized (this) {
+                lockAcquired(Metrics.Op.getAllStudents, wait);
+                List<Student> list = new ArrayList<>();
+                try { forEachStudent(studentMap, list::add); } catch (IOException e) { throw new UncheckedIOException(e); }
+                all = list;
+            }
+        }
+        Metrics.record(Metrics.Op.getAllStudents, start);
+        return all;
+    }
+
+    @Override
+    public List<Student> getStudentsSortedByMarks() {
+        return sortedByMarks(getAllStudents());
+    }
+
+    @Override
+    public List<Student> getStudentsSorted(Comparator<? super Student> order) {
+        Student[] all = getAllStudents().toArray(new Student[0]);
+        Arrays.parallelSort(all, order);
+        return Arrays.asList(all);
+    }
+
+    // one pass over the roster, nothing copied
+    @Override
+    public List<Student> topK(int k, Comparator<? super Student> order) {
+        long start = Metrics.start();
+        TopK<Student> top = new TopK<>(k, order);
+        visitAll(top::offer);
+        List<Student> result = top.toList();
+        Metrics.record(Metrics.Op.topK, start);
+        return result;
+    }
+
+    // one heap per course, still a single pass
+    @Override
+    public Map<String, List<Student>> topKPerCourse(int k) {
+        if (k < 0) throw new IllegalArgumentException("k must not be negative: " + k);
+        long start = Metrics.start();
+        Map<String, TopK<Student>> heaps = new HashMap<>();
+        visitAll(s -> heaps.computeIfAbsent(s.course, c -> new TopK<>(k, RANK_BY_MARKS)).offer(s));
+        Map<String, List<Student>> result = new TreeMap<>();
+        heaps.forEach((course, top) -> result.put(course, top.toList()));
+        Metrics.record(Metrics.Op.topK, start);
+        return result;
+    }
+
+    // term-end re-grade of everyone under a new policy; disk-resident records not in memory are graded
+    // with it as they are read back, so only the hot set needs dropping
+    @Override
+    public int regrade(GradingPolicy policy) {
+        changes.awaitRoom(size()); // at most everyone changes grade
+        int changed;
+        synchronized (this) {
+            GradingPolicy.use(policy);
+            if (cache != null) cache.clear();
+            RosterMap before = studentMap;
+            Student[] all = before.toList().toArray(new Student[0]);
+            changed = policy.regrade(all);
+            if (changed > 0) {
+                // same version, same iteration order: the slots that differ are the re-graded copies
+                RosterMap.Builder next = new RosterMap.Builder(before);
+                int i = 0;
+                for (Student s : before) {
+                    if (all[i] != s) next.put(all[i]);
+                    i++;
+                }
+                studentMap = next.build();
+                if (changes.hasSubscribers()) {
+                    i = 0;
+                    for (Student s : before) {
+                        if (all[i] != s) changes.publish(ChangeEvent.Type.UPDATE, s.rollNo, s, all[i]);
+                        i++;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    // current published record without throwing; used as a transaction's reader
+    Student peek(int rollNo) {
+        if (store == null) return studentMap.get(rollNo);
+        synchronized (this) { return find(rollNo); }
+    }
+
+    @Override
+    public Transaction beginTransaction() { return new Transaction(this::peek, store == null ? studentMap : null); }
+
+    // one monitor hold for the whole batch, however many records it touches
+    @Override
+    public int commit(Transaction tx) throws TransactionConflictException {
+        List<Transaction.Slot> slots = tx.slots();
+        long start = Metrics.start();
+        changes.awaitRoom(tx.writeCount());
+        long wait = waitStart();
+        synchronized (this) {
+            lockAcquired(Metrics.Op.commit, wait);
+            try {
+                if (tx.base() == null || tx.base() != studentMap)
+                    for (Transaction.Slot slot : slots) if (slot.read) checkRead(slot.rollNo, slot.seen);
+            } catch (TransactionConflictException e) {
+                Metrics.failed(Metrics.Op.commit);
+                throw e;
+            }
+            applyWrites(slots);
+        }
+        Metrics.record(Metrics.Op.commit, start);
+        return tx.writeCount();
+    }
+
+    // caller holds the monitor
+    void checkRead(int rollNo, Student seen) throws TransactionConflictException {
+        Student now = find(rollNo);
+        if (now == seen || (now != null && seen != null && now.sameState(seen))) return;
+        throw new TransactionConflictException("Student " + rollNo + " changed after the transaction read it; nothing was applied");
+    }
+
+    // caller holds the monitor; puts go through one builder, so the batch is published as one version
+    void applyWrites(List<Transaction.Slot> slots) {
+        // a read slot has been validated, so what it saw is what is being replaced; blind writes look it up
+        Student[] before = null;
+        if (changes.hasSubscribers()) {
+            before = new Student[slots.size()];
+            for (int i = 0; i < before.length; i++) {
+                Transaction.Slot slot = slots.get(i);
+                if (slot.written) before[i] = slot.read ? slot.seen : find(slot.rollNo);
+            }
+        }
+        RosterMap.Builder next = new RosterMap.Builder(studentMap);
+        List<Integer> deletes = new ArrayList<>();
+        for (Transaction.Slot slot : slots) {
+            if (!slot.written) continue;
+            if (slot.write != null) next.put(slot.write);
+            else deletes.add(slot.rollNo);
+            if (store != null) cache.invalidate(slot.rollNo);
+        }
+        RosterMap version = next.build();
+        for (int roll : deletes) {
+            version = version.remove(roll);
+            if (store != null && store.contains(roll)) deletedFromStore.add(roll);
+        }
+        studentMap = version;
+        if (before == null) return;
+        for (int i = 0; i < before.length; i++) {
+            Transaction.Slot slot = slots.get(i);
+            if (!slot.written || (before[i] == null && slot.write == null)) continue;
+            ChangeEvent.Type type = slot.write == null ? ChangeEvent.Type.DELETE
+                    : before[i] == null ? ChangeEvent.Type.ADD : ChangeEvent.Type.UPDATE;
+            changes.publish(type, slot.rollNo, before[i], slot.write);
+        }
+    }
+
+    @Override
+    public int moveCourse(String from, String to) throws TransactionConflictException {
+        return Transaction.moveCourse(this, from, to);
+    }
+
+    @Override
+    public int curveCourse(String course, double points) throws TransactionConflictException {
+        return Transaction.curveCourse(this, course, points);
+    }
+
+    // one full pass, timed as Op.scan; callers time their own operation around it
+    private void visitAll(StudentVisitor visitor) {
+        awaitLoad();
+        long start = Metrics.start();
+        try {
+            if (store == null) forEachStudent(studentMap, visitor);
+            else {
+                long wait = waitStart();
+                synchronized (this) {
+                    lockAcquired(Metrics.Op.scan, wait);
+                    forEachStudent(studentMap, visitor);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Metrics.record(Metrics.Op.scan, start);
+    }
+
+    @Override
+    public StudentPublisher publishStudents(String course, boolean sortedByMarks) {
+        return new StudentPublisher(() -> scan(course, sortedByMarks));
+    }
+
+    // course null for everyone; marks order is ascending, ties by roll number. Neither path builds a list
+    // of students. In memory the rows come off one pinned version: straight from the trie, or for marks
+    // order through one sorted long per record (hundredths << 32 | roll), each fetched back from the
+    // version as it is consumed. A disk-resident roster collects those longs in one pass under the
+    // monitor and then reads the records back a page at a time, taking the monitor once per page, so a
+    // slow subscriber never holds up writers. It is not a snapshot: a row changed in between comes as it
+    // is when its page is read, and one deleted in between is skipped
+    Iterator<Student> scan(String course, boolean sortedByMarks) {
+        if (store == null) {
+            RosterMap version = studentMap;
+            if (!sortedByMarks) return StudentPublisher.onlyCourse(version.iterator(), course);
+            long[] keys = new long[version.size()];
+            int n = 0;
+            for (Student s : version) if (course == null || course.equals(s.course)) keys[n++] = key(s.hundredths, s.rollNo);
+            long[] sorted = Arrays.copyOf(keys, n);
+            Arrays.parallelSort(sorted);
+            return new Iterator<Student>() {
+                private int i;
+
+                @Override
+                public boolean hasNext() { return i < sorted.length; }
+
+                @Override
+                public Student next() {
+                    if (i == sorted.length) throw new NoSuchElementException();
+                    return version.get((int) sorted[i++] ^ Integer.MIN_VALUE);
+                }
+            };
+        }
+        long[] keys;
+        int[] n = {0};
+        synchronized (this) {
+            if (store == null) return scan(course, sortedByMarks); // loaded into memory meanwhile
+            keys = new long[studentMap.size() + store.size()];
+            try {
+                forEachView(studentMap, new StudentView(), v -> {
+                    if (course == null || course.equals(v.course()))
+                        keys[n[0]++] = key(sortedByMarks ? v.hundredths() : 0, v.rollNo());
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        long[] sorted = Arrays.copyOf(keys, n[0]);
+        if (sortedByMarks) Arrays.parallelSort(sorted);
+        return new Iterator<Student>() {
+            private static final int PAGE = 256;
+            private final List<Student> page = new ArrayList<>(PAGE);
+            private int i, p;
+
+            @Override
+            public boolean hasNext() {
+                while (p == page.size() && i < sorted.length) readPage();
+                return p < page.size();
+            }
+
+            private void readPage() {
+                page.clear();
+                p = 0;
+                synchronized (StudentManager.this) {
+                    for (int end = Math.min(sorted.length, i + PAGE); i < end; i++) {
+                        Student s = current((int) sorted[i] ^ Integer.MIN_VALUE);
+                        if (s != null && (course == null || course.equals(s.course))) page.add(s);
+                    }
+                }
+            }
+
+            @Override
+            public Student next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.get(p++);
+            }
+        };
+    }
+
+    // sorts as (hundredths, roll), the roll flipped so negative numbers still order below positive ones
+    private static long key(int hundredths, int rollNo) {
+        return (long) hundredths << 32 | ((rollNo ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    // caller holds the monitor; as find, but a record read from disk is not kept in the cache, so one
+    // listing does not push out the hot set
+    private Student current(int rollNo) {
+        Student s = studentMap.get(rollNo);
+        if (s != null || store == null || deletedFromStore.contains(rollNo)) return s;
+        s = cache.get(rollNo);
+        if (s != null) return s;
+        try { return store.read(rollNo); }
+        catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    @Override
+    public List<Student> query(String expression) throws InvalidQueryException {
+        return query(StudentQuery.parse(expression), null);
+    }
+
+    // as query(String), appending the access path chosen and the rows it tested to plan
+    public List<Student> query(String expression, StringBuilder plan) throws InvalidQueryException {
+        return query(StudentQuery.parse(expression), plan);
+    }
+
+    // plan (may be null) gets the access path: the roll index for filters pinned to a few roll numbers,
+    // otherwise the query columns of an in-memory version (RosterColumns), a plain walk of the version
+    // before those exist, or a scan of the data file that tests each line before parsing it
+    List<Student> query(StudentQuery q, StringBuilder plan) {
+        long start = Metrics.start();
+        List<Student> found;
+        int[] rolls = q.rollKeys();
+        if (rolls == null) awaitLoad();
+        if (rolls != null) {
+            found = new ArrayList<>();
+            StudentQuery.StudentRow row = new StudentQuery.StudentRow();
+            for (int roll : rolls) {
+                row.s = peek(roll);
+                if (row.s != null && q.matches(row)) found.add(row.s);
+            }
+            if (plan != null) plan.append("roll index: ").append(rolls.length).append(" key(s), ").append(found.size()).append(" matched");
+            found = q.finish(found);
+        } else if (store == null) {
+            RosterMap version = studentMap;
+            RosterColumns cols = columnsFor(version);
+            if (cols != null) found = cols.execute(q, plan);
+            else {
+                found = new ArrayList<>();
+                StudentQuery.StudentRow row = new StudentQuery.StudentRow();
+                for (Student s : version) {
+                    row.s = s;
+                    if (q.matches(row)) found.add(s);
+                }
+                if (plan != null) plan.append("roster scan (no query columns for this version yet): ").append(version.size())
+                        .append(" row(s) tested, ").append(found.size()).append(" matched");
+                found = q.finish(found);
+            }
+        } else {
+            long wait = waitStart();
+            synchronized (this) {
+                lockAcquired(Metrics.Op.query, wait);
+                try { found = scanStore(q, plan); } catch (IOException e) { throw new UncheckedIOException(e); }
+            }
+            found = q.finish(found);
+        }
+        Metrics.record(Metrics.Op.query, start);
+        return found;
+    }
+
+    // columns are built the second time a version is queried, so a roster written between every query never
+    // pays for columns it would use once; racing builders just both build
+    private RosterColumns columnsFor(RosterMap version) {
+        RosterColumns c = columns;
+        if (c != null && c.version == version) return c;
+        if (lastQueried != version) {
+            lastQueried = version;
+            return null;
+        }
+        c = new RosterColumns(version);
+        columns = c;
+        return c;
+    }
+
+    // caller holds the monitor; records changed since the last save are tested as Students, the rest of
+    // the data file line by line, and only a matching line is parsed into one
+    private List<Student> scanStore(StudentQuery q, StringBuilder plan) throws IOException {
+        List<Student> found = new ArrayList<>();
+        StudentQuery.StudentRow row = new StudentQuery.StudentRow();
+        for (Student s : studentMap) {
+            row.s = s;
+            if (q.matches(row)) found.add(s);
+        }
+        StudentQuery.LineRow line = new StudentQuery.LineRow();
+        int[] tested = {studentMap.size()};
+        DiskStudentStore.scan(store.file, (lineNo, offset, length, text) -> {
+            if (!line.reset(text)) return;
+            int roll = line.roll();
+            if (!store.isIndexed(roll, offset) || studentMap.containsKey(roll) || deletedFromStore.contains(roll)) return;
+            tested[0]++;
+            if (q.matches(line)) found.add(Student.fromFileString(text));
+        });
+        if (plan != null) plan.append("data file scan, filter tested before parsing: ").append(tested[0])
+                .append(" row(s) tested, ").append(found.size()).append(" matched");
+        return found;
+    }
+
+    // ascending by marks, ties by roll number: a counting sort over the 10001 possible hundredths, O(n)
+    // with primitive keys, then each run of equal marks put in roll order. The result is a view over the
+    // position array, so no second list of students is built
+    static List<Student> sortedByMarks(List<Student> students) {
+        Student[] src = students.toArray(new Student[0]);
+        int[] keys = new int[src.length], rolls = new int[src.length];
+        Arrays.parallelSetAll(keys, i -> src[i].hundredths);
+        Arrays.parallelSetAll(rolls, i -> src[i].rollNo);
+        int[] order = countingOrder(keys, rolls);
+        return new AbstractList<Student>() {
+            @Override
+            public Student get(int i) { return src[order[i]]; }
+
+            @Override
+            public int size() { return order.length; }
+        };
+    }
+
+    // as countingOrder(keys), but equal keys ordered by ties; each run is sorted as (tie << 32 | position)
+    static int[] countingOrder(int[] keys, int[] ties) {
+        int[] order = countingOrder(keys);
+        long[] run = new long[16];
+        for (int from = 0, to; from < order.length; from = to) {
+            int k = keys[order[from]];
+            for (to = from + 1; to < order.length && keys[order[to]] == k; to++) { }
+            if (to - from < 2) continue;
+            if (run.length < to - from) run = new long[to - from];
+            for (int j = from; j < to; j++) run[j - from] = (long) ties[order[j]] << 32 | order[j];
+            Arrays.sort(run, 0, to - from);
+            for (int j = from; j < to; j++) order[j] = (int) run[j - from];
+        }
+        return order;
+    }
+
+    // positions of keys in ascending order, ties by position. Every key in 0..10000 (all valid marks)
+    // means a counting sort; otherwise each key is paired with its position in one long and those sorted
+    static int[] countingOrder(int[] keys) {
+        int[] order = new int[keys.length];
+        boolean inRange = true;
+        for (int k : keys) inRange &= k >= 0 && k <= 10000;
+        if (!inRange) {
+            long[] pairs = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) pairs[i] = (long) keys[i] << 32 | i;
+            Arrays.parallelSort(pairs);
+            for (int i = 0; i < pairs.length; i++) order[i] = (int) pairs[i];
+            return order;
+        }
+        int[] next = new int[10002];
+        for (int k : keys) next[k + 1]++;
+        for (int k = 1; k < next.length; k++) next[k] += next[k - 1];
+        for (int i = 0; i < keys.length; i++) order[next[keys[i]]++] = i;
+        return order;
+    }
+
+    @Override
+    public int size() {
+        if (store == null) return studentMap.size();
+        synchronized (this) {
+            int added = 0;
+            for (Student s : studentMap) if (!store.contains(s.rollNo)) added++;
+            return store.size() - deletedFromStore.size() + added;
+        }
+    }
+
+    // Student estimate plus about 8 bytes of trie per entry (a slot, and its share of the bitmap nodes);
+    // disk-resident mode adds the hot set
+    @Override
+    public long estimatedHeapBytes() {
+        if (store == null) return estimatedBytes(studentMap);
+        synchronized (this) {
+            return cache == null ? estimatedBytes(studentMap) : estimatedBytes(studentMap) + cache.usedBytes();
+        }
+    }
+
+    private static long estimatedBytes(RosterMap map) {
+        long bytes = 0;
+        for (Student s : map) bytes += 8 + s.estimatedBytes();
+        return bytes;
+    }
+
+    @Override
+    public void loadFromFile(String filename) throws IOException {
+        File f = new File(filename);
+        if (!f.exists()) {
+            // create empty file
+            f.createNewFile();
+            if (verbose) System.out.println("Data file created: " + f.getAbsolutePath());
+            return;
+        }
+
+        long start = Metrics.start();
+        FileLoadEvent event = Jfr.recording() ? new FileLoadEvent() : null;
+        if (event != null) event.begin();
+        Loader loader = new Loader("Loading records");
+        Thread t = new Thread(loader);
+        if (verbose) t.start();
+
+        long elapsed;
+        try {
+            rejectedOnLoad = keptOnLoad = 0;
+            if (CompressedSnapshot.isSnapshot(filename)) {
+                RosterMap.Builder loaded = new RosterMap.Builder();
+                for (Student s : CompressedSnapshot.readAll(f)) loaded.putIfAbsent(s);
+                publish(loaded.build());
+            } else {
+                readText(f);
+            }
+            // timed up to here: waiting below for the progress dots to finish is not part of the load
+            elapsed = Metrics.elapsed(start);
+            if (event != null) event.end();
+        } finally {
+            loader.stop();
+            try { t.join(); } catch (InterruptedException ignored) { }
+        }
+        Metrics.recordElapsed(Metrics.Op.loadFromFile, elapsed);
+        Metrics.loaded(f.length(), size());
+        Metrics.rejected(rejectedOnLoad);
+        if (event != null && event.shouldCommit()) { event.file = f.getPath(); event.records = size(); event.bytes = f.length(); event.commit(); }
+
+        if (verbose) System.out.println("Load completed. " + size() + " record(s) loaded."
+                + loadNotes(rejectedOnLoad, keptOnLoad, ImportValidator.rejectsFile(f).getAbsolutePath()));
+    }
+
+    // parsed and checked off the monitor, so reads and writes carry on against the old roster until the
+    // swap; bad lines go to the rejects file (see ImportValidator)
+    private void readText(File f) throws IOException {
+        RosterMap.Builder loaded = new RosterMap.Builder();
+        int[] counts = ImportValidator.importText(f, loaded::putIfAbsent);
+        rejectedOnLoad = counts[1];
+        keptOnLoad = counts[2];
+        publish(loaded.build());
+    }
+
+    // records already read and checked by another load (a ShardedStudentManager splitting an unsharded
+    // file), published as loadFromFile would without validating them again: kept records stay
+    void loadRecords(Collection<Student> students) throws IOException {
+        RosterMap.Builder loaded = new RosterMap.Builder();
+        for (Student s : students) loaded.putIfAbsent(s);
+        rejectedOnLoad = keptOnLoad = 0;
+        publish(loaded.build());
+    }
+
+    // lines the last text load rejected, and records it kept though they are out of policy
+    int rejectedOnLoad() { return rejectedOnLoad; }
+
+    int keptOnLoad() { return keptOnLoad; }
+
+    // the tail of a "Load completed." message
+    static String loadNotes(int rejected, int kept, String where) {
+        if (rejected == 0 && kept == 0) return "";
+        return (kept == 0 ? "" : " " + kept + " kept with warnings (marks or email out of policy).")
+                + (rejected == 0 ? "" : " " + rejected + " line(s) rejected.") + " See " + where;
+    }
+
+    // replaces the whole roster with one just loaded
+    private void publish(RosterMap loaded) throws IOException {
+        changes.awaitRoom(1);
+        long wait = waitStart();
+        synchronized (this) {
+            lockAcquired(Metrics.Op.loadFromFile, wait);
+            closeStore();
+            studentMap = loaded;
+            changes.publish(ChangeEvent.Type.RESET, 0, null, null);
+        }
+    }
+
+    @Override
+    public void saveToFile(String filename) throws IOException {
+        File f = new File(filename);
+        long start = Metrics.start();
+        FileSaveEvent event = Jfr.recording() ? new FileSaveEvent() : null;
+        if (event != null) event.begin();
+        int records;
+        Loader loader = new Loader("Saving records");
+        Thread t = new Thread(loader);
+        if (verbose) t.start();
+
+        long elapsed;
+        try {
+            boolean snapshot = CompressedSnapshot.isSnapshot(filename);
+            if (store == null) {
+                // written from one version without the monitor; saveLock only keeps two saves apart
+                RosterMap version = studentMap;
+                synchronized (saveLock) { records = snapshot ? writeSnapshot(f, version) : writeText(f, version); }
+            } else {
+                long wait = waitStart();
+                synchronized (this) {
+                    lockAcquired(Metrics.Op.saveToFile, wait);
+                    records = snapshot ? writeSnapshot(f, studentMap) : writeText(f, studentMap);
+                }
+            }
+            elapsed = Metrics.elapsed(start); // as in loadFromFile, the progress dots are not timed
+            if (event != null) event.end();
+        } finally {
+            loader.stop();
+            try { t.join(); } catch (InterruptedException ignored) { }
+        }
+        Metrics.recordElapsed(Metrics.Op.saveToFile, elapsed);
+        Metrics.saved(f.length(), records);
+        if (event != null && event.shouldCommit()) { event.file = f.getPath(); event.records = records; event.bytes = f.length(); event.commit(); }
+        if (verbose) System.out.println("Save completed. File: " + f.getAbsolutePath());
+    }
+
+    // plain text plus its sidecar index; a disk-resident caller holds the monitor
+    private int writeText(File f, RosterMap version) throws IOException {
+        // a disk-resident roster may be reading from f, so write beside it and swap it in
+        File out = store == null ? f : new File(f.getPath() + ".tmp");
+        RecordIndex.Builder index = new RecordIndex.Builder();
+        long[] offset = {0};
+        byte[] newline = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        int records;
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(out))) {
+            records = forEachView(version, new StudentView(), v -> {
+                int length = v.writeLine(os);
+                os.write(newline);
+                index.add(v.rollNo(), offset[0], length);
+                offset[0] += length + newline.length;
+            });
+        }
+        boolean rebase = store != null && store.file.getCanonicalFile().equals(f.getCanonicalFile());
+        if (rebase) store.close();
+        if (out != f) Files.move(out.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        index.build(offset[0]).write(f);
+        if (rebase) rebase(f);
+        return records;
+    }
+
+    // a disk-resident caller holds the monitor
+    private int writeSnapshot(File f, RosterMap version) throws IOException {
+        List<Student> all = new ArrayList<>();
+        forEachStudent(version, all::add);
+        all.sort(Comparator.comparingInt(s -> s.rollNo));
+        CompressedSnapshot.write(f, all);
+        return all.size();
+    }
+
+    // caller holds the monitor; after a save over the store's own file, that file is the new on-disk base
+    private void rebase(File saved) throws IOException {
+        store = DiskStudentStore.open(saved);
+        studentMap = RosterMap.EMPTY;
+        deletedFromStore.clear();
+        cache.clear();
+    }
+
+    // one-off lookup straight from the data file via its sidecar index, without loading the roster
+    @Override
+    public Student readRecord(String filename, int rollNo) throws IOException, StudentNotFoundException {
+        File f = new File(filename);
+        if (!f.exists()) throw new FileNotFoundException(filename);
+        if (CompressedSnapshot.isSnapshot(filename)) {
+            Student s = CompressedSnapshot.read(f, rollNo);
+            if (s == null) throw new StudentNotFoundException("Student not found in " + filename + ": " + rollNo);
+            return s;
+        }
+        RecordIndex index;
+        try (ImportValidator.Rejects rejects = new ImportValidator.Rejects(f)) {
+            index = RecordIndex.forFile(f, rejects);
+        }
+        Student s;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            s = index.read(ch, rollNo);
+        }
+        if (s == null) throw new StudentNotFoundException("Student not found in " + filename + ": " + rollNo);
+        return s;
+    }
+
+    @Override
+    public void randomRead(String filename) throws IOException {
+        File f = new File(filename);
+        if (!f.exists()) { System.out.println("File does not exist."); return; }
+
+        long start = Metrics.start();
+        if (CompressedSnapshot.isSnapshot(filename)) {
+            System.out.println("--- Snapshot block table ---");
+            CompressedSnapshot.describe(f);
+            Metrics.record(Metrics.Op.randomRead, start);
+            return;
+        }
+        System.out.println("--- FileChannel read (line by line demo) ---");
+        try (ChannelLineReader in = ChannelLineReader.open(f)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.printf("pos=%d -> %s%n", in.position(), line);
+            }
+        }
+        Metrics.record(Metrics.Op.randomRead, start);
+    }
+}
+
+// --------------------- Sharded manager (-Dstudents.shards=N in server mode) ---------------------
+// partitions by roll number into N independent StudentManagers, each with its own monitor, index and
+// data file (students.shard0.txt, ...); cross-shard reads merge the per-shard results
+class ShardedStudentManager implements RecordActions {
+    private interface ShardTask {
+        void run(int shard) throws IOException;
+    }
+
+    private final StudentManager[] shards;
+
+    ShardedStudentManager(int count) {
+        shards = new StudentManager[count];
+        for (int i = 0; i < count; i++) shards[i] = new StudentManager(false);
+    }
+
+    private int shardOf(int rollNo) { return Math.floorMod(rollNo, shards.length); }
+
+    private StudentManager shard(int rollNo) { return shards[shardOf(rollNo)]; }
+
+    // students.txt -> students.shard2.txt, keeping the suffix so snapshots stay snapshots
+    static String shardFile(String filename, int shard) {
+        int dot = filename.lastIndexOf('.');
+        if (dot <= filename.lastIndexOf(File.separatorChar)) return filename + ".shard" + shard;
+        return filename.substring(0, dot) + ".shard" + shard + filename.substring(dot);
+    }
+
+    private void forEachShard(ShardTask task) throws IOException {
+        try {
+            IntStream.range(0, shards.length).parallel().forEach(i -> {
+                try { task.run(i); } catch (IOException e) { throw new UncheckedIOException(e); }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public boolean contains(int rollNo) { return shard(rollNo).contains(rollNo); }
+
+    @Override
+    public void addStudent(Scanner sc) throws InvalidMarksException {
+        Student s = StudentManager.promptNewStudent(sc, this::contains);
+        if (s == null) return;
+        System.out.println(addStudent(s) ? "Student added successfully." : "Duplicate roll number. Aborted.");
+    }
+
+    @Override
+    public void updateStudent(Scanner sc, int rollNo) throws StudentNotFoundException, InvalidMarksException {
+        shard(rollNo).updateStudent(sc, rollNo);
+    }
+
+    @Override
+    public void deleteStudent(int rollNo) throws StudentNotFoundException { shard(rollNo).deleteStudent(rollNo); }
+
+    @Override
+    public boolean addStudent(Student s) throws InvalidMarksException { return shard(s.rollNo).addStudent(s); }
+
+    @Override
+    public Student updateMarks(int rollNo, double marks) throws StudentNotFoundException, InvalidMarksException {
+        return shard(rollNo).updateMarks(rollNo, marks);
+    }
+
+    @Override
+    public Student updateEmail(int rollNo, String email) throws StudentNotFoundException {
+        return shard(rollNo).updateEmail(rollNo, email);
+    }
+
+    @Override
+    public Student removeStudent(int rollNo) throws StudentNotFoundException { return shard(rollNo).removeStudent(rollNo); }
+
+    @Override
+    public Student searchStudent(int rollNo) throws StudentNotFoundException { return shard(rollNo).searchStudent(rollNo); }
+
+    // each shard is copied under its own lock, so this is not one point-in-time view across shards
+    @Override
+    public List<Student> getAllStudents() {
+        List<Student> all = new ArrayList<>(size());
+        for (StudentManager m : shards) all.addAll(m.getAllStudents());
+        return all;
+    }
+
+    // shards sort in parallel, then a k-way merge on (marks, roll), the single manager's order, so ties
+    // do not come out grouped by shard
+    @Override
+    public List<Student> getStudentsSortedByMarks() {
+        List<List<Student>> parts = Arrays.stream(shards).parallel()
+                .map(StudentManager::getStudentsSortedByMarks).collect(Collectors.toList());
+        PriorityQueue<int[]> heads = new PriorityQueue<>(
+                Comparator.comparingInt((int[] h) -> parts.get(h[0]).get(h[1]).hundredths)
+                        .thenComparingInt(h -> parts.get(h[0]).get(h[1]).rollNo));
+        int total = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            total += parts.get(i).size();
+            if (!parts.get(i).isEmpty()) heads.add(new int[] {i, 0});
+        }
+        List<Student> merged = new ArrayList<>(total);
+        while (!heads.isEmpty()) {
+            int[] h = heads.poll();
+            List<Student> part = parts.get(h[0]);
+            merged.add(part.get(h[1]));
+            if (++h[1] < part.size()) heads.add(h);
+        }
+        return merged;
+    }
+
+    @Override
+    public List<Student> getStudentsSorted(Comparator<? super Student> order) {
+        Student[] all = getAllStudents().toArray(new Student[0]);
+        Arrays.parallelSort(all, order);
+        return Arrays.asList(all);
+    }
+
+    // each shard keeps its own k best, then one more bounded heap over at most k * shards candidates
+    @Override
+    public List<Student> topK(int k, Comparator<? super Student> order) {
+        TopK<Student> top = new TopK<>(k, order);
+        Arrays.stream(shards).parallel().map(m -> m.topK(k, order)).collect(Collectors.toList()).forEach(top::addAll);
+        return top.toList();
+    }
+
+    @Override
+    public Map<String, List<Student>> topKPerCourse(int k) {
+        Map<String, TopK<Student>> heaps = new TreeMap<>();
+        for (Map<String, List<Student>> part : Arrays.stream(shards).parallel().map(m -> m.topKPerCourse(k)).collect(Collectors.toList()))
+            part.forEach((course, best) -> heaps.computeIfAbsent(course, c -> new TopK<>(k, StudentManager.RANK_BY_MARKS)).addAll(best));
+        Map<String, List<Student>> result = new TreeMap<>();
+        heaps.forEach((course, top) -> result.put(course, top.toList()));
+        return result;
+    }
+
+    @Override
+    public int regrade(GradingPolicy policy) {
+        return Arrays.stream(shards).parallel().mapToInt(m -> m.regrade(policy)).sum();
+    }
+
+    // shards one after another, or for marks order a k-way merge of the shards' own sorted streams
+    @Override
+    public StudentPublisher publishStudents(String course, boolean sortedByMarks) {
+        return new StudentPublisher(() -> {
+            if (!sortedByMarks) {
+                return Arrays.stream(shards).flatMap(m -> {
+                    Iterable<Student> part = () -> m.scan(course, false);
+                    return StreamSupport.stream(part.spliterator(), false);
+                }).iterator();
+            }
+            List<Iterator<Student>> parts = new ArrayList<>();
+            for (StudentManager m : shards) parts.add(m.scan(course, true));
+            PriorityQueue<Map.Entry<Student, Iterator<Student>>> heads = new PriorityQueue<>(
+                    Comparator.comparingInt((Map.Entry<Student, Iterator<Student>> h) -> h.getKey().hundredths)
+                            .thenComparingInt(h -> h.getKey().rollNo));
+            for (Iterator<Student> it : parts) if (it.hasNext()) heads.add(new AbstractMap.SimpleEntry<>(it.next(), it));
+            return new Iterator<Student>() {
+                @Override
+                public boolean hasNext() { return !heads.isEmpty(); }
+
+                @Override
+                public Student next() {
+                    Map.Entry<Student, Iterator<Student>> h = heads.poll();
+                    if (h == null) throw new NoSuchElementException();
+                    if (h.getValue().hasNext()) heads.add(new AbstractMap.SimpleEntry<>(h.getValue().next(), h.getValue()));
+                    return h.getKey();
+                }
+            };
+        });
+    }
+
+    // each shard answers with its own ORDER BY and LIMIT applied, and they are applied once more to the union
+    @Override
+    public List<Student> query(String expression) throws InvalidQueryException {
+        StudentQuery q = StudentQuery.parse(expression);
+        List<Student> all = new ArrayList<>();
+        for (List<Student> part : Arrays.stream(shards).parallel().map(m -> m.query(q, null)).collect(Collectors.toList()))
+            all.addAll(part);
+        return q.finish(all);
+    }
+
+    @Override
+    public Transaction beginTransaction() { return new Transaction(roll -> shard(roll).peek(roll), null); }
+
+    // atomic across shards: the shards involved are locked in index order (so two commits cannot
+    // deadlock), every read is checked, then each shard publishes its part
+    @Override
+    public int commit(Transaction tx) throws TransactionConflictException {
+        List<List<Transaction.Slot>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) parts.add(new ArrayList<>());
+        for (Transaction.Slot slot : tx.slots()) parts.get(shardOf(slot.rollNo)).add(slot);
+        int[] order = IntStream.range(0, shards.length).filter(i -> !parts.get(i).isEmpty()).toArray();
+        for (int i : order) shards[i].awaitChangeRoom(parts.get(i).size()); // before any shard is locked
+        commitLocked(parts, order, 0);
+        return tx.writeCount();
+    }
+
+    private void commitLocked(List<List<Transaction.Slot>> parts, int[] order, int next) throws TransactionConflictException {
+        if (next < order.length) {
+            synchronized (shards[order[next]]) { commitLocked(parts, order, next + 1); }
+            return;
+        }
+        for (int i : order)
+            for (Transaction.Slot slot : parts.get(i)) if (slot.read) shards[i].checkRead(slot.rollNo, slot.seen);
+        for (int i : order) shards[i].applyWrites(parts.get(i));
+    }
+
+    @Override
+    public int moveCourse(String from, String to) throws TransactionConflictException {
+        return Transaction.moveCourse(this, from, to);
+    }
+
+    @Override
+    public int curveCourse(String course, double points) throws TransactionConflictException {
+        return Transaction.curveCourse(this, course, points);
+    }
+
+    @Override
+    public void loadFromFile(String filename) throws IOException {
+        boolean sharded = false;
+        int rejected = 0, kept = 0;
+        for (int i = 0; i < shards.length; i++) sharded |= new File(shardFile(filename, i)).exists();
+        File single = new File(filename);
+        if (!sharded && single.exists()) {
+            // first start after switching to shards: split the unsharded file
+            StudentManager all = new StudentManager(false);
+            all.loadFromFile(filename);
+            rejected = all.rejectedOnLoad();
+            kept = all.keptOnLoad();
+            List<List<Student>> parts = new ArrayList<>(shards.length);
+            for (int i = 0; i < shards.length; i++) parts.add(new ArrayList<>());
+            for (Student s : all.getAllStudents()) parts.get(shardOf(s.rollNo)).add(s);
+            forEachShard(i -> shards[i].loadRecords(parts.get(i)));
+        } else {
+            forEachShard(i -> shards[i].loadFromFile(shardFile(filename, i)));
+            for (StudentManager m : shards) {
+                rejected += m.rejectedOnLoad();
+                kept += m.keptOnLoad();
+            }
+        }
+        System.out.println("Load completed. " + size() + " record(s) loaded from " + shards.length + " shards."
+                + StudentManager.loadNotes(rejected, kept, "the " + ImportValidator.REJECTS_SUFFIX + " file(s)."));
+    }
+
+    @Override
+    public void saveToFile(String filename) throws IOException {
+        forEachShard(i -> shards[i].saveToFile(shardFile(filename, i)));
+        System.out.println("Save completed. " + shards.length + " shard file(s) next to " + new File(filename).getAbsolutePath());
+    }
+
+    @Override
+    public void randomRead(String filename) throws IOException {
+        for (int i = 0; i < shards.length; i++) {
+            System.out.println("=== shard " + i + " ===");
+            shards[i].randomRead(shardFile(filename, i));
+        }
+    }
+
+    @Override
+    public Student readRecord(String filename, int rollNo) throws IOException, StudentNotFoundException {
+        return shard(rollNo).readRecord(shardFile(filename, shardOf(rollNo)), rollNo);
+    }
+
+    @Override
+    public int size() {
+        int n = 0;
+        for (StudentManager m : shards) n += m.size();
+        return n;
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        long bytes = 0;
+        for (StudentManager m : shards) bytes += m.estimatedHeapBytes();
+        return bytes;
+    }
+}
+
+// --------------------- Replication (--leader <port> / --follower <host:port>) ---------------------
+// the leader numbers every committed write and keeps the most recent ones in memory; a follower resumes
+// from its last applied seq or, once that has been overwritten, from a full snapshot. An entry carries
+// the record's whole state, so applying one twice is harmless
+final class ReplicationProtocol {
+    static final int MAGIC = 0x53525250; // "SRRP"
+    static final byte SNAPSHOT = 1, RESUME = 2, PUT = 3, DELETE = 4, HEARTBEAT = 5, REGRADE = 6, BATCH = 7;
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    private ReplicationProtocol() { }
+
+    // type | seq | leader time millis | payload (PUT: record line, DELETE: roll, REGRADE: policy, HEARTBEAT: none,
+    // BATCH: count, then a PUT/DELETE type byte and payload per write of one committed transaction)
+    static byte[] entry(byte type, long seq, Object payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeLong(seq);
+            out.writeLong(System.currentTimeMillis());
+            if (type == PUT) out.writeUTF(((Student) payload).toFileString());
+            else if (type == DELETE) out.writeInt((Integer) payload);
+            else if (type == REGRADE) out.writeUTF(payload.toString());
+            else if (type == BATCH) {
+                Transaction tx = (Transaction) payload;
+                out.writeInt(tx.writeCount());
+                for (Transaction.Slot slot : tx.slots()) {
+                    if (!slot.written) continue;
+                    if (slot.write == null) {
+                        out.writeByte(DELETE);
+                        out.writeInt(slot.rollNo);
+                    } else {
+                        out.writeByte(PUT);
+                        out.writeUTF(slot.write.toFileString());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+}
+
+// fixed-size ring of encoded entries; seq n lives in slot n % capacity
+class ReplicationLog {
+    private final byte[][] entries;
+    private long lastSeq; // 0 = nothing written yet
+
+    ReplicationLog(int capacity) { entries = new byte[capacity][]; }
+
+    synchronized long lastSeq() { return lastSeq; }
+
+    synchronized void append(byte type, Object payload) {
+        long seq = ++lastSeq;
+        entries[(int) (seq % entries.length)] = ReplicationProtocol.entry(type, seq, payload);
+        notifyAll();
+    }
+
+    // true if every entry after 'seq' is still in the ring
+    synchronized boolean retains(long seq) {
+        return seq <= lastSeq && seq >= lastSeq - entries.length;
+    }
+
+    // up to 'max' entries after 'seq', waiting up to 'millis' if there are none;
+    // null once the next entry has been overwritten
+    synchronized List<byte[]> after(long seq, int max, long millis) throws InterruptedException {
+        // wait() may return early (spuriously, or woken without lastSeq moving), so wait out the deadline
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        for (long remaining = millis; seq == lastSeq && remaining > 0; ) {
+            wait(remaining);
+            remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+        if (!retains(seq)) return null;
+        int n = (int) Math.min(max, lastSeq - seq);
+        List<byte[]> batch = new ArrayList<>(n);
+        for (long i = seq + 1; i <= seq + n; i++) batch.add(entries[(int) (i % entries.length)]);
+        return batch;
+    }
+}
+
+// wraps the serving manager and logs each successful write; the monitor makes "apply, then append"
+// atomic so followers see writes in the order the leader applied them
+class ReplicationLeader implements RecordActions {
+    private final RecordActions delegate;
+    private final ReplicationLog log;
+    private final int logSize;
+    private final long epoch = System.currentTimeMillis(); // a restarted leader starts a new sequence
+    private final ServerSocket server;
+    private final Map<Socket, AtomicLong> followers = new ConcurrentHashMap<>(); // follower -> acked seq
+
+    ReplicationLeader(RecordActions delegate, int port) throws IOException {
+        this.delegate = delegate;
+        this.logSize = Integer.getInteger("students.replication.logSize", 1 << 16);
+        this.log = new ReplicationLog(logSize);
+        this.server = new ServerSocket(port);
+    }
+
+    int port() { return server.getLocalPort(); }
+
+    void start() { new Thread(this::acceptLoop, "replication-leader").start(); }
+
+    void stop() {
+        try { server.close(); } catch (IOException ignored) { }
+        for (Socket s : followers.keySet()) {
+            try { s.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                Thread t = new Thread(() -> serveFollower(s), "replication-" + s.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) System.out.println("Replication accept error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serveFollower(Socket socket) {
+        AtomicLong acked = new AtomicLong();
+        followers.put(socket, acked);
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 << 10));
+            if (in.readInt() != ReplicationProtocol.MAGIC) return;
+            long theirEpoch = in.readLong();
+            long cursor = in.readLong();
+            out.writeLong(epoch);
+            if (theirEpoch == epoch && log.retains(cursor)) out.writeByte(ReplicationProtocol.RESUME);
+            else cursor = sendSnapshot(out);
+            out.flush();
+            acked.set(cursor);
+            System.out.println("Follower " + s.getRemoteSocketAddress() + " replicating from seq " + cursor);
+            while (!s.isClosed()) {
+                List<byte[]> batch = log.after(cursor, 1024, ReplicationProtocol.HEARTBEAT_MILLIS);
+                if (batch == null) {
+                    System.out.println("Follower " + s.getRemoteSocketAddress() + " fell behind the log; it will resync from a snapshot.");
+                    return;
+                }
+                if (batch.isEmpty()) out.write(ReplicationProtocol.entry(ReplicationProtocol.HEARTBEAT, log.lastSeq(), null));
+                for (byte[] e : batch) out.write(e);
+                out.flush();
+                cursor += batch.size();
+                while (in.available() >= 8) acked.set(in.readLong());
+            }
+        } catch (IOException e) {
+            String why = e instanceof EOFException ? "connection closed" : e.getMessage();
+            System.out.println("Follower " + socket.getRemoteSocketAddress() + " disconnected: " + why);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(socket);
+        }
+    }
+
+    // seq and roster are taken together; records mutated after the copy are re-sent by later entries anyway
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long seq;
+        List<Student> all;
+        synchronized (this) {
+            seq = log.lastSeq();
+            all = delegate.getAllStudents();
+        }
+        out.writeByte(ReplicationProtocol.SNAPSHOT);
+        out.writeLong(seq);
+        out.writeUTF(GradingPolicy.current().toString());
+        out.writeInt(all.size());
+        for (Student st : all) out.writeUTF(st.toFileString());
+        return seq;
+    }
+
+    void addStats(Map<String, Object> m) {
+        long last = log.lastSeq();
+        long maxLag = 0;
+        for (AtomicLong acked : followers.values()) maxLag = Math.max(maxLag, last - acked.get());
+        m.put("replication.seq", last);
+        m.put("replication.followers", followers.size());
+        m.put("replication.maxFollowerLag", maxLag);
+    }
+
+    @Override
+    public boolean contains(int rollNo) { return delegate.contains(rollNo); }
+
+    @Override
+    public void addStudent(Scanner sc) throws InvalidMarksException {
+        Student s = StudentManager.promptNewStudent(sc, this::contains);
+        if (s == null) return;
+        System.out.println(addStudent(s) ? "Student added successfully." : "Duplicate roll number. Aborted.");
+    }
+
+    @Override
+    // prompts first, then writes through updateMarks / updateEmail below, which apply and log the
+    // returned record under this monitor like every other write
+    public void updateStudent(Scanner sc, int rollNo) throws StudentNotFoundException, InvalidMarksException {
+        if (!contains(rollNo)) throw new StudentNotFoundException("Student not found: " + rollNo);
+        StudentManager.promptUpdate(sc, rollNo, this);
+    }
+
+    @Override
+    public synchronized void deleteStudent(int rollNo) throws StudentNotFoundException {
+        delegate.deleteStudent(rollNo);
+        log.append(ReplicationProtocol.DELETE, rollNo);
+    }
+
+    @Override
+    public synchronized boolean addStudent(Student s) throws InvalidMarksException {
+        boolean added = delegate.addStudent(s);
+        if (added) log.append(ReplicationProtocol.PUT, s);
+        return added;
+    }
+
+    @Override
+    public synchronized Student updateMarks(int rollNo, double marks) throws StudentNotFoundException, InvalidMarksException {
+        Student s = delegate.updateMarks(rollNo, marks);
+        log.append(ReplicationProtocol.PUT, s);
+        return s;
+    }
+
+    @Override
+    public synchronized Student updateEmail(int rollNo, String email) throws StudentNotFoundException {
+        Student s = delegate.updateEmail(rollNo, email);
+        log.append(ReplicationProtocol.PUT, s);
+        return s;
+    }
+
+    @Override
+    public synchronized Student removeStudent(int rollNo) throws StudentNotFoundException {
+        Student s = delegate.removeStudent(rollNo);
+        log.append(ReplicationProtocol.DELETE, rollNo);
+        return s;
+    }
+
+    @Override
+    public synchronized int regrade(GradingPolicy policy) {
+        int changed = delegate.regrade(policy);
+        log.append(ReplicationProtocol.REGRADE, policy);
+        return changed;
+    }
+
+    @Override
+    public Transaction beginTransaction() { return delegate.beginTransaction(); }
+
+    @Override
+    public StudentPublisher publishStudents(String course, boolean sortedByMarks) {
+        return delegate.publishStudents(course, sortedByMarks);
+    }
+
+    @Override
+    public List<Student> query(String expression) throws InvalidQueryException { return delegate.query(expression); }
+
+    // the whole transaction is one log entry, so followers apply it atomically as well
+    @Override
+    public synchronized int commit(Transaction tx) throws TransactionConflictException {
+        int written = delegate.commit(tx);
+        if (written > 0) log.append(ReplicationProtocol.BATCH, tx);
+        return written;
+    }
+
+    @Override
+    public int moveCourse(String from, String to) throws TransactionConflictException {
+        return Transaction.moveCourse(this, from, to);
+    }
+
+    @Override
+    public int curveCourse(String course, double points) throws TransactionConflictException {
+        return Transaction.curveCourse(this, course, points);
+    }
+
+    @Override
+    public Student searchStudent(int rollNo) throws StudentNotFoundException { return delegate.searchStudent(rollNo); }
+
+    @Override
+    public List<Student> getAllStudents() { return delegate.getAllStudents(); }
+
+    @Override
+    public List<Student> getStudentsSortedByMarks() { return delegate.getStudentsSortedByMarks(); }
+
+    @Override
+    public List<Student> getStudentsSorted(Comparator<? super Student> order) { return delegate.getStudentsSorted(order); }
+
+    @Override
+    public List<Student> topK(int k, Comparator<? super Student> order) { return delegate.topK(k, order); }
+
+    @Override
+    public Map<String, List<Student>> topKPerCourse(int k) { return delegate.topKPerCourse(k); }
+
+    // loads are not logged: the leader loads before followers connect, and they catch up by snapshot
+    @Override
+    public void loadFromFile(String filename) throws IOException { delegate.loadFromFile(filename); }
+
+    @Override
+    public void saveToFile(String filename) throws IOException { delegate.saveToFile(filename); }
+
+    @Override
+    public void randomRead(String filename) throws IOException { delegate.randomRead(filename); }
+
+    @Override
+    public Student readRecord(String filename, int rollNo) throws IOException, StudentNotFoundException {
+        return delegate.readRecord(filename, rollNo);
+    }
+
+    @Override
+    public int size() { return delegate.size(); }
+
+    @Override
+    public long estimatedHeapBytes() { return delegate.estimatedHeapBytes(); }
+}
+
+// read-only replica: one thread applies the leader's stream while the front-ends serve reads.
+// A snapshot is built into a fresh manager and swapped in, so readers never see a half-loaded roster
+class ReplicationFollower implements RecordActions, Runnable {
+    private static final String READ_ONLY = "Read-only follower: send writes to the leader";
+
+    private final String host;
+    private final int port;
+    private volatile StudentManager current = new StudentManager(false);
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    // written only by the replication thread
+    private long epoch;
+    private volatile long appliedSeq, leaderSeq, lagMillis, snapshots, reconnects;
+
+    ReplicationFollower(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // "host:port" or just "port" for localhost
+    static ReplicationFollower of(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? "localhost" : address.substring(0, colon);
+        return new ReplicationFollower(host, Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    void stop() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try { s.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 << 10));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                out.writeInt(ReplicationProtocol.MAGIC);
+                out.writeLong(epoch);
+                out.writeLong(appliedSeq);
+                out.flush();
+                long leaderEpoch = in.readLong();
+                if (in.readByte() == ReplicationProtocol.SNAPSHOT) installSnapshot(in);
+                epoch = leaderEpoch;
+                System.out.println("Replicating from " + host + ":" + port + " at seq " + appliedSeq);
+                replicate(in, out);
+            } catch (IOException e) {
+                if (!running) return;
+                reconnects++;
+                String why = e instanceof EOFException ? "closed by leader" : e.getMessage();
+                System.out.println("Replication connection lost (" + why + "); retrying in 1s.");
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void installSnapshot(DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        GradingPolicy.use(GradingPolicy.parse(in.readUTF()));
+        int n = in.readInt();
+        List<Student> records = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) records.add(Student.fromFileString(in.readUTF()));
+        StudentManager fresh = new StudentManager(false);
+        fresh.loadRecords(records); // as the leader has them, kept out-of-policy records included
+        current = fresh;
+        appliedSeq = seq;
+        leaderSeq = Math.max(leaderSeq, seq);
+        snapshots++;
+        System.out.println("Caught up from leader snapshot: " + n + " record(s) at seq " + seq);
+    }
+
+    private void replicate(DataInputStream in, DataOutputStream out) throws IOException {
+        while (running) {
+            byte type = in.readByte();
+            long seq = in.readLong();
+            long sentAt = in.readLong();
+            if (type != ReplicationProtocol.HEARTBEAT) {
+                apply(type, in);
+                appliedSeq = seq;
+            }
+            leaderSeq = Math.max(leaderSeq, seq);
+            lagMillis = Math.max(0, System.currentTimeMillis() - sentAt);
+            if (in.available() == 0) { // ack once per batch, not per entry
+                out.writeLong(appliedSeq);
+                out.flush();
+            }
+        }
+    }
+
+    // record entries replace the whole record through a blind-write transaction (this thread is the only
+    // writer, so it never conflicts); a BATCH becomes one transaction and is published in one step
+    private void apply(byte type, DataInputStream in) throws IOException {
+        StudentManager m = current;
+        try {
+            if (type == ReplicationProtocol.REGRADE) {
+                m.regrade(GradingPolicy.parse(in.readUTF()));
+                return;
+            }
+            Transaction tx = m.beginTransaction();
+            boolean batch = type == ReplicationProtocol.BATCH;
+            int n = batch ? in.readInt() : 1;
+            for (int i = 0; i < n; i++) {
+                byte t = batch ? in.readByte() : type;
+                if (t == ReplicationProtocol.PUT) tx.put(Student.fromFileString(in.readUTF()));
+                else if (t == ReplicationProtocol.DELETE) tx.delete(in.readInt());
+                else throw new IOException("Unknown replication entry type " + t);
+            }
+            m.commit(tx);
+        } catch (TransactionConflictException e) {
+            throw new IOException("Cannot apply replicated entry: " + e.getMessage(), e);
+        }
+    }
+
+    void addStats(Map<String, Object> m) {
+        m.put("replication.appliedSeq", appliedSeq);
+        m.put("replication.leaderSeq", leaderSeq);
+        m.put("replication.lagEntries", Math.max(0, leaderSeq - appliedSeq));
+        m.put("replication.lagMillis", lagMillis);
+        m.put("replication.snapshots", snapshots);
+        m.put("replication.reconnects", reconnects);
+    }
+
+    @Override
+    public boolean contains(int rollNo) { return current.contains(rollNo); }
+
+    @Override
+    public void addStudent(Scanner sc) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public void updateStudent(Scanner sc, int rollNo) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public void deleteStudent(int rollNo) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public boolean addStudent(Student s) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public Student updateMarks(int rollNo, double marks) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public Student updateEmail(int rollNo, String email) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public Student removeStudent(int rollNo) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public void loadFromFile(String filename) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public int regrade(GradingPolicy policy) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public Transaction beginTransaction() { return current.beginTransaction(); }
+
+    @Override
+    public StudentPublisher publishStudents(String course, boolean sortedByMarks) {
+        return current.publishStudents(course, sortedByMarks);
+    }
+
+    @Override
+    public List<Student> query(String expression) throws InvalidQueryException { return current.query(expression); }
+
+    @Override
+    public int commit(Transaction tx) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public int moveCourse(String from, String to) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public int curveCourse(String course, double points) { throw new UnsupportedOperationException(READ_ONLY); }
+
+    @Override
+    public Student searchStudent(int rollNo) throws StudentNotFoundException { return current.searchStudent(rollNo); }
+
+    @Override
+    public List<Student> getAllStudents() { return current.getAllStudents(); }
+
+    @Override
+    public List<Student> getStudentsSortedByMarks() { return current.getStudentsSortedByMarks(); }
+
+    @Override
+    public List<Student> getStudentsSorted(Comparator<? super Student> order) { return current.getStudentsSorted(order); }
+
+    @Override
+    public List<Student> topK(int k, Comparator<? super Student> order) { return current.topK(k, order); }
+
+    @Override
+    public Map<String, List<Student>> topKPerCourse(int k) { return current.topKPerCourse(k); }
+
+    @Override
+    public void saveToFile(String filename) throws IOException { current.saveToFile(filename); }
+
+    @Override
+    public void randomRead(String filename) throws IOException { current.randomRead(filename); }
+
+    @Override
+    public Student readRecord(String filename, int rollNo) throws IOException, StudentNotFoundException {
+        return current.readRecord(filename, rollNo);
+    }
+
+    @Override
+    public int size() { return current.size(); }
+
+    @Override
+    public long estimatedHeapBytes() { return current.estimatedHeapBytes(); }
+}
+
+// --------------------- Async facade (CompletableFuture) ---------------------
+// non-blocking front for any RecordActions: every call runs on the executor (one virtual thread per call
+// by default, see StudentHttpServer.newRequestExecutor) and returns a future, failing it with the same
+// checked exception the blocking call would throw. Lookups of a roll number already being looked up
+// join that lookup instead of starting another, so a fan-out of thousands of requests over a hot set of
+// students costs one read per distinct roll in flight
+class AsyncRecordActions implements AutoCloseable {
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private final RecordActions delegate;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Student>> lookups = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    AsyncRecordActions(RecordActions delegate) {
+        this(delegate, StudentHttpServer.newRequestExecutor(), true);
+    }
+
+    AsyncRecordActions(RecordActions delegate, Executor executor) {
+        this(delegate, executor, false);
+    }
+
+    private AsyncRecordActions(RecordActions delegate, Executor executor, boolean ownsExecutor) {
+        this.delegate = delegate;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try { f.complete(call.call()); } catch (Throwable e) { f.completeExceptionally(e); }
+            });
+        } catch (RejectedExecutionException e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    // a write through this facade also retires any lookup of that roll still in flight, so a lookup
+    // issued after the write has completed never joins one that may have read the old record
+    private <T> CompletableFuture<T> write(int rollNo, Call<T> call) {
+        return submit(() -> {
+            try {
+                return call.call();
+            } finally {
+                lookups.remove(rollNo);
+            }
+        });
+    }
+
+    // each caller gets its own dependent future, so cancelling one does not cancel the shared lookup.
+    // An in-memory StudentManager reads a snapshot without locking in far less time than a hand-off to
+    // the executor takes, so those lookups complete on the calling thread
+    public CompletableFuture<Student> searchStudent(int rollNo) {
+        if (delegate instanceof StudentManager && ((StudentManager) delegate).readsWithoutBlocking()) {
+            try {
+                return CompletableFuture.completedFuture(delegate.searchStudent(rollNo));
+            } catch (StudentNotFoundException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<Student> mine = new CompletableFuture<>();
+        CompletableFuture<Student> running = lookups.putIfAbsent(rollNo, mine);
+        if (running != null) {
+            coalesced.increment();
+            return running.copy();
+        }
+        try {
+            executor.execute(() -> {
+                Student s = null;
+                Throwable error = null;
+                try { s = delegate.searchStudent(rollNo); } catch (Throwable e) { error = e; }
+                lookups.remove(rollNo, mine); // before completing: later callers start a fresh read
+                if (error == null) mine.complete(s);
+                else mine.completeExceptionally(error);
+            });
+        } catch (RejectedExecutionException e) {
+            lookups.remove(rollNo, mine);
+            mine.completeExceptionally(e);
+        }
+        return mine.copy();
+    }
+
+    // found students by roll number; rolls that do not exist are left out, any other failure fails the whole
+    public CompletableFuture<Map<Integer, Student>> searchAll(Collection<Integer> rollNos) {
+        Map<Integer, CompletableFuture<Student>> pending = new LinkedHashMap<>();
+        for (int roll : rollNos) {
+            pending.computeIfAbsent(roll, r -> searchStudent(r).handle((s, e) -> {
+                if (e == null) return s;
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                if (cause instanceof StudentNotFoundException) return null;
+                throw new CompletionException(cause);
+            }));
+        }
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<Integer, Student> found = new LinkedHashMap<>();
+            pending.forEach((roll, f) -> {
+                Student s = f.join();
+                if (s != null) found.put(roll, s);
+            });
+            return found;
+        });
+    }
+
+    public CompletableFuture<Boolean> addStudent(Student s) { return write(s.rollNo, () -> delegate.addStudent(s)); }
+
+    public CompletableFuture<Student> updateMarks(int rollNo, double marks) {
+        return write(rollNo, () -> delegate.updateMarks(rollNo, marks));
+    }
+
+    public CompletableFuture<Student> updateEmail(int rollNo, String email) {
+        return write(rollNo, () -> delegate.updateEmail(rollNo, email));
+    }
+
+    public CompletableFuture<Student> removeStudent(int rollNo) { return write(rollNo, () -> delegate.removeStudent(rollNo)); }
+
+    public CompletableFuture<Boolean> contains(int rollNo) { return submit(() -> delegate.contains(rollNo)); }
+
+    public CompletableFuture<List<Student>> getAllStudents() { return submit(delegate::getAllStudents); }
+
+    public CompletableFuture<List<Student>> getStudentsSortedByMarks() { return submit(delegate::getStudentsSortedByMarks); }
+
+    public CompletableFuture<List<Student>> getStudentsSorted(Comparator<? super Student> order) {
+        return submit(() -> delegate.getStudentsSorted(order));
+    }
+
+    public CompletableFuture<List<Student>> topK(int k, Comparator<? super Student> order) {
+        return submit(() -> delegate.topK(k, order));
+    }
+
+    public CompletableFuture<Map<String, List<Student>>> topKPerCourse(int k) { return submit(() -> delegate.topKPerCourse(k)); }
+
+    // bulk writes can touch any roll, so they retire every lookup in flight
+    public CompletableFuture<Integer> moveCourse(String from, String to) {
+        return submit(() -> {
+            try { return delegate.moveCourse(from, to); } finally { lookups.clear(); }
+        });
+    }
+
+    public CompletableFuture<Integer> curveCourse(String course, double points) {
+        return submit(() -> {
+            try { return delegate.curveCourse(course, points); } finally { lookups.clear(); }
+        });
+    }
+
+    public CompletableFuture<Integer> regrade(GradingPolicy policy) {
+        return submit(() -> {
+            try { return delegate.regrade(policy); } finally { lookups.clear(); }
+        });
+    }
+
+    public CompletableFuture<Void> loadFromFile(String filename) {
+        return submit(() -> {
+            try { delegate.loadFromFile(filename); } finally { lookups.clear(); }
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> saveToFile(String filename) {
+        return submit(() -> {
+            delegate.saveToFile(filename);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Integer> size() { return submit(delegate::size); }
+
+    long coalescedLookups() { return coalesced.sum(); }
+
+    @Override
+    public void close() {
+        if (ownsExecutor) ((ExecutorService) executor).shutdown();
+    }
+}
+
+// --------------------- JSON helpers (flat objects only) ---------------------
+final class Json {
+    private Json() { }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    static String of(Student s) {
+        return "{\"rollNo\":" + s.rollNo + ",\"name\":" + quote(s.name) + ",\"email\":" + quote(s.email)
+                + ",\"course\":" + quote(s.course) + ",\"marks\":" + s.marks() + ",\"grade\":\"" + s.grade() + "\"}";
+    }
+
+    static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    // parses {"key": "string" | number | true | false | null, ...}; values come back as raw strings
+    static Map<String, String> parseObject(String text) {
+        Map<String, String> out = new HashMap<>();
+        int[] pos = {0};
+        skipWs(text, pos);
+        expect(text, pos, '{');
+        skipWs(text, pos);
+        if (peek(text, pos) == '}') return out;
+        while (true) {
+            skipWs(text, pos);
+            String key = parseString(text, pos);
+            skipWs(text, pos);
+            expect(text, pos, ':');
+            skipWs(text, pos);
+            String value;
+            if (peek(text, pos) == '"') value = parseString(text, pos);
+            else {
+                int start = pos[0];
+                while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) pos[0]++;
+                value = text.substring(start, pos[0]);
+            }
+            out.put(key, value);
+            skipWs(text, pos);
+            char c = peek(text, pos);
+            pos[0]++;
+            if (c == '}') return out;
+            if (c != ',') throw new IllegalArgumentException("Expected ',' or '}' at " + (pos[0] - 1));
+        }
+    }
+
+    private static char peek(String text, int[] pos) {
+        if (pos[0] >= text.length()) throw new IllegalArgumentException("Unexpected end of JSON");
+        return text.charAt(pos[0]);
+    }
+
+    private static void skipWs(String text, int[] pos) {
+        while (pos[0] < text.length() && Character.isWhitespace(text.charAt(pos[0]))) pos[0]++;
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c) throw new IllegalArgumentException("Expected '" + c + "' at " + pos[0]);
+        pos[0]++;
+    }
+
+    private static String parseString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            char c = peek(text, pos);
+            pos[0]++;
+            if (c == '"') return sb.toString();
+            if (c != '\\') { sb.append(c); continue; }
+            char e = peek(text, pos);
+            pos[0]++;
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (pos[0] + 4 > text.length()) throw new IllegalArgumentException("Bad unicode escape");
+                    sb.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default: sb.append(e);
+            }
+        }
+    }
+}
+
+// --------------------- HTTP/JSON server (--serve <port>) ---------------------
+class StudentHttpServer {
+    private final RecordActions manager;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    StudentHttpServer(RecordActions manager, int port) throws IOException {
+        this.manager = manager;
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executor = newRequestExecutor();
+        server.createContext("/students", this::handle);
+        server.setExecutor(executor);
+    }
+
+    // one virtual thread per request on JDK 21+, a cached platform pool on older runtimes
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    void start() { server.start(); }
+
+    void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    int port() { return server.getAddress().getPort(); }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            String rest = ex.getRequestURI().getPath().substring("/students".length());
+            String method = ex.getRequestMethod();
+            if ("/top".equals(rest) && "GET".equals(method)) {
+                top(ex);
+                return;
+            }
+            if ("/regrade".equals(rest) && "POST".equals(method)) {
+                regrade(ex);
+                return;
+            }
+            if (("/move".equals(rest) || "/curve".equals(rest)) && "POST".equals(method)) {
+                bulk(ex, rest);
+                return;
+            }
+            if ("/query".equals(rest) && "GET".equals(method)) {
+                query(ex);
+                return;
+            }
+            if (rest.isEmpty() || "/".equals(rest)) {
+                if ("GET".equals(method)) list(ex);
+                else if ("POST".equals(method)) create(ex);
+                else send(ex, 405, Json.error("Method not allowed: " + method));
+                return;
+            }
+            int roll = Integer.parseInt(rest.substring(1));
+            switch (method) {
+                case "GET":
+                    send(ex, 200, Json.of(manager.searchStudent(roll)));
+                    break;
+                case "PUT":
+                    update(ex, roll);
+                    break;
+                case "DELETE":
+                    manager.removeStudent(roll);
+                    send(ex, 204, null);
+                    break;
+                default:
+                    send(ex, 405, Json.error("Method not allowed: " + method));
+            }
+        } catch (NumberFormatException e) {
+            fail(ex, 400, "Invalid number: " + e.getMessage());
+        } catch (IllegalArgumentException | InvalidMarksException | InvalidQueryException e) {
+            fail(ex, 400, e.getMessage());
+        } catch (StudentNotFoundException e) {
+            fail(ex, 404, e.getMessage());
+        } catch (TransactionConflictException e) {
+            fail(ex, 409, e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            fail(ex, 405, e.getMessage());
+        } catch (RuntimeException e) {
+            // e.g. UncheckedIOException from a disk-resident read: still an answer, not a reset connection
+            System.out.println("HTTP " + ex.getRequestMethod() + " " + ex.getRequestURI() + " failed: " + e);
+            fail(ex, 500, "Internal error: " + e);
+        } finally {
+            ex.close();
+        }
+    }
+
+    // an error reply, unless the response is already under way (a listing mid-stream): then closing the
+    // exchange, which cuts the body short, is all that is left
+    private static void fail(HttpExchange ex, int status, String message) throws IOException {
+        if (ex.getResponseCode() == -1) send(ex, status, Json.error(message));
+    }
+
+    // ?sort=marks (ascending) or ?sort=course (course, then marks descending, then name); ?course=CS
+    // filters. Unsorted and by marks, the rows are pulled from a StudentPublisher on this thread a batch
+    // at a time, so the listing is never held in memory. sort=course has no such path and asks for the
+    // sorted list up front. Either way the headers go out with the first row, so a failure before then
+    // is still answered with an error status
+    private void list(HttpExchange ex) throws IOException {
+        String sort = queryParam(ex, "sort");
+        String course = queryParam(ex, "course");
+        if (course != null) course = URLDecoder.decode(course, StandardCharsets.UTF_8);
+        JsonRowWriter rows = new JsonRowWriter(ex);
+        if ("course".equals(sort)) {
+            List<Student> sorted = manager.getStudentsSorted(StudentManager.RANK_BY_COURSE);
+            for (Student s : sorted) if (course == null || course.equals(s.course)) rows.write(s);
+        } else {
+            manager.publishStudents(course, "marks".equals(sort)).on(Runnable::run).subscribe(rows);
+            if (rows.error instanceof RuntimeException) throw (RuntimeException) rows.error;
+            if (rows.error instanceof IOException) throw (IOException) rows.error;
+            if (rows.error != null) throw new IOException(rows.error);
+        }
+        rows.finish();
+    }
+
+    // writes each row as it arrives and asks for the next batch once this one is used up. The response
+    // starts (200, chunked) with the first row or at finish()
+    private static final class JsonRowWriter implements Flow.Subscriber<Student> {
+        private static final int BATCH = 256;
+        private final HttpExchange ex;
+        private Writer w;
+        private Flow.Subscription subscription;
+        private int left;
+        Throwable error;
+
+        JsonRowWriter(HttpExchange ex) { this.ex = ex; }
+
+        void write(Student s) throws IOException {
+            if (w == null) start();
+            else w.write(',');
+            w.write(Json.of(s));
+        }
+
+        void finish() throws IOException {
+            if (w == null) start();
+            w.write(']');
+            w.close();
+        }
+
+        private void start() throws IOException {
+            ex.getResponseHeaders().set("Content-Type", "application/json");
+            ex.sendResponseHeaders(200, 0); // chunked: rows go out as they are serialised
+            w = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8));
+            w.write('[');
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            left = BATCH;
+            s.request(BATCH);
+        }
+
+        @Override
+        public void onNext(Student s) {
+            try {
+                write(s);
+            } catch (IOException e) {
+                error = e;
+                subscription.cancel();
+                return;
+            }
+            if (--left == 0) {
+                left = BATCH;
+                subscription.request(BATCH);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) { error = t; }
+
+        @Override
+        public void onComplete() { }
+    }
+
+    // GET /students/top?k=10 for the best k overall, &per=course for an object of course -> best k
+    private void top(HttpExchange ex) throws IOException {
+        String kParam = queryParam(ex, "k");
+        int k = kParam == null ? 10 : Integer.parseInt(kParam);
+        StringBuilder sb = new StringBuilder();
+        if ("course".equals(queryParam(ex, "per"))) {
+            sb.append('{');
+            for (Map.Entry<String, List<Student>> e : manager.topKPerCourse(k).entrySet()) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(Json.quote(e.getKey())).append(':');
+                appendArray(sb, e.getValue());
+            }
+            sb.append('}');
+        } else {
+            appendArray(sb, manager.topK(k, StudentManager.RANK_BY_MARKS));
+        }
+        send(ex, 200, sb.toString());
+    }
+
+    // GET /students/query?q=course%20%3D%20%22CS%22%20AND%20marks%20%3E%3D%2060%20LIMIT%2010 (see StudentQuery)
+    private void query(HttpExchange ex) throws IOException, InvalidQueryException {
+        String q = queryParam(ex, "q");
+        if (q == null) throw new IllegalArgumentException("Missing query parameter: q");
+        StringBuilder sb = new StringBuilder();
+        appendArray(sb, manager.query(URLDecoder.decode(q, StandardCharsets.UTF_8)));
+        send(ex, 200, sb.toString());
+    }
+
+    private static void appendArray(StringBuilder sb, List<Student> students) {
+        sb.append('[');
+        for (int i = 0; i < students.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(Json.of(students.get(i)));
+        }
+        sb.append(']');
+    }
+
+    // POST /students/regrade {"policy":"A:85,B:70,C:55,D:40,F:0; CS=A:80,B:65,C:50,D:40,F:0"}
+    private void regrade(HttpExchange ex) throws IOException {
+        GradingPolicy policy = GradingPolicy.parse(required(Json.parseObject(readBody(ex)), "policy"));
+        int changed = manager.regrade(policy);
+        send(ex, 200, "{\"policy\":" + Json.quote(policy.toString()) + ",\"changed\":" + changed + "}");
+    }
+
+    // POST /students/move {"from":"CS","to":"SE"} or /students/curve {"course":"CS","points":"5"}, each one
+    // transaction: all of the course's records change or none do (409 if they kept conflicting)
+    private void bulk(HttpExchange ex, String op) throws IOException, TransactionConflictException {
+        Map<String, String> body = Json.parseObject(readBody(ex));
+        int changed = "/move".equals(op)
+                ? manager.moveCourse(required(body, "from"), required(body, "to"))
+                : manager.curveCourse(required(body, "course"), Double.parseDouble(required(body, "points")));
+        send(ex, 200, "{\"changed\":" + changed + "}");
+    }
+
+    private void create(HttpExchange ex) throws IOException, InvalidMarksException {
+        Map<String, String> body = Json.parseObject(readBody(ex));
+        Student s = new Student(Integer.parseInt(required(body, "rollNo")), required(body, "name"),
+                required(body, "email"), required(body, "course"), Double.parseDouble(required(body, "marks")));
+        if (manager.addStudent(s)) send(ex, 201, Json.of(s));
+        else send(ex, 409, Json.error("Duplicate roll number: " + s.rollNo));
+    }
+
+    // every field is checked before anything changes; marks and email together go in one transaction,
+    // so a request that fails leaves the record as it was
+    private void update(HttpExchange ex, int roll)
+            throws IOException, StudentNotFoundException, InvalidMarksException, TransactionConflictException {
+        Map<String, String> body = Json.parseObject(readBody(ex));
+        boolean hasMarks = body.containsKey("marks"), hasEmail = body.containsKey("email");
+        if (!hasMarks && !hasEmail) throw new IllegalArgumentException("Nothing to update: expected marks and/or email");
+        double marks = hasMarks ? Double.parseDouble(body.get("marks")) : 0;
+        if (hasMarks) StudentManager.validateMarks(marks);
+        String email = hasEmail ? body.get("email").trim() : null;
+        if (hasEmail && email.isEmpty()) throw new IllegalArgumentException("Email required.");
+        Student s;
+        if (!hasEmail) s = manager.updateMarks(roll, marks);
+        else if (!hasMarks) s = manager.updateEmail(roll, email);
+        else {
+            Student[] updated = new Student[1];
+            Transaction.run(manager, tx -> {
+                tx.updateMarks(roll, marks);
+                updated[0] = tx.updateEmail(roll, email);
+            });
+            s = updated[0];
+        }
+        send(ex, 200, Json.of(s));
+    }
+
+    private static String required(Map<String, String> body, String key) {
+        String v = body.get(key);
+        if (v == null || v.trim().isEmpty()) throw new IllegalArgumentException("Missing field: " + key);
+        return v.trim();
+    }
+
+    private static String queryParam(HttpExchange ex, String name) {
+        String q = ex.getRequestURI().getQuery();
+        if (q == null) return null;
+        for (String pair : q.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) return pair.substring(eq + 1);
+        }
+        return null;
+    }
+
+    private static String readBody(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        if (json == null) { ex.sendResponseHeaders(status, -1); return; }
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+    }
+}
+
+// --------------------- Binary TCP protocol (--binary <port>) ---------------------
+// frame = int length (of what follows) | int requestId | byte op (request) or status (response) | payload
+// strings are a short byte count followed by UTF-8; a student is roll, marks, name, email, course
+final class BinaryProtocol {
+    static final byte GET = 1, MULTI_GET = 2, BATCH_UPDATE = 3, ADD = 4, DELETE = 5;
+    static final byte OK = 0, NOT_FOUND = 1, INVALID = 2, DUPLICATE = 3, BAD_REQUEST = 4, READ_ONLY = 5, CONFLICT = 6;
+    static final byte FIELD_MARKS = 1, FIELD_EMAIL = 2;
+    static final int MAX_FRAME = 16 << 20;
+    // smallest encoding of one MULTI_GET roll and of one BATCH_UPDATE entry (roll, field, 2-byte empty email)
+    static final int MULTI_GET_ENTRY = 4, UPDATE_ENTRY_MIN = 4 + 1 + 2;
+
+    private BinaryProtocol() { }
+
+    // an entry count read from the frame, refused if it is negative or more than the frame could hold
+    static int getCount(ByteBuffer b, int minEntry) {
+        int n = b.getInt();
+        if (n < 0 || n > b.remaining() / minEntry) throw new IllegalArgumentException("Bad entry count " + n);
+        return n;
+    }
+
+    static String getString(ByteBuffer b) {
+        int len = b.getShort() & 0xFFFF;
+        if (len > b.remaining()) throw new BufferUnderflowException();
+        String s = new String(b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8);
+        b.position(b.position() + len);
+        return s;
+    }
+
+    static Student getStudent(ByteBuffer b) {
+        int roll = b.getInt();
+        double marks = b.getDouble();
+        return new Student(roll, getString(b), getString(b), getString(b), marks);
+    }
+}
+
+// growable write-mode buffer that frames are appended to
+final class FrameBuffer {
+    private ByteBuffer buf;
+    private int frameStart = -1;
+
+    FrameBuffer(int capacity) { buf = ByteBuffer.allocate(capacity); }
+
+    ByteBuffer buffer() { return buf; }
+
+    private void ensure(int n) {
+        if (buf.remaining() >= n) return;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+        buf.flip();
+        bigger.put(buf);
+        buf = bigger;
+    }
+
+    FrameBuffer beginFrame(int requestId, byte code) {
+        ensure(9);
+        frameStart = buf.position();
+        buf.putInt(0).putInt(requestId).put(code);
+        return this;
+    }
+
+    void endFrame() {
+        buf.putInt(frameStart, buf.position() - frameStart - 4);
+        frameStart = -1;
+    }
+
+    void clear() {
+        buf.clear();
+        frameStart = -1;
+    }
+
+    // appends the complete frames held in other
+    FrameBuffer putFrames(FrameBuffer other) {
+        int n = other.buf.position();
+        ensure(n);
+        buf.put(other.buf.array(), 0, n);
+        return this;
+    }
+
+    FrameBuffer put(byte v) { ensure(1); buf.put(v); return this; }
+    FrameBuffer putInt(int v) { ensure(4); buf.putInt(v); return this; }
+    FrameBuffer putDouble(double v) { ensure(8); buf.putDouble(v); return this; }
+
+    FrameBuffer putString(String s) {
+        byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+        if (utf.length > 0xFFFF) throw new IllegalArgumentException("String too long for frame: " + utf.length + " bytes");
+        ensure(2 + utf.length);
+        buf.putShort((short) utf.length).put(utf);
+        return this;
+    }
+
+    FrameBuffer putStudent(Student s) {
+        return putInt(s.rollNo).putDouble(s.marks()).putString(s.name).putString(s.email).putString(s.course);
+    }
+}
+
+// single selector thread; requests on one connection are answered in order, so clients may pipeline freely
+class BinaryStudentServer implements Runnable {
+    private static final int OUTPUT_HIGH_WATER = 4 << 20;
+    // decoded requests a connection may have waiting for a worker before reading from it stops
+    private static final int QUEUED_HIGH_WATER = 4 << 20;
+
+    private final RecordActions manager;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    // manager calls can block (monitor, disk-resident reads, transaction retries), so they run here and the
+    // selector thread only moves bytes
+    private final ExecutorService workers;
+    // connections with replies to write, or a failure to close them for, handed back by the workers
+    private final Queue<SelectionKey> ready = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    // in belongs to the selector thread; requests, out and the flags are shared with the workers under the
+    // connection's monitor. At most one worker serves a connection at a time, so replies keep request order
+    private static class Connection {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final ArrayDeque<ByteBuffer> requests = new ArrayDeque<>();
+        int queuedBytes;
+        boolean scheduled; // a worker is draining requests
+        boolean failed;    // a request broke the handler: close once the replies before it are flushed
+        final FrameBuffer out = new FrameBuffer(64 * 1024);
+        // each reply is built here and only copied to out once it is whole (the serving worker only)
+        final FrameBuffer reply = new FrameBuffer(4 * 1024);
+        final AtomicBoolean inReady = new AtomicBoolean();
+    }
+
+    BinaryStudentServer(RecordActions manager, int port) throws IOException {
+        this.manager = manager;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        int n = Integer.getInteger("students.binaryWorkers", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        this.workers = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "binary-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    int port() throws IOException { return ((InetSocketAddress) server.getLocalAddress()).getPort(); }
+
+    // requests already being served get a second to finish, so a save on shutdown sees them
+    void stop() {
+        running = false;
+        selector.wakeup();
+        workers.shutdown();
+        try { workers.awaitTermination(1, TimeUnit.SECONDS); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                for (SelectionKey key; (key = ready.poll()) != null; ) {
+                    ((Connection) key.attachment()).inReady.set(false);
+                    try {
+                        if (key.isValid()) flush(key);
+                    } catch (IOException | RuntimeException e) {
+                        close(key);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        else {
+                            if (key.isReadable()) read(key);
+                            if (key.isValid() && key.isWritable()) flush(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // a frame the server could not cope with costs that client its connection, not the server
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Binary server stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) close(key);
+            try { selector.close(); } catch (IOException ignored) { }
+            workers.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        ch.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try { key.channel().close(); } catch (IOException ignored) { }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        if (((SocketChannel) key.channel()).read(c.in) < 0) { close(key); return; }
+        c.in.flip();
+        int needed = 0;
+        while (c.in.remaining() >= 4) {
+            int len = c.in.getInt(c.in.position());
+            if (len < 5 || len > BinaryProtocol.MAX_FRAME) { close(key); return; }
+            if (c.in.remaining() < 4 + len) { needed = 4 + len; break; }
+            c.in.position(c.in.position() + 4);
+            ByteBuffer frame = ByteBuffer.allocate(len);
+            frame.put(frame.position(), c.in, c.in.position(), len);
+            c.in.position(c.in.position() + len);
+            submit(key, c, frame);
+        }
+        c.in.compact();
+        if (needed > c.in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            c.in.flip();
+            bigger.put(c.in);
+            c.in = bigger;
+        }
+        flush(key);
+    }
+
+    private void submit(SelectionKey key, Connection c, ByteBuffer frame) {
+        synchronized (c) {
+            c.requests.add(frame);
+            c.queuedBytes += frame.capacity();
+            if (c.scheduled) return;
+            c.scheduled = true;
+        }
+        workers.execute(() -> serve(key, c));
+    }
+
+    // worker side: answers the connection's requests in order until none are left
+    private void serve(SelectionKey key, Connection c) {
+        while (true) {
+            ByteBuffer frame;
+            synchronized (c) {
+                frame = c.requests.poll();
+                if (frame == null || c.failed) {
+                    c.scheduled = false;
+                    return;
+                }
+                c.queuedBytes -= frame.capacity();
+            }
+            boolean ok = true;
+            try {
+                handle(frame, c.reply);
+            } catch (RuntimeException e) {
+                ok = false;
+            }
+            synchronized (c) {
+                if (ok) c.out.putFrames(c.reply);
+                else c.failed = true;
+            }
+            if (c.inReady.compareAndSet(false, true)) {
+                ready.add(key);
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void flush(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        int pending, queued;
+        boolean failed;
+        synchronized (c) {
+            ByteBuffer out = c.out.buffer();
+            out.flip();
+            ((SocketChannel) key.channel()).write(out);
+            out.compact();
+            pending = out.position();
+            queued = c.queuedBytes;
+            failed = c.failed;
+        }
+        if (failed && pending == 0) { close(key); return; }
+        // stop reading from a client that is not draining its responses, or is ahead of the workers
+        int ops = pending > OUTPUT_HIGH_WATER || queued > QUEUED_HIGH_WATER || failed ? 0 : SelectionKey.OP_READ;
+        if (pending > 0) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    private void handle(ByteBuffer frame, FrameBuffer reply) {
+        int id = frame.getInt();
+        byte op = frame.get();
+        reply.clear();
+        try {
+            answer(id, op, frame, reply);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            reply.clear();
+            reply.beginFrame(id, BinaryProtocol.BAD_REQUEST);
+        }
+        reply.endFrame();
+    }
+
+    private void answer(int id, byte op, ByteBuffer frame, FrameBuffer out) {
+        switch (op) {
+            case BinaryProtocol.GET: {
+                Student s = lookup(frame.getInt());
+                if (s == null) out.beginFrame(id, BinaryProtocol.NOT_FOUND);
+                else out.beginFrame(id, BinaryProtocol.OK).putStudent(s);
+                break;
+            }
+            case BinaryProtocol.MULTI_GET: {
+                int n = BinaryProtocol.getCount(frame, BinaryProtocol.MULTI_GET_ENTRY);
+                int[] rolls = new int[n];
+                for (int i = 0; i < n; i++) rolls[i] = frame.getInt();
+                out.beginFrame(id, BinaryProtocol.OK).putInt(n);
+                for (int roll : rolls) {
+                    Student s = lookup(roll);
+                    if (s == null) out.put((byte) 0);
+                    else out.put((byte) 1).putStudent(s);
+                }
+                break;
+            }
+            case BinaryProtocol.BATCH_UPDATE: {
+                int n = BinaryProtocol.getCount(frame, BinaryProtocol.UPDATE_ENTRY_MIN);
+                // the whole batch is decoded first, so a malformed entry rejects it before anything is applied
+                int[] rolls = new int[n];
+                byte[] fields = new byte[n];
+                double[] marks = new double[n];
+                String[] emails = new String[n];
+                for (int i = 0; i < n; i++) {
+                    rolls[i] = frame.getInt();
+                    fields[i] = frame.get();
+                    if (fields[i] == BinaryProtocol.FIELD_MARKS) marks[i] = frame.getDouble();
+                    else if (fields[i] == BinaryProtocol.FIELD_EMAIL) emails[i] = BinaryProtocol.getString(frame);
+                    else throw new IllegalArgumentException("Unknown field " + fields[i]);
+                }
+                // one transaction: entries that are not found or invalid get their status and are left out,
+                // the rest commit together or (after the retries run out) not at all, reported as CONFLICT
+                byte[] statuses = new byte[n];
+                try {
+                    Transaction.run(manager, tx -> {
+                        for (int i = 0; i < n; i++) statuses[i] = stageUpdate(tx, rolls[i], fields[i], marks[i], emails[i]);
+                    });
+                } catch (TransactionConflictException e) {
+                    out.beginFrame(id, BinaryProtocol.CONFLICT);
+                    break;
+                } catch (StudentNotFoundException | InvalidMarksException e) {
+                    throw new IllegalStateException(e); // stageUpdate turns both into statuses
+                } catch (UnsupportedOperationException e) {
+                    out.beginFrame(id, BinaryProtocol.READ_ONLY);
+                    break;
+                }
+                out.beginFrame(id, BinaryProtocol.OK).putInt(n);
+                for (byte st : statuses) out.put(st);
+                break;
+            }
+            case BinaryProtocol.ADD: {
+                Student s = BinaryProtocol.getStudent(frame);
+                byte status;
+                try { status = manager.addStudent(s) ? BinaryProtocol.OK : BinaryProtocol.DUPLICATE; }
+                catch (InvalidMarksException e) { status = BinaryProtocol.INVALID; }
+                catch (UnsupportedOperationException e) { status = BinaryProtocol.READ_ONLY; }
+                out.beginFrame(id, status);
+                break;
+            }
+            case BinaryProtocol.DELETE: {
+                byte status;
+                try { manager.removeStudent(frame.getInt()); status = BinaryProtocol.OK; }
+                catch (StudentNotFoundException e) { status = BinaryProtocol.NOT_FOUND; }
+                catch (UnsupportedOperationException e) { status = BinaryProtocol.READ_ONLY; }
+                out.beginFrame(id, status);
+                break;
+            }
+            default:
+                out.beginFrame(id, BinaryProtocol.BAD_REQUEST);
+        }
+    }
+
+    private Student lookup(int roll) {
+        try { return manager.searchStudent(roll); }
+        catch (StudentNotFoundException e) { return null; }
+    }
+
+    private static byte stageUpdate(Transaction tx, int roll, byte field, double marks, String email) {
+        try {
+            if (field == BinaryProtocol.FIELD_MARKS) tx.updateMarks(roll, marks);
+            else tx.updateEmail(roll, email);
+            return BinaryProtocol.OK;
+        } catch (StudentNotFoundException e) {
+            return BinaryProtocol.NOT_FOUND;
+        } catch (InvalidMarksException e) {
+            return BinaryProtocol.INVALID;
+        }
+    }
+}
+
+// blocking client; the send* methods queue frames so several requests go out in one write (pipelining)
+class BinaryStudentClient implements Closeable {
+    static final class Reply {
+        final int requestId;
+        final byte status;
+        final ByteBuffer body;
+
+        Reply(int requestId, byte status, ByteBuffer body) {
+            this.requestId = requestId;
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final SocketChannel ch;
+    private final FrameBuffer out = new FrameBuffer(8 * 1024);
+    private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+    private int nextId;
+
+    BinaryStudentClient(String host, int port) throws IOException {
+        ch = SocketChannel.open(new InetSocketAddress(host, port));
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        in.flip();
+    }
+
+    int sendGet(int roll) {
+        int id = nextId++;
+        out.beginFrame(id, BinaryProtocol.GET).putInt(roll).endFrame();
+        return id;
+    }
+
+    int sendMultiGet(int... rolls) {
+        int id = nextId++;
+        out.beginFrame(id, BinaryProtocol.MULTI_GET).putInt(rolls.length);
+        for (int r : rolls) out.putInt(r);
+        out.endFrame();
+        return id;
+    }
+
+    int sendUpdateMarks(int[] rolls, double[] marks) {
+        int id = nextId++;
+        out.beginFrame(id, BinaryProtocol.BATCH_UPDATE).putInt(rolls.length);
+        for (int i = 0; i < rolls.length; i++) out.putInt(rolls[i]).put(BinaryProtocol.FIELD_MARKS).putDouble(marks[i]);
+        out.endFrame();
+        return id;
+    }
+
+    int sendAdd(Student s) {
+        int id = nextId++;
+        out.beginFrame(id, BinaryProtocol.ADD).putStudent(s).endFrame();
+        return id;
+    }
+
+    int sendDelete(int roll) {
+        int id = nextId++;
+        out.beginFrame(id, BinaryProtocol.DELETE).putInt(roll).endFrame();
+        return id;
+    }
+
+    void flush() throws IOException {
+        ByteBuffer b = out.buffer();
+        b.flip();
+        while (b.hasRemaining()) ch.write(b);
+        b.clear();
+    }
+
+    // next response; replies arrive in the order the requests were sent
+    Reply receive() throws IOException {
+        fill(4);
+        int len = in.getInt();
+        fill(len);
+        ByteBuffer frame = in.slice();
+        frame.limit(len);
+        in.position(in.position() + len);
+        int id = frame.getInt();
+        byte status = frame.get();
+        return new Reply(id, status, frame.slice());
+    }
+
+    private void fill(int n) throws IOException {
+        if (in.remaining() >= n) return;
+        if (in.capacity() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(n);
+            bigger.put(in);
+            in = bigger;
+        } else {
+            in.compact();
+        }
+        while (in.position() < n) {
+            if (ch.read(in) < 0) throw new EOFException("Server closed the connection");
+        }
+        in.flip();
+    }
+
+    Student get(int roll) throws IOException {
+        sendGet(roll);
+        flush();
+        Reply r = receive();
+        return r.status == BinaryProtocol.OK ? BinaryProtocol.getStudent(r.body) : null;
+    }
+
+    // one frame, one round trip; missing rolls come back as null entries
+    List<Student> multiGet(int... rolls) throws IOException {
+        sendMultiGet(rolls);
+        flush();
+        ByteBuffer body = receive().body;
+        int n = body.getInt();
+        List<Student> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) result.add(body.get() == 1 ? BinaryProtocol.getStudent(body) : null);
+        return result;
+    }
+
+    // per-entry statuses; a batch refused as a whole (CONFLICT, READ_ONLY, BAD_REQUEST) throws
+    byte[] updateMarks(int[] rolls, double[] marks) throws IOException {
+        sendUpdateMarks(rolls, marks);
+        flush();
+        Reply r = receive();
+        if (r.status != BinaryProtocol.OK) throw new IOException("Batch update refused, status " + r.status);
+        ByteBuffer body = r.body;
+        byte[] statuses = new byte[body.getInt()];
+        body.get(statuses);
+        return statuses;
+    }
+
+    byte add(Student s) throws IOException {
+        sendAdd(s);
+        flush();
+        return receive().status;
+    }
+
+    byte delete(int roll) throws IOException {
+        sendDelete(roll);
+        flush();
+        return receive().status;
+    }
+
+    @Override
+    public void close() throws IOException { ch.close(); }
+}
+
+// --------------------- Self-checks (--check [area ...]) ---------------------
+// behaviour checks for the parts above, one area per subsystem, each line ok or FAIL with what was checked.
+// They run on temporary files and ephemeral ports, never on students.txt, and the exit status is 1 if
+// anything failed. Metrics are switched on for the run, so start it before anything else touches them
+final class SelfCheck {
+    interface Area {
+        void run() throws Exception;
+    }
+
+    private static int failed;
+
+    private SelfCheck() { }
+
+    // the named areas, or all of them; returns the number of failed checks
+    static int run(List<String> names) throws Exception {
+        System.setProperty("students.metrics", "true");
+        Map<String, Area> areas = new LinkedHashMap<>();
+        areas.put("metrics", SelfCheck::metrics);
+        areas.put("jfr", SelfCheck::jfr);
+        areas.put("http", SelfCheck::http);
+        areas.put("binary", SelfCheck::binary);
+        areas.put("cache", SelfCheck::cache);
+        areas.put("index", SelfCheck::index);
+        areas.put("lines", SelfCheck::lines);
+        areas.put("mapped", SelfCheck::mapped);
+        areas.put("compressed", SelfCheck::compressed);
+        areas.put("shards", SelfCheck::shards);
+        areas.put("replication", SelfCheck::replication);
+        areas.put("sort", SelfCheck::sort);
+        areas.put("topk", SelfCheck::topK);
+        areas.put("regrade", SelfCheck::regrade);
+        areas.put("grading", SelfCheck::grading);
+        areas.put("mvcc", SelfCheck::mvcc);
+        areas.put("transactions", SelfCheck::transactions);
+        areas.put("changes", SelfCheck::changes);
+        areas.put("async", SelfCheck::async);
+        areas.put("streams", SelfCheck::streams);
+        areas.put("queries", SelfCheck::queries);
+        areas.put("imports", SelfCheck::imports);
+        areas.put("marks", SelfCheck::marks);
+        areas.put("views", SelfCheck::views);
+        areas.put("rejects", SelfCheck::rejects);
+        for (String name : names)
+            if (!areas.containsKey(name)) throw new IllegalArgumentException("Unknown check area " + name + ", one of " + areas.keySet());
+        for (Map.Entry<String, Area> a : areas.entrySet()) {
+            if (!names.isEmpty() && !names.contains(a.getKey())) continue;
+            System.out.println("--- " + a.getKey());
+            a.getValue().run();
+        }
+        System.out.println(failed == 0 ? "All checks passed." : failed + " check(s) failed.");
+        return failed;
+    }
+
+    static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok   " : "FAIL ") + what);
+        if (!ok) failed++;
+    }
+
+    // true if body threw exactly this kind of exception
+    static boolean throwsA(Class<? extends Exception> type, Area body) {
+        try {
+            body.run();
+            return false;
+        } catch (Exception e) {
+            return type.isInstance(e);
+        }
+    }
+
+    // an empty temporary file; it and the sidecars the app writes beside it go when the JVM exits
+    static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("students-check", suffix);
+        f.deleteOnExit();
+        for (String side : new String[] {".idx", ".tmp", ImportValidator.REJECTS_SUFFIX}) new File(f.getPath() + side).deleteOnExit();
+        return f;
+    }
+
+    interface Hook {
+        void before(String method, Object[] args) throws Exception;
+    }
+
+    // m with hook run ahead of every call, e.g. to slow one down or make it throw
+    static RecordActions around(RecordActions m, Hook hook) {
+        return (RecordActions) java.lang.reflect.Proxy.newProxyInstance(RecordActions.class.getClassLoader(),
+                new Class<?>[] {RecordActions.class}, (proxy, method, args) -> {
+                    hook.before(method.getName(), args);
+                    try {
+                        return method.invoke(m, args);
+                    } catch (java.lang.reflect.InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    // status and body of one request to a local server
+    static String[] http(int port, String method, String path, String body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) URI.create("http://127.0.0.1:" + port + path).toURL().openConnection();
+        c.setRequestMethod(method);
+        if (body != null) {
+            c.setDoOutput(true);
+            try (OutputStream os = c.getOutputStream()) { os.write(body.getBytes(StandardCharsets.UTF_8)); }
+        }
+        int status = c.getResponseCode();
+        InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+        String text = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        c.disconnect();
+        return new String[] {String.valueOf(status), text};
+    }
+
+    static long metric(String name) { return ((Number) Metrics.snapshot().get(name)).longValue(); }
+
+    private static void metrics() throws Exception {
+        check(Metrics.ENABLED, "metrics are on for the run");
+        StudentManager m = new StudentManager(true);
+        Metrics.register(m);
+        long adds = metric("addStudent.count"), misses = metric("searchStudent.failures");
+        m.addStudent(new Student(1, "Ada", "ada@uni.edu", "CS", 91));
+        m.addStudent(new Student(2, "Alan", "alan@uni.edu", "CS", 78.5));
+        check(throwsA(StudentNotFoundException.class, () -> m.searchStudent(3)), "a missing roll is StudentNotFoundException");
+        check(metric("addStudent.count") == adds + 2 && metric("searchStudent.failures") == misses + 1,
+                "adds and a failed lookup are counted");
+
+        long topK = metric("topK.count"), scans = metric("scan.count");
+        m.topK(1, StudentManager.RANK_BY_MARKS);
+        m.topKPerCourse(1);
+        check(metric("topK.count") == topK + 2 && metric("scan.count") == scans + 2,
+                "top-K queries and the roster passes under them are timed apart");
+
+        // a verbose load or save shows progress dots, and stopping them can take up to one 300 ms tick
+        File f = tempFile(".txt");
+        long saveStart = System.nanoTime();
+        m.saveToFile(f.getPath());
+        long saveWall = (System.nanoTime() - saveStart) / 1000;
+        long loadStart = System.nanoTime();
+        m.loadFromFile(f.getPath());
+        long loadWall = (System.nanoTime() - loadStart) / 1000;
+        long saveMax = metric("saveToFile.maxMicros"), loadMax = metric("loadFromFile.maxMicros");
+        check(saveMax < 150_000 && loadMax < 150_000, "load and save latency stop at the end of the I/O (recorded "
+                + loadMax + " / " + saveMax + " us, calls took " + loadWall + " / " + saveWall + " us)");
+
+        MetricsMBean bean = new MetricsMBean();
+        Set<String> names = new HashSet<>();
+        for (MBeanAttributeInfo a : bean.getMBeanInfo().getAttributes()) names.add(a.getName());
+        Object before = bean.getAttribute("records");
+        m.addStudent(new Student(4, "Grace", "grace@uni.edu", "SE", 88));
+        check(names.contains("cache.hits") && names.contains("changes.published") && bean.getAttribute("records").equals(before)
+                && bean.getMBeanInfo().getAttributes().length == names.size(),
+                "the JMX bean has a fixed attribute list and answers from one snapshot within its TTL");
+    }
+
+    private static void jfr() throws Exception {
+        File f = tempFile(".txt"), dump = tempFile(".jfr");
+        StudentManager m = new StudentManager(false);
+        try (Recording r = new Recording()) {
+            for (String e : new String[] {"StudentAdd", "StudentLookup", "FileLoad", "FileSave", "LockContention"})
+                r.enable("StudentRecordApp." + e).withThreshold(Duration.ZERO);
+            r.start();
+            m.addStudent(new Student(7, "Ada", "ada@uni.edu", "CS", 91));
+            m.searchStudent(7);
+            throwsA(StudentNotFoundException.class, () -> m.searchStudent(8));
+            m.saveToFile(f.getPath());
+            m.loadFromFile(f.getPath());
+            // hold the manager's monitor past the 1 ms default threshold while another thread adds
+            Thread adder = new Thread(() -> {
+                try { m.addStudent(new Student(9, "Alan", "alan@uni.edu", "CS", 70)); } catch (InvalidMarksException ignored) { }
+            });
+            synchronized (m) {
+                adder.start();
+                Thread.sleep(50);
+            }
+            adder.join();
+            r.stop();
+            r.dump(dump.toPath());
+        }
+        Map<String, List<RecordedEvent>> byName = new HashMap<>();
+        for (RecordedEvent e : RecordingFile.readAllEvents(dump.toPath()))
+            byName.computeIfAbsent(e.getEventType().getName().replace("StudentRecordApp.", ""), k -> new ArrayList<>()).add(e);
+        List<RecordedEvent> adds = byName.getOrDefault("StudentAdd", List.of()), lookups = byName.getOrDefault("StudentLookup", List.of());
+        check(adds.size() == 2 && adds.get(0).getInt("rollNo") == 7 && "CS".equals(adds.get(0).getString("course")),
+                "adds are recorded with roll number and course");
+        check(lookups.size() == 2 && lookups.stream().filter(e -> e.getBoolean("found")).count() == 1,
+                "lookups are recorded as found or not");
+        List<RecordedEvent> loads = byName.getOrDefault("FileLoad", List.of()), saves = byName.getOrDefault("FileSave", List.of());
+        check(saves.size() == 1 && loads.size() == 1 && loads.get(0).getInt("records") == 1
+                && loads.get(0).getLong("bytes") == f.length() && saves.get(0).getLong("bytes") == f.length(),
+                "load and save carry record and byte counts");
+        List<RecordedEvent> waits = byName.getOrDefault("LockContention", List.of());
+        check(waits.size() == 1 && "addStudent".equals(waits.get(0).getString("operation"))
+                && waits.get(0).getDuration("waitTime").toMillis() >= 40,
+                "a wait on the manager's monitor is recorded with the operation and wait time");
+    }
+
+    private static void http() throws Exception {
+        StudentManager m = new StudentManager(false);
+        m.addStudent(new Student(1, "Ada", "ada@uni.edu", "CS", 91));
+        m.addStudent(new Student(2, "Alan", "alan@uni.edu", "SE", 64));
+        // roll 13's lookup fails the way a disk-resident read can
+        RecordActions failing = around(m, (method, args) -> {
+            if ("searchStudent".equals(method) && (Integer) args[0] == 13) throw new UncheckedIOException(new IOException("disk gone"));
+        });
+        StudentHttpServer server = new StudentHttpServer(failing, 0);
+        server.start();
+        try {
+            int port = server.port();
+            String[] r = http(port, "GET", "/students/1", null);
+            check("200".equals(r[0]) && r[1].contains("\"name\":\"Ada\""), "GET of a roll answers its record");
+            r = http(port, "POST", "/students", "{\"rollNo\":\"3\",\"name\":\"Grace\",\"email\":\"grace@uni.edu\",\"course\":\"CS\",\"marks\":\"88\"}");
+            check("201".equals(r[0]) && m.contains(3), "POST adds a record");
+            r = http(port, "POST", "/students", "{\"rollNo\":\"3\",\"name\":\"G\",\"email\":\"g@uni.edu\",\"course\":\"CS\",\"marks\":\"1\"}");
+            check("409".equals(r[0]) && m.searchStudent(3).name.equals("Grace"), "POST of a taken roll is 409 and leaves it alone");
+            r = http(port, "PUT", "/students/3", "{\"marks\":\"72.5\"}");
+            check("200".equals(r[0]) && m.searchStudent(3).marks() == 72.5, "PUT changes marks");
+            r = http(port, "GET", "/students?sort=marks", null);
+            check("200".equals(r[0]) && r[1].indexOf("Alan") < r[1].indexOf("Grace") && r[1].indexOf("Grace") < r[1].indexOf("Ada"),
+                    "GET of the collection lists it sorted by marks");
+            r = http(port, "DELETE", "/students/2", null);
+            check("204".equals(r[0]) && !m.contains(2), "DELETE removes a record");
+            check("404".equals(http(port, "GET", "/students/2", null)[0]), "a missing roll is 404");
+            check("400".equals(http(port, "GET", "/students/x", null)[0]), "a bad roll number is 400");
+            check("400".equals(http(port, "POST", "/students", "{\"rollNo\":\"4\"}")[0]) && !m.contains(4),
+                    "a body missing fields is 400");
+            check("400".equals(http(port, "PUT", "/students/3", "{\"marks\":\"120\"}")[0]) && m.searchStudent(3).marks() == 72.5,
+                    "out-of-range marks are 400");
+            r = http(port, "GET", "/students/13", null);
+            check("500".equals(r[0]) && r[1].contains("disk gone"), "an unchecked failure is answered with 500, not a reset");
+        } finally {
+            server.stop();
+        }
+    }
+
+    // the status of the first reply to frames written raw, bypassing the client's encoding
+    static byte rawStatus(int port, FrameBuffer frames) throws IOException {
+        try (Socket s = new Socket("localhost", port)) {
+            ByteBuffer b = frames.buffer();
+            s.getOutputStream().write(b.array(), 0, b.position());
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            in.readInt(); // length
+            in.readInt(); // request id
+            return in.readByte();
+        }
+    }
+
+    private static void binary() throws Exception {
+        StudentManager m = new StudentManager(false);
+        m.addStudent(new Student(1, "Ada", "ada@uni.edu", "CS", 91));
+        m.addStudent(new Student(2, "Alan", "alan@uni.edu", "SE", 64));
+        m.addStudent(new Student(3, "Grace", "grace@uni.edu", "CS", 53));
+        // roll 500 takes half a second to look up, as a disk-resident miss or a held lock can; roll 13 breaks
+        RecordActions slow = around(m, (method, args) -> {
+            if (!"searchStudent".equals(method)) return;
+            if ((Integer) args[0] == 500) Thread.sleep(500);
+            if ((Integer) args[0] == 13) throw new UncheckedIOException(new IOException("disk gone"));
+        });
+        BinaryStudentServer server = new BinaryStudentServer(slow, 0);
+        Thread t = new Thread(server, "check-binary");
+        t.start();
+        try (BinaryStudentClient c = new BinaryStudentClient("localhost", server.port());
+             BinaryStudentClient other = new BinaryStudentClient("localhost", server.port())) {
+            check("Grace".equals(c.get(3).name) && c.get(99) == null, "GET finds 3, not 99");
+            List<Student> many = c.multiGet(1, 99, 2);
+            check(many.size() == 3 && many.get(0).rollNo == 1 && many.get(1) == null && many.get(2).rollNo == 2,
+                    "MULTI_GET keeps request order, null for a missing roll");
+            byte[] st = c.updateMarks(new int[] {1, 99, 2}, new double[] {70, 70, 101});
+            check(Arrays.equals(st, new byte[] {BinaryProtocol.OK, BinaryProtocol.NOT_FOUND, BinaryProtocol.INVALID})
+                    && m.searchStudent(1).marks() == 70 && m.searchStudent(2).marks() == 64,
+                    "BATCH_UPDATE answers per entry and applies only the valid one");
+
+            FrameBuffer huge = new FrameBuffer(32);
+            huge.beginFrame(7, BinaryProtocol.MULTI_GET).putInt(Integer.MAX_VALUE).putInt(1).endFrame();
+            check(rawStatus(server.port(), huge) == BinaryProtocol.BAD_REQUEST, "MULTI_GET with a bogus count is BAD_REQUEST");
+            FrameBuffer cut = new FrameBuffer(32); // two entries declared, the second one cut short
+            cut.beginFrame(8, BinaryProtocol.BATCH_UPDATE).putInt(2)
+                    .putInt(3).put(BinaryProtocol.FIELD_MARKS).putDouble(99).putInt(1).put(BinaryProtocol.FIELD_MARKS).endFrame();
+            check(rawStatus(server.port(), cut) == BinaryProtocol.BAD_REQUEST && m.searchStudent(3).marks() == 53,
+                    "BATCH_UPDATE cut short is BAD_REQUEST and applies nothing");
+
+            int slowId = c.sendGet(500), fastId = c.sendGet(1);
+            c.flush();
+            long start = System.nanoTime();
+            Student quick = other.get(3);
+            long otherMillis = (System.nanoTime() - start) / 1_000_000;
+            check(quick != null && otherMillis < 250, "a slow request holds up neither the selector nor other connections ("
+                    + otherMillis + " ms)");
+            BinaryStudentClient.Reply first = c.receive(), second = c.receive();
+            check(first.requestId == slowId && first.status == BinaryProtocol.NOT_FOUND && second.requestId == fastId
+                    && second.status == BinaryProtocol.OK, "a connection's replies keep request order behind a slow one");
+
+            try (BinaryStudentClient broken = new BinaryStudentClient("localhost", server.port())) {
+                broken.sendGet(2);
+                broken.sendGet(13);
+                broken.flush();
+                boolean answered = broken.receive().status == BinaryProtocol.OK, closed;
+                try { broken.receive(); closed = false; } catch (EOFException e) { closed = true; }
+                check(answered && closed, "a request that breaks the handler closes its connection after the replies before it");
+            }
+            check(other.get(2) != null, "other connections are still served after bad frames");
+        } finally {
+            server.stop();
+            t.join();
+        }
+    }
+
+    private static void cache() throws Exception {
+        Student ada = new Student(1, "Ada", "ada@uni.edu", "CS", 91), alan = new Student(2, "Alan", "alan@uni.edu", "SE", 64),
+                grace = new Student(3, "Grace", "grace@uni.edu", "CS", 88);
+        long budget = ada.estimatedBytes() + grace.estimatedBytes(); // any two fit, not all three
+        StudentCache lru = new StudentCache(budget);
+        lru.put(ada);
+        lru.put(alan);
+        lru.get(1); // Ada is now the most recent, so Alan goes first
+        lru.put(grace);
+        check(lru.get(2) == null && lru.get(1) == ada && lru.get(3) == grace && lru.evictions() == 1,
+                "the hot set evicts the least recently used record");
+        check(lru.usedBytes() <= budget, "the hot set stays within its byte budget");
+        lru.invalidate(1);
+        check(lru.get(1) == null && lru.usedBytes() == grace.estimatedBytes(), "invalidate drops a record and its bytes");
+
+        // a roster bigger than its hot set, edited disk-resident and saved back
+        File f = tempFile(".txt");
+        StudentManager full = new StudentManager(false);
+        for (int roll = 1; roll <= 200; roll++)
+            full.addStudent(new Student(roll, "Name" + roll, "n" + roll + "@uni.edu", roll % 3 == 0 ? "SE" : "CS", roll % 101));
+        full.saveToFile(f.getPath());
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 8 * ada.estimatedBytes());
+        boolean same = true;
+        for (int roll = 1; roll <= 200; roll++) same &= disk.searchStudent(roll).toFileString().equals(full.searchStudent(roll).toFileString());
+        disk.searchStudent(200);
+        long[] counters = disk.cacheCounters();
+        check(same && counters[0] >= 1 && counters[1] >= 200 && counters[2] > 0,
+                "disk-resident lookups read through a hot set that evicts (" + disk.cacheStats() + ")");
+        disk.updateMarks(5, 99.5);
+        disk.removeStudent(6);
+        disk.addStudent(new Student(201, "Late", "late@uni.edu", "CS", 40));
+        check(disk.searchStudent(5).marks() == 99.5 && !disk.contains(6) && disk.size() == 200,
+                "edits are seen at once, whatever the hot set held");
+        disk.saveToFile(f.getPath());
+        StudentManager back = new StudentManager(false);
+        back.loadFromFile(f.getPath());
+        check(back.size() == 200 && back.searchStudent(5).marks() == 99.5 && !back.contains(6) && back.contains(201)
+                && back.searchStudent(150).toFileString().equals(full.searchStudent(150).toFileString()),
+                "a disk-resident save keeps every untouched record along with the edits");
+    }
+
+    static void write(File f, String text) throws IOException {
+        Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void index() throws Exception {
+        // multi-byte names shift every byte offset after them; CRLF lines and a repeated roll as well
+        File f = tempFile(".txt");
+        write(f, "3,Zoë,zoe@uni.edu,CS,77.5\r\n1,Ada,ada@uni.edu,CS,91.0\n2,Ōta,ota@uni.edu,SE,64.0\r\n"
+                + "1,Second Ada,ada2@uni.edu,SE,10.0\n4,Grace,grace@uni.edu,CS,88.0");
+        StudentManager m = new StudentManager(false);
+        Student zoe = m.readRecord(f.getPath(), 3), ota = m.readRecord(f.getPath(), 2), grace = m.readRecord(f.getPath(), 4);
+        check("Zoë".equals(zoe.name) && zoe.marks() == 77.5 && "Ōta".equals(ota.name) && "Grace".equals(grace.name),
+                "a positioned read lands on the record past multi-byte text and CRLF endings");
+        check("Ada".equals(m.readRecord(f.getPath(), 1).name), "the first of a repeated roll wins, as in a load");
+        check(throwsA(StudentNotFoundException.class, () -> m.readRecord(f.getPath(), 9)), "a roll not in the file is not found");
+
+        File idx = RecordIndex.sidecar(f);
+        RecordIndex mapped = RecordIndex.load(f);
+        check(idx.exists() && mapped != null && mapped.size() == 4 && mapped.dataLength == f.length(),
+                "the index is written beside the data and maps back in");
+        // appending makes the sidecar stale: it must be rebuilt, not trusted
+        Files.write(f.toPath(), "\n5,Late,late@uni.edu,CS,40.0".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        check(RecordIndex.load(f) == null && "Late".equals(m.readRecord(f.getPath(), 5).name)
+                && RecordIndex.load(f) != null && RecordIndex.load(f).size() == 5,
+                "an index older than its data is rebuilt, not used");
+        write(idx, "not an index");
+        idx.setLastModified(f.lastModified() + 1000);
+        check(RecordIndex.load(f) == null && "Grace".equals(m.readRecord(f.getPath(), 4).name),
+                "a malformed index is ignored and the file rescanned");
+
+        StudentManager saved = new StudentManager(false);
+        saved.loadFromFile(f.getPath());
+        File out = tempFile(".txt");
+        saved.saveToFile(out.getPath());
+        RecordIndex fresh = RecordIndex.load(out);
+        boolean all = fresh != null && fresh.size() == saved.size();
+        for (Student s : saved.getAllStudents()) all &= m.readRecord(out.getPath(), s.rollNo).toFileString().equals(s.toFileString());
+        check(all, "a save writes a current index that finds every record");
+    }
+
+    private static void lines() throws Exception {
+        // multi-byte text split across buffer refills, a line longer than the reader's own buffer, CRLF,
+        // an empty line and a last line with no terminator
+        String[] expected = {"1,Zoë,zoe@uni.edu,CS,77.5", "2,Ōta 大田,ota@uni.edu,SE,64.0", "",
+                "3," + "x".repeat(700) + ",long@uni.edu,CS,50.0", "4,Grace,grace@uni.edu,CS,88.0"};
+        String[] endings = {"\r\n", "\n", "\n", "\r\n", ""};
+        StringBuilder text = new StringBuilder();
+        long[] offsets = new long[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            offsets[i] = text.toString().getBytes(StandardCharsets.UTF_8).length;
+            text.append(expected[i]).append(endings[i]);
+        }
+        File f = tempFile(".txt");
+        write(f, text.toString());
+        for (int bufferSize : new int[] {1, 3, 7, 64 * 1024}) {
+            boolean same = true;
+            int n = 0;
+            try (ChannelLineReader r = ChannelLineReader.open(f, bufferSize)) {
+                for (String line; (line = r.readLine()) != null; n++) {
+                    same &= n < expected.length && line.equals(expected[n]) && r.position() == offsets[n];
+                }
+            }
+            check(same && n == expected.length, "lines and their byte offsets read back whole with a " + bufferSize + "-byte buffer");
+        }
+        try (ChannelLineReader r = ChannelLineReader.open(f, 5)) {
+            r.nextLine();
+            check(r.length() == expected[0].getBytes(StandardCharsets.UTF_8).length + 1
+                    && r.contentLength() == r.length() - 1, "a CRLF line's length counts the CR, its content does not");
+        }
+        StudentManager m = new StudentManager(false);
+        m.loadFromFile(f.getPath());
+        check(m.size() == 4 && "Ōta 大田".equals(m.searchStudent(2).name) && m.rejectedOnLoad() == 0,
+                "a load through the reader keeps UTF-8 names and skips the empty line without rejecting it");
+    }
+
+    // every row the cursor yields as "roll/marks/course@offset"
+    private static List<String> cursorRows(File f, long window) throws IOException {
+        List<String> rows = new ArrayList<>();
+        try (MappedRosterCursor c = window > 0 ? MappedRosterCursor.open(f, window) : MappedRosterCursor.open(f)) {
+            while (c.next()) rows.add(c.rollNo() + "/" + c.marks() + "/" + c.course() + "@" + c.offset());
+        }
+        return rows;
+    }
+
+    private static void mapped() throws Exception {
+        String[] lines = {"1,Zoë,zoe@uni.edu,CS,77.5", "not a record", "-2,Ōta,ota@uni.edu,SE,64", "3,Bad,bad@uni.edu,CS,",
+                "1,Again,again@uni.edu,SE,1e1", "4,Grace,grace@uni.edu,CS,88.25"};
+        StringBuilder text = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        String[] kept = {"1/77.5/CS", null, "-2/64.0/SE", null, "1/10.0/SE", "4/88.25/CS"};
+        for (int i = 0; i < lines.length; i++) {
+            if (kept[i] != null) expected.add(kept[i] + "@" + text.toString().getBytes(StandardCharsets.UTF_8).length);
+            text.append(lines[i]).append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        File f = tempFile(".txt");
+        write(f, text.toString());
+        List<String> rows = cursorRows(f, 0);
+        check(rows.equals(expected), "the cursor yields every parseable row as stored, repeats included, at its offset " + rows);
+        check(cursorRows(f, 40).equals(expected), "mapped in windows smaller than the file, rows still end on line breaks");
+        check(throwsA(IOException.class, () -> cursorRows(f, 8)), "a line longer than the map window is an error, not a split row");
+        check(cursorRows(tempFile(".txt"), 0).isEmpty(), "an empty file has no rows");
+    }
+
+    private static void compressed() throws Exception {
+        // enough text for several 64 KB blocks, one record kept from an older file with marks out of range
+        File text = tempFile(".txt"), snap = tempFile(CompressedSnapshot.SUFFIX);
+        StringBuilder sb = new StringBuilder();
+        for (int roll = 1; roll <= 4000; roll++)
+            sb.append(roll).append(",Name ").append(roll).append(" Ünal,n").append(roll).append("@uni.edu,")
+                    .append(roll % 4 == 0 ? "SE" : "CS").append(',').append(roll == 777 ? "120.0" : String.valueOf(roll % 10001 / 100.0)).append('\n');
+        write(text, sb.toString());
+        StudentManager m = new StudentManager(false);
+        m.loadFromFile(text.getPath());
+        m.saveToFile(snap.getPath());
+        StudentManager back = new StudentManager(false);
+        back.loadFromFile(snap.getPath());
+        check(snap.length() < text.length() / 2 && fileLines(back).equals(fileLines(m)),
+                "a snapshot is a fraction of the text and loads back to the same roster (" + snap.length() + " of " + text.length() + " bytes)");
+        check(back.searchStudent(777).marks() == 120, "a kept out-of-range record survives the snapshot round trip");
+        boolean found = true;
+        for (int roll : new int[] {1, 1500, 1501, 2999, 3000, 4000}) found &= m.readRecord(snap.getPath(), roll).toFileString()
+                .equals(m.searchStudent(roll).toFileString());
+        check(found && throwsA(StudentNotFoundException.class, () -> m.readRecord(snap.getPath(), 4001)),
+                "a point read inflates the block covering the roll, first to last");
+        write(text, "1,Ada,ada@uni.edu,CS,91.0\n");
+        check(throwsA(IOException.class, () -> CompressedSnapshot.readAll(text)), "a file that is not a snapshot is refused");
+    }
+
+    static Set<String> fileLines(RecordActions r) {
+        Set<String> lines = new TreeSet<>();
+        for (Student s : r.getAllStudents()) lines.add(s.toFileString());
+        return lines;
+    }
+
+    private static void shards() throws Exception {
+        // an unsharded file from before the switch: marks tie across shards, and roll 7 was kept out of range
+        File f = tempFile(".txt");
+        for (int i = 0; i < 3; i++) {
+            File shard = new File(ShardedStudentManager.shardFile(f.getPath(), i));
+            for (File side : new File[] {shard, RecordIndex.sidecar(shard), ImportValidator.rejectsFile(shard)}) side.deleteOnExit();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int roll = 1; roll <= 30; roll++)
+            sb.append(roll).append(",Name").append(roll).append(",n").append(roll).append("@uni.edu,CS,")
+                    .append(roll == 7 ? "120.0" : String.valueOf(50 + roll % 4 * 10.0)).append('\n');
+        write(f, sb.toString());
+        StudentManager single = new StudentManager(false);
+        single.loadFromFile(f.getPath());
+        ShardedStudentManager sharded = new ShardedStudentManager(3);
+        sharded.loadFromFile(f.getPath());
+        check(sharded.size() == 30 && sharded.searchStudent(7).marks() == 120, "splitting an unsharded file keeps a kept record");
+        sharded.saveToFile(f.getPath());
+        ShardedStudentManager again = new ShardedStudentManager(3);
+        again.loadFromFile(f.getPath());
+        check(fileLines(again).equals(fileLines(single)), "a sharded save and load keep every record, the kept one included");
+
+        List<Integer> expected = new ArrayList<>(), merged = new ArrayList<>();
+        for (Student s : single.getStudentsSortedByMarks()) expected.add(s.rollNo);
+        for (Student s : again.getStudentsSortedByMarks()) merged.add(s.rollNo);
+        check(merged.equals(expected), "merged shard order breaks marks ties by roll, as one manager does");
+        again.updateMarks(30, 99);
+        again.removeStudent(29);
+        check(again.searchStudent(30).marks() == 99 && !again.contains(29) && again.size() == 29,
+                "writes go to the shard that owns the roll");
+    }
+
+    // true once both hold the same records, within a few seconds
+    static boolean converges(RecordActions leader, RecordActions follower) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            if (fileLines(leader).equals(fileLines(follower))) return true;
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    // leader/follower over TCP: snapshot catch-up, single writes, an interactive update, a transaction
+    private static void replication() throws Exception {
+        StudentManager m = new StudentManager(false);
+        for (int roll = 1; roll <= 6; roll++)
+            m.addStudent(new Student(roll, "Name" + roll, "n" + roll + "@uni.edu", roll <= 3 ? "SE" : "CS", 40 + roll * 5));
+        ReplicationLeader leader = new ReplicationLeader(m, 0);
+        leader.start();
+        ReplicationFollower follower = new ReplicationFollower("localhost", leader.port());
+        Thread t = new Thread(follower, "check-follower");
+        t.start();
+        try {
+            check(converges(leader, follower), "a follower catches up from the leader's snapshot");
+            leader.addStudent(new Student(21, "New", "new@uni.edu", "EE", 61));
+            leader.updateMarks(1, 99);
+            leader.removeStudent(2);
+            leader.updateStudent(new Scanner("2\nrenamed@uni.edu\n"), 3);
+            leader.moveCourse("SE", "ME");
+            check(converges(leader, follower), "a follower applies adds, updates, deletes, a prompted update and a transaction");
+            check("renamed@uni.edu".equals(follower.searchStudent(3).email) && !follower.contains(2)
+                    && "ME".equals(follower.searchStudent(1).course), "the follower sees the prompted email change, the delete and the move");
+            check(throwsA(UnsupportedOperationException.class, () -> follower.addStudent(new Student(30, "X", "x@uni.edu", "CS", 50)))
+                    && !leader.contains(30), "a follower refuses writes");
+        } finally {
+            follower.stop();
+            leader.stop();
+            t.join();
+        }
+
+        // a follower further behind than the log holds must be sent a fresh snapshot, not skip ahead
+        System.setProperty("students.replication.logSize", "4");
+        ReplicationLeader small;
+        try { small = new ReplicationLeader(m, 0); }
+        finally { System.clearProperty("students.replication.logSize"); }
+        small.start();
+        ReplicationFollower behind = new ReplicationFollower("localhost", small.port());
+        Thread bt = new Thread(behind, "check-follower-behind");
+        bt.start();
+        try {
+            converges(small, behind);
+            for (int i = 0; i < 200; i++) small.updateMarks(4, i % 100);
+            for (int roll = 100; roll < 120; roll++) small.addStudent(new Student(roll, "Burst" + roll, "b@uni.edu", "CS", 70));
+            check(converges(small, behind), "a follower lapped by a 4-entry log still ends up with every write");
+        } finally {
+            behind.stop();
+            small.stop();
+            bt.join();
+        }
+
+        ReplicationLog log = new ReplicationLog(4);
+        for (int i = 0; i < 6; i++) log.append(ReplicationProtocol.DELETE, i);
+        check(log.after(0, 10, 0) == null && log.after(2, 10, 0).size() == 4 && !log.retains(1) && log.retains(2),
+                "the log reports a reader whose next entry was overwritten instead of skipping it");
+
+        ReplicationLog quiet = new ReplicationLog(16);
+        Thread waker = new Thread(() -> { // notifies without appending, as a spurious wakeup would
+            for (int i = 0; i < 20; i++) {
+                synchronized (quiet) { quiet.notifyAll(); }
+                try { Thread.sleep(5); } catch (InterruptedException e) { return; }
+            }
+        });
+        waker.start();
+        long start = System.nanoTime();
+        List<byte[]> none = quiet.after(0, 10, 200);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        waker.join();
+        check(none.isEmpty() && waited >= 190, "ReplicationLog.after waits out its timeout despite early wakeups (" + waited + " ms)");
+    }
+
+    private static List<Integer> rollsOf(List<Student> students) {
+        List<Integer> rolls = new ArrayList<>(students.size());
+        for (Student s : students) rolls.add(s.rollNo);
+        return rolls;
+    }
+
+    private static void sort() throws Exception {
+        // few distinct marks so runs of ties are long, negative rolls, rolls added out of order
+        Random r = new Random(37);
+        List<Student> students = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            int roll = r.nextInt(20000) - 5000;
+            students.add(new Student(roll, "N" + roll, "n@uni.edu", "CS", r.nextInt(40) * 2.5));
+        }
+        List<Student> byComparator = new ArrayList<>(students);
+        byComparator.sort(Comparator.comparingInt((Student s) -> s.hundredths).thenComparingInt(s -> s.rollNo));
+        check(rollsOf(StudentManager.sortedByMarks(students)).equals(rollsOf(byComparator)),
+                "the counting sort orders by marks, ties by roll, negative rolls included");
+        // records kept from an older file can be out of 0..100, which the counting sort does not cover
+        students.add(new Student(1, "High", "h@uni.edu", "CS", 120));
+        students.add(new Student(2, "Low", "l@uni.edu", "CS", -5));
+        students.add(new Student(3, "Also high", "a@uni.edu", "CS", 120));
+        byComparator = new ArrayList<>(students);
+        byComparator.sort(Comparator.comparingInt((Student s) -> s.hundredths).thenComparingInt(s -> s.rollNo));
+        List<Student> sorted = StudentManager.sortedByMarks(students);
+        check(rollsOf(sorted).equals(rollsOf(byComparator)) && sorted.get(0).rollNo == 2 && sorted.get(sorted.size() - 1).rollNo == 3,
+                "marks outside 0..100 fall back to a full sort and keep every record");
+        check(StudentManager.sortedByMarks(new ArrayList<>()).isEmpty(), "an empty roster sorts to an empty list");
+
+        File f = tempFile(".txt");
+        write(f, "5,Ada,ada@uni.edu,CS,91.0\n9,Kept,kept@uni.edu,CS,130.0\n4,Alan,alan@uni.edu,SE,91.0\n1,Grace,grace@uni.edu,CS,12.5\n");
+        StudentManager m = new StudentManager(false);
+        m.loadFromFile(f.getPath());
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 1 << 10);
+        check(rollsOf(m.getStudentsSortedByMarks()).equals(List.of(1, 4, 5, 9)) && rollsOf(disk.getStudentsSortedByMarks()).equals(List.of(1, 4, 5, 9)),
+                "a loaded roster, in memory or disk-resident, lists by marks with the kept record last");
+    }
+
+    private static void topK() throws Exception {
+        Random r = new Random(38);
+        StudentManager m = new StudentManager(false);
+        ShardedStudentManager sharded = new ShardedStudentManager(4);
+        String[] courses = {"CS", "SE", "EE"};
+        for (int roll = 1; roll <= 500; roll++) {
+            // marks tie often, so the name decides much of the order
+            Student s = new Student(roll, "N" + (roll * 7919 % 500), "n@uni.edu", courses[roll % 3], r.nextInt(20) * 5);
+            m.addStudent(s);
+            sharded.addStudent(s);
+        }
+        List<Student> ranked = m.getStudentsSorted(StudentManager.RANK_BY_MARKS);
+        boolean same = true;
+        for (int k : new int[] {0, 1, 7, 499, 500, 600}) {
+            List<Student> top = m.topK(k, StudentManager.RANK_BY_MARKS);
+            same &= rollsOf(top).equals(rollsOf(ranked.subList(0, Math.min(k, ranked.size()))));
+            same &= rollsOf(sharded.topK(k, StudentManager.RANK_BY_MARKS)).equals(rollsOf(top));
+        }
+        check(same, "top k is the head of the full ranking for k from 0 past the roster size, sharded too");
+
+        Map<String, List<Student>> perCourse = m.topKPerCourse(3);
+        boolean courseHeads = perCourse.keySet().equals(new TreeSet<>(Arrays.asList(courses))) && perCourse.equals(sharded.topKPerCourse(3));
+        for (String c : courses) {
+            List<Student> inCourse = new ArrayList<>();
+            for (Student s : ranked) if (s.course.equals(c)) inCourse.add(s);
+            courseHeads &= rollsOf(perCourse.get(c)).equals(rollsOf(inCourse.subList(0, 3)));
+        }
+        check(courseHeads, "top k per course is the head of each course's ranking");
+
+        List<Student> byCourse = m.getStudentsSorted(StudentManager.RANK_BY_COURSE);
+        boolean ordered = true;
+        for (int i = 1; i < byCourse.size(); i++) ordered &= StudentManager.RANK_BY_COURSE.compare(byCourse.get(i - 1), byCourse.get(i)) <= 0;
+        check(ordered && byCourse.size() == 500, "the course ranking groups by course, best first within each");
+        check(throwsA(IllegalArgumentException.class, () -> m.topK(-1, StudentManager.RANK_BY_MARKS))
+                && throwsA(IllegalArgumentException.class, () -> m.topKPerCourse(-1)), "a negative k is refused");
+
+        File f = tempFile(".txt");
+        m.saveToFile(f.getPath());
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 1 << 12);
+        check(rollsOf(disk.topK(10, StudentManager.RANK_BY_MARKS)).equals(rollsOf(ranked.subList(0, 10))),
+                "a disk-resident roster gives the same top k");
+    }
+
+    // the grade of each roll, as "roll:letter"
+    private static Set<String> grades(RecordActions r) {
+        Set<String> out = new TreeSet<>();
+        for (Student s : r.getAllStudents()) out.add(s.rollNo + ":" + s.grade());
+        return out;
+    }
+
+    // the policy is process-wide, so whatever is installed here is put back at the end
+    private static void regrade() throws Exception {
+        GradingPolicy term = GradingPolicy.current();
+        try {
+            GradingPolicy.use(GradingPolicy.parse("A:90,B:75,C:60,D:45,F:0"));
+            StudentManager m = new StudentManager(false);
+            double[] marks = {95, 89.99, 80, 70, 59.99, 40};
+            for (int i = 0; i < marks.length; i++) m.addStudent(new Student(i + 1, "N" + i, "n@uni.edu", "CS", marks[i]));
+            check(grades(m).equals(new TreeSet<>(List.of("1:A", "2:B", "3:B", "4:C", "5:D", "6:F"))), "grades follow the configured cut-offs");
+
+            File f = tempFile(".txt");
+            m.saveToFile(f.getPath());
+            StudentManager disk = new StudentManager(false);
+            disk.openDiskResident(f.getPath(), 1 << 12);
+            disk.searchStudent(2); // now in the hot set under the old grade
+            RosterMap before = m.snapshot();
+            ChangeFeed.Subscription feed = m.subscribeChanges();
+            int changed = m.regrade(GradingPolicy.parse("A:85,B:70,C:55,D:40,F:0"));
+            check(changed == 4 && grades(m).equals(new TreeSet<>(List.of("1:A", "2:A", "3:B", "4:B", "5:C", "6:D"))),
+                    "a re-grade moves everyone to the new cut-offs and counts who changed (" + changed + ")");
+            List<ChangeEvent> events = feed.poll(100, 0);
+            feed.close();
+            boolean updates = events.size() == 4;
+            for (ChangeEvent e : events) updates &= e.type == ChangeEvent.Type.UPDATE && e.before.grade() != e.after.grade();
+            check(updates, "each changed grade is published as an update with both grades");
+            check(before.get(2).grade() == 'B' && before.get(6).grade() == 'F', "a snapshot from before keeps the old grades");
+            disk.regrade(GradingPolicy.current());
+            check(disk.searchStudent(2).grade() == 'A' && disk.searchStudent(6).grade() == 'D',
+                    "a disk-resident roster re-grades records read back later and the ones it had cached");
+            check(m.regrade(GradingPolicy.current()) == 0, "a re-grade under the same policy changes nothing");
+        } finally {
+            GradingPolicy.use(term);
+        }
+    }
+
+    private static void grading() throws Exception {
+        // cut-offs off the whole-number grid, given out of order
+        GradeScale scale = GradeScale.parse("d:45, A:90.5, F:0, C:60.1, B:75");
+        double[] cuts = {45, 60.1, 75, 90.5};
+        char[] letters = {'F', 'D', 'C', 'B', 'A'};
+        boolean table = true;
+        for (int h = 0; h <= 10000; h++) {
+            int level = 0;
+            for (double cut : cuts) level += h / 100.0 >= cut ? 1 : 0;
+            table &= scale.gradeOfHundredths(h) == letters[level] && scale.gradeOf(h / 100.0) == letters[level];
+        }
+        check(table, "the compiled table grades every mark 0.00..100.00 as the cut-offs say, 60.09 and 60.10 included");
+        check("A:90.5,B:75,C:60.1,D:45,F:0".equals(scale.toString()) && new String(scale.letters()).equals("FDCBA"),
+                "a scale prints best first in normal form");
+        check(scale.gradeOf(-3) == 'F' && scale.gradeOf(130) == 'A', "marks outside 0..100 take the nearest grade");
+
+        GradingPolicy policy = GradingPolicy.parse("A:90,B:75,C:60,D:45,F:0; CS=A:80,B:65,C:50,P:40,F:0 ;EE = A:95,F:0");
+        check(policy.hasCourseRules() && policy.gradeOf("CS", 82) == 'A' && policy.gradeOf("SE", 82) == 'B'
+                && policy.gradeOf("EE", 94) == 'F' && policy.gradeOf("CS", 42) == 'P' && policy.gradeOf(null, 42) == 'F',
+                "per-course scales apply to their course, the default to the rest");
+        check(new String(policy.letters()).equals("ABCDFP") && GradingPolicy.parse(policy.toString()).toString().equals(policy.toString()),
+                "a policy lists every letter it can give and reads back from its own text");
+
+        String[] bad = {"A:90,B:90,F:0", "A:90,B:75,F", "1:90,F:0", "A:101,F:0", "A:x,F:0", "CS=A:80,F:0", "A:90,F:0; B:50,F:0", ""};
+        boolean refused = true;
+        for (String spec : bad) refused &= throwsA(IllegalArgumentException.class, () -> GradingPolicy.parse(spec));
+        check(refused, "duplicate minimums, bad letters or minimums, and a missing or second default scale are refused");
+    }
+
+    // MVCC: a snapshot is a fixed version, Students are never changed in place
+    private static void mvcc() throws Exception {
+        // the trie against a HashMap: rolls spread over every 5-bit level, negatives, and a dense run
+        Random r = new Random(41);
+        RosterMap map = RosterMap.EMPTY;
+        Map<Integer, Student> model = new HashMap<>();
+        List<RosterMap> versions = new ArrayList<>();
+        List<Map<Integer, Student>> models = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            int roll = i % 3 == 0 ? r.nextInt() : i % 3 == 1 ? r.nextInt(64) - 32 : r.nextInt(5000);
+            if (r.nextInt(4) == 0) {
+                map = map.remove(roll);
+                model.remove(roll);
+            } else {
+                Student s = new Student(roll, "N" + i, "n@uni.edu", "CS", i % 101);
+                map = map.put(s);
+                model.put(roll, s);
+            }
+            if (i % 2000 == 0) {
+                versions.add(map);
+                models.add(new HashMap<>(model));
+            }
+        }
+        check(sameContents(map, model), "put and remove agree with a HashMap over 20000 random changes");
+        boolean kept = true;
+        for (int i = 0; i < versions.size(); i++) kept &= sameContents(versions.get(i), models.get(i));
+        check(kept, "every earlier version still holds exactly what it held then");
+
+        RosterMap.Builder b = new RosterMap.Builder(map);
+        b.put(new Student(Integer.MIN_VALUE, "Min", "m@uni.edu", "CS", 1));
+        RosterMap built = b.build();
+        check(!map.containsKey(Integer.MIN_VALUE) && built.containsKey(Integer.MIN_VALUE) && built.size() == map.size() + 1
+                && throwsA(IllegalStateException.class, () -> b.put(new Student(1, "X", "x@uni.edu", "CS", 1))),
+                "a builder started from a version leaves it alone, and is done once built");
+
+        StudentManager m = new StudentManager(false);
+        for (int roll = 1; roll <= 4; roll++) m.addStudent(new Student(roll, "N" + roll, "n" + roll + "@uni.edu", "SE", 50 + roll));
+        RosterMap before = m.snapshot();
+        Student one = before.get(1);
+        m.updateMarks(1, 10);
+        m.updateEmail(1, "changed@uni.edu");
+        m.removeStudent(2);
+        m.addStudent(new Student(5, "New", "new@uni.edu", "CS", 75));
+        m.moveCourse("SE", "ME");
+        check(before.size() == 4 && before.get(1) == one && before.containsKey(2) && !before.containsKey(5),
+                "a snapshot keeps its version while writers go on");
+        check(one.marks() == 51 && "n1@uni.edu".equals(one.email) && "SE".equals(one.course),
+                "a Student read from a snapshot never changes");
+        Student now = m.searchStudent(1);
+        check(now.marks() == 10 && "changed@uni.edu".equals(now.email) && "ME".equals(now.course) && m.size() == 4,
+                "the manager's current version has every write");
+
+        // a reader walking a snapshot while a writer churns sees one whole version
+        StudentManager busy = new StudentManager(false);
+        for (int roll = 0; roll < 5000; roll++) busy.addStudent(new Student(roll, "N" + roll, "n@uni.edu", "CS", 50));
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; !stop.get(); i++) {
+                    busy.removeStudent(i % 5000);
+                    busy.addStudent(new Student(i % 5000, "W" + i, "n@uni.edu", "CS", 60));
+                }
+            } catch (StudentNotFoundException | InvalidMarksException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        boolean whole = true;
+        for (int pass = 0; pass < 50; pass++) {
+            RosterMap v = busy.snapshot();
+            int n = 0;
+            for (Student s : v) n++;
+            whole &= n == v.size();
+        }
+        stop.set(true);
+        writer.join();
+        check(whole && busy.size() == 5000, "every pass over a snapshot sees as many records as its version holds");
+    }
+
+    private static boolean sameContents(RosterMap map, Map<Integer, Student> model) {
+        if (map.size() != model.size()) return false;
+        int n = 0;
+        for (Student s : map) {
+            if (model.get(s.rollNo) != s) return false;
+            n++;
+        }
+        for (Map.Entry<Integer, Student> e : model.entrySet()) if (map.get(e.getKey()) != e.getValue()) return false;
+        return n == model.size();
+    }
+
+    private static void transactions() throws Exception {
+        StudentManager m = new StudentManager(false);
+        for (int roll = 1; roll <= 6; roll++) m.addStudent(new Student(roll, "N" + roll, "n" + roll + "@uni.edu", roll <= 3 ? "SE" : "CS", 50 + roll));
+
+        Transaction stale = m.beginTransaction();
+        stale.updateMarks(3, 90);
+        stale.updateMarks(4, 90);
+        m.updateMarks(3, 20);
+        check(throwsA(TransactionConflictException.class, () -> m.commit(stale)) && m.searchStudent(3).marks() == 20
+                && m.searchStudent(4).marks() == 54, "a transaction over a record changed since it read it conflicts and applies nothing");
+
+        // the body's first run loses a race for roll 5; run starts over and the second attempt commits
+        int[] attempts = {0};
+        int written = Transaction.run(m, tx -> {
+            Student s = tx.get(5);
+            if (attempts[0]++ == 0) {
+                try { m.updateMarks(5, 1); } catch (StudentNotFoundException | InvalidMarksException e) { throw new IllegalStateException(e); }
+            }
+            tx.updateMarks(5, s.marks() + 10);
+        });
+        check(written == 1 && attempts[0] == 2 && m.searchStudent(5).marks() == 11, "a conflicted run starts over from fresh reads");
+        int[] tries = {0};
+        check(throwsA(TransactionConflictException.class, () -> Transaction.run(m, tx -> {
+            tries[0]++;
+            tx.updateMarks(6, tx.get(6).marks() + 1);
+            try { m.updateEmail(6, "n6." + tries[0] + "@uni.edu"); } catch (StudentNotFoundException e) { throw new IllegalStateException(e); }
+        })) && tries[0] == Transaction.MAX_ATTEMPTS && m.searchStudent(6).marks() == 56,
+                "a run that always conflicts gives up after " + Transaction.MAX_ATTEMPTS + " attempts with nothing applied");
+
+        Transaction tx = m.beginTransaction();
+        check(!tx.add(new Student(1, "Dup", "d@uni.edu", "CS", 1)) && throwsA(StudentNotFoundException.class, () -> tx.remove(99))
+                && throwsA(InvalidMarksException.class, () -> tx.updateMarks(1, 101)), "a transaction refuses duplicates, missing rolls and bad marks");
+
+        check(m.curveCourse("CS", 47.5) == 3 && m.searchStudent(4).marks() == 100 && m.searchStudent(5).marks() == 58.5
+                && m.searchStudent(1).marks() == 51, "a curve adds to one course only, capped at 100");
+        // readers of snapshots see a course moved all at once or not at all
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread mover = new Thread(() -> {
+            try {
+                for (int i = 0; !stop.get(); i++) m.moveCourse(i % 2 == 0 ? "SE" : "ME", i % 2 == 0 ? "ME" : "SE");
+            } catch (TransactionConflictException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        mover.start();
+        boolean whole = true;
+        for (int i = 0; i < 2000; i++) {
+            int se = 0, me = 0;
+            for (Student s : m.snapshot()) {
+                if ("SE".equals(s.course)) se++;
+                if ("ME".equals(s.course)) me++;
+            }
+            whole &= se + me == 3 && (se == 0 || me == 0);
+        }
+        stop.set(true);
+        mover.join();
+        check(whole, "a course move is seen whole or not at all");
+
+        // across shards: a conflict on one shard leaves the others untouched
+        ShardedStudentManager sharded = new ShardedStudentManager(3);
+        for (int roll = 1; roll <= 6; roll++) sharded.addStudent(new Student(roll, "N" + roll, "n@uni.edu", "CS", 50));
+        Transaction wide = sharded.beginTransaction();
+        for (int roll = 1; roll <= 6; roll++) wide.updateMarks(roll, 70);
+        sharded.updateMarks(6, 60);
+        boolean untouched = throwsA(TransactionConflictException.class, () -> sharded.commit(wide));
+        for (int roll = 1; roll <= 5; roll++) untouched &= sharded.searchStudent(roll).marks() == 50;
+        check(untouched, "a sharded commit that conflicts on one shard applies nothing on any");
+        check(sharded.curveCourse("CS", 5) == 6 && sharded.searchStudent(1).marks() == 55, "a curve across shards commits on all of them");
 
-    public Student(int rollNo, String name, String email, String course, double marks) {
-        super(name, email);
-        this.rollNo = rollNo;
-        this.course = course;
-        this.marks = marks;
-        calculateGrade();
+        File f = tempFile(".txt");
+        m.saveToFile(f.getPath());
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 1 << 10);
+        disk.moveCourse("CS", "EE");
+        disk.saveToFile(f.getPath());
+        StudentManager back = new StudentManager(false);
+        back.loadFromFile(f.getPath());
+        int ee = 0;
+        for (Student s : back.getAllStudents()) if ("EE".equals(s.course)) ee++;
+        check(ee == 3 && back.size() == 6, "a transaction on a disk-resident roster is saved with the rest");
     }
 
-    public void calculateGrade() {
-        if (marks >= 90) grade = 'A';
-        else if (marks >= 75) grade = 'B';
-        else if (marks >= 60) grade = 'C';
-        else if (marks >= 45) grade = 'D';
-        else grade = 'F';
+    // a manager whose change feed holds 'capacity' events and cuts a subscriber off after maxStallMillis
+    private static StudentManager withFeed(int capacity, long maxStallMillis, int records) throws InvalidMarksException {
+        System.setProperty("students.changes.capacity", String.valueOf(capacity));
+        System.setProperty("students.changes.maxStallMillis", String.valueOf(maxStallMillis));
+        StudentManager m;
+        try { m = new StudentManager(false); }
+        finally {
+            System.clearProperty("students.changes.capacity");
+            System.clearProperty("students.changes.maxStallMillis");
+        }
+        for (int roll = 1; roll <= records; roll++) m.addStudent(new Student(roll, "N" + roll, "n@uni.edu", "CS", 50));
+        return m;
     }
 
-    // overloaded update
-    public void update(double newMarks) { this.marks = newMarks; calculateGrade(); }
-    public void update(String newEmail) { this.email = newEmail; }
-
-    @Override
-    void displayDetails() {
-        System.out.printf("Roll: %d | Name: %s | Email: %s | Course: %s | Marks: %.2f | Grade: %c%n",
-                rollNo, name, email, course, marks, grade);
+    // every event until n have come, in order, polled in small batches with a pause between them
+    private static List<ChangeEvent> drain(ChangeFeed.Subscription sub, int n, long pauseMillis) throws InterruptedException {
+        List<ChangeEvent> got = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (got.size() < n && System.nanoTime() < deadline) {
+            got.addAll(sub.poll(4, 100));
+            if (pauseMillis > 0) Thread.sleep(pauseMillis);
+        }
+        return got;
     }
 
-    public String toFileString() {
-        // CSV safe: escape commas by replacing with space (simple approach)
-        return rollNo + "," + name.replace(",", " ") + "," + email.replace(",", " ") + "," + course.replace(",", " ") + "," + marks;
+    private static boolean inOrder(List<ChangeEvent> events, long from) {
+        for (int i = 0; i < events.size(); i++) if (events.get(i).seq != from + i) return false;
+        return true;
     }
 
-    public static Student fromFileString(String line) {
-        String[] p = line.split(",", 5);
-        int r = Integer.parseInt(p[0]);
-        String n = p[1];
-        String e = p[2];
-        String c = p[3];
-        double m = Double.parseDouble(p[4]);
-        return new Student(r, n, e, c, m);
+    private static long stat(StudentManager m, String name) {
+        Map<String, Object> stats = new HashMap<>();
+        m.addChangeStats(stats);
+        return ((Number) stats.get(name)).longValue();
     }
-}
 
-// --------------------- Loader (multithreaded UI effect) ---------------------
-class Loader implements Runnable {
-    private final String message;
-    private volatile boolean running = true;
+    private static void changes() throws Exception {
+        // a subscriber slower than the writer: 16 events of room, 500 writes
+        StudentManager m = withFeed(16, 10_000, 10);
+        ChangeFeed.Subscription slow = m.subscribeChanges();
+        long from = slow.position();
+        Thread writer = new Thread(() -> {
+            try { for (int i = 0; i < 500; i++) m.updateMarks(1 + i % 10, i % 100); }
+            catch (StudentNotFoundException | InvalidMarksException e) { throw new IllegalStateException(e); }
+        });
+        writer.start();
+        List<ChangeEvent> got = drain(slow, 500, 1);
+        writer.join();
+        check(got.size() == 500 && inOrder(got, from) && got.get(499).after.marks() == 99 && stat(m, "changes.cutOff") == 0,
+                "a slow subscriber gets every event in order, none dropped (" + got.size() + ")");
+        check(stat(m, "changes.writerStallMicros") > 0 && stat(m, "changes.maxSubscriberLag") == 0, "the writer was held back to the subscriber's pace");
 
-    Loader(String message) { this.message = message; }
+        // the subscriber stops reading: the next writer waits, but not while holding the manager
+        ChangeFeed.Subscription idle = m.subscribeChanges();
+        for (int i = 0; i < 16; i++) m.updateMarks(2, i);
+        slow.close();
+        CountDownLatch wrote = new CountDownLatch(1);
+        Thread blocked = new Thread(() -> {
+            try { m.updateMarks(3, 77); } catch (StudentNotFoundException | InvalidMarksException e) { throw new IllegalStateException(e); }
+            wrote.countDown();
+        });
+        blocked.start();
+        boolean waiting = !wrote.await(200, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        boolean free;
+        synchronized (m) { free = true; }
+        Student read = m.searchStudent(2);
+        List<Student> all = m.getAllStudents();
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        check(waiting && free && read.marks() == 15 && all.size() == 10 && took < 100,
+                "a writer held back by a full feed leaves the monitor, reads and lookups free (" + took + " ms)");
+        List<ChangeEvent> rest = drain(idle, 17, 0);
+        check(wrote.await(5, TimeUnit.SECONDS) && rest.size() == 17 && rest.get(16).after.marks() == 77,
+                "reading on lets the held-back write through, and its event follows the rest");
+        blocked.join();
 
-    public void stop() { running = false; }
+        // a write of more events than the room left waits for the subscriber to catch up, then fits whole
+        ChangeFeed.Subscription behind = m.subscribeChanges();
+        for (int i = 0; i < 10; i++) m.updateMarks(4, i);
+        idle.close();
+        Thread poller = new Thread(() -> {
+            try { Thread.sleep(100); behind.poll(100, 0); } catch (InterruptedException ignored) { }
+        });
+        poller.start();
+        m.curveCourse("CS", 1); // ten writes in one commit
+        poller.join();
+        List<ChangeEvent> bulk = behind.poll(100, 0);
+        check(bulk.size() == 10 && stat(m, "changes.cutOff") == 0, "a bulk commit waits for room outside the monitor instead of lapping the subscriber");
+        behind.close();
 
-    @Override
-    public void run() {
-        System.out.print(message);
+        // last resort: a subscriber that never reads is cut off once writers have waited maxStallMillis on it
+        StudentManager stuck = withFeed(16, 200, 1);
+        ChangeFeed.Subscription dead = stuck.subscribeChanges();
+        start = System.nanoTime();
+        for (int i = 0; i < 40; i++) stuck.updateMarks(1, i);
+        long stalled = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        check(stalled >= 190 && stalled < 2000 && stat(stuck, "changes.cutOff") == 1
+                && throwsA(IllegalStateException.class, () -> dead.poll(1, 0)),
+                "a subscriber that stops reading is cut off after maxStallMillis (" + stalled + " ms), and told so");
+    }
+
+    // the checked exception a failed future carries, or null if it completed
+    private static Throwable failure(CompletableFuture<?> f) throws InterruptedException {
         try {
-            int dots = 0;
-            while (running && dots < 10) {
-                System.out.print(".");
-                Thread.sleep(300);
-                dots++;
+            f.get(5, TimeUnit.SECONDS);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (TimeoutException e) {
+            return e;
+        }
+    }
+
+    private static void async() throws Exception {
+        StudentManager m = withFeed(64, 1000, 3);
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordActions slow = around(m, (method, args) -> {
+            if (method.equals("searchStudent")) {
+                reads.incrementAndGet();
+                gate.await(5, TimeUnit.SECONDS);
             }
-        } catch (InterruptedException ignored) { }
-        System.out.println(" done.");
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try (AsyncRecordActions a = new AsyncRecordActions(slow, pool)) {
+            // a fan-out over one roll while the first read is still running joins that read
+            List<CompletableFuture<Student>> fan = new ArrayList<>();
+            for (int i = 0; i < 200; i++) fan.add(a.searchStudent(2));
+            boolean pending = !fan.get(0).isDone();
+            fan.get(7).cancel(true);
+            gate.countDown();
+            CompletableFuture.allOf(fan.stream().filter(f -> !f.isCancelled()).toArray(CompletableFuture<?>[]::new))
+                    .get(5, TimeUnit.SECONDS);
+            check(pending && reads.get() == 1 && a.coalescedLookups() == 199,
+                    "200 lookups of one roll in flight together cost one read (" + reads.get() + " read(s))");
+            check(fan.get(0).join().rollNo == 2 && fan.get(199).join() == fan.get(0).join(),
+                    "cancelling one caller's lookup leaves the shared read and everyone else's result alone");
+            check(a.searchStudent(2).get(5, TimeUnit.SECONDS).rollNo == 2 && reads.get() == 2,
+                    "a lookup after the read completed starts a fresh read");
+
+            // failures come back as the blocking call's checked exception, one per caller
+            CompletableFuture<Student> missing = a.searchStudent(99), missingToo = a.searchStudent(99);
+            check(failure(missing) instanceof StudentNotFoundException && failure(missingToo) instanceof StudentNotFoundException,
+                    "a lookup of a missing roll fails every caller with StudentNotFoundException");
+            check(failure(a.updateMarks(1, 140)) instanceof InvalidMarksException
+                    && failure(a.updateEmail(99, "x@uni.edu")) instanceof StudentNotFoundException
+                    && failure(a.removeStudent(99)) instanceof StudentNotFoundException
+                    && m.searchStudent(1).marks() == 50, "failed writes fail their futures with the checked exception and change nothing");
+
+            // a write retires the lookup in flight, so a lookup issued after the write never sees the old record
+            CountDownLatch hold = new CountDownLatch(1);
+            AtomicInteger held = new AtomicInteger();
+            try (AsyncRecordActions b = new AsyncRecordActions(around(m, (method, args) -> {
+                if (method.equals("searchStudent") && held.getAndIncrement() == 0) hold.await(5, TimeUnit.SECONDS);
+            }), pool)) {
+                CompletableFuture<Student> stale = b.searchStudent(3);
+                b.updateMarks(3, 91).get(5, TimeUnit.SECONDS);
+                CompletableFuture<Student> fresh = b.searchStudent(3);
+                Student after = fresh.get(5, TimeUnit.SECONDS);
+                hold.countDown();
+                check(after.marks() == 91 && stale.get(5, TimeUnit.SECONDS).rollNo == 3 && b.coalescedLookups() == 0,
+                        "a lookup after a write does not join a read that started before it");
+            }
+        }
+        // a pool that refuses work fails the future instead of throwing at the caller
+        pool.shutdownNow();
+        try (AsyncRecordActions refused = new AsyncRecordActions(slow, pool)) {
+            CompletableFuture<Student> lookup = refused.searchStudent(1);
+            CompletableFuture<Integer> size = refused.size();
+            check(failure(lookup) instanceof RejectedExecutionException && failure(size) instanceof RejectedExecutionException,
+                    "work the executor rejects fails its future with RejectedExecutionException");
+            check(refused.searchStudent(1).isCompletedExceptionally(), "a rejected lookup is not left behind for later callers to join");
+        }
+        // an in-memory manager reads without locking, so its lookups complete on the calling thread
+        try (AsyncRecordActions direct = new AsyncRecordActions(m, pool)) {
+            CompletableFuture<Student> found = direct.searchStudent(1), missing = direct.searchStudent(99);
+            check(found.isDone() && found.join().rollNo == 1 && missing.isDone() && failure(missing) instanceof StudentNotFoundException,
+                    "in-memory lookups complete at once, found or not");
+        }
     }
-}
 
-// --------------------- StudentManager ---------------------
-class StudentManager implements RecordActions {
-    private final HashMap<Integer, Student> studentMap = new HashMap<>();
+    // keeps what a publisher sends; onRow runs after each row is kept, e.g. to ask for the next one
+    private static final class Rows implements Flow.Subscriber<Student> {
+        final List<Student> got = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger completions = new AtomicInteger();
+        volatile Throwable error;
+        volatile Flow.Subscription subscription;
+        private final java.util.function.Consumer<Rows> onRow;
+
+        Rows(java.util.function.Consumer<Rows> onRow) { this.onRow = onRow; }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) { subscription = s; }
+
+        @Override
+        public void onNext(Student s) {
+            got.add(s);
+            onRow.accept(this);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            error = e;
+            done.countDown();
+        }
 
-    // synchronized for thread-safety when modifying collection
-    private synchronized boolean isDuplicate(int rollNo) {
-        return studentMap.containsKey(rollNo);
+        @Override
+        public void onComplete() {
+            completions.incrementAndGet();
+            done.countDown();
+        }
     }
 
-    private void validateMarks(Double marks) throws InvalidMarksException {
-        if (marks == null) throw new InvalidMarksException("Marks cannot be null");
-        if (marks < 0 || marks > 100) throw new InvalidMarksException("Marks must be between 0 and 100");
+    private static void streams() throws Exception {
+        StudentManager m = new StudentManager(false);
+        String[] courses = {"CS", "SE", "EE"};
+        for (int roll = 1; roll <= 2000; roll++) m.addStudent(new Student(roll, "N" + roll, "n@uni.edu", courses[roll % 3], roll * 37 % 101));
+
+        // a subscriber gets exactly what it asked for, and completion only once it has had everything
+        Rows paced = new Rows(r -> { });
+        m.publishStudents(null, false).on(Runnable::run).subscribe(paced);
+        paced.subscription.request(5);
+        int afterFive = paced.got.size();
+        paced.subscription.request(10);
+        int afterFifteen = paced.got.size();
+        boolean openEarly = paced.completions.get() == 0;
+        paced.subscription.request(Long.MAX_VALUE);
+        paced.subscription.request(1);
+        check(afterFive == 5 && afterFifteen == 15 && openEarly && paced.got.size() == 2000 && paced.completions.get() == 1,
+                "rows go out as requested (" + afterFive + ", " + afterFifteen + ", " + paced.got.size() + ") and complete once");
+
+        // one row at a time, asked for from inside onNext on the subscribing thread, neither recurses nor loses rows
+        Rows oneByOne = new Rows(r -> r.subscription.request(1));
+        m.publishStudents("CS", true).on(Runnable::run).subscribe(oneByOne);
+        oneByOne.subscription.request(1);
+        List<Student> cs = new ArrayList<>();
+        for (Student s : m.getStudentsSortedByMarks()) if (s.course.equals("CS")) cs.add(s);
+        check(oneByOne.error == null && oneByOne.got.equals(cs), "request(1) from onNext streams the CS course in marks order, no recursion");
+
+        Rows stopper = new Rows(r -> { if (r.got.size() == 3) r.subscription.cancel(); });
+        m.publishStudents(null, false).on(Runnable::run).subscribe(stopper);
+        stopper.subscription.request(100);
+        Rows zero = new Rows(r -> { });
+        m.publishStudents(null, false).on(Runnable::run).subscribe(zero);
+        zero.subscription.request(0);
+        check(stopper.got.size() == 3 && stopper.completions.get() == 0 && stopper.error == null,
+                "cancel from onNext stops delivery with no completion");
+        check(zero.error instanceof IllegalArgumentException && zero.got.isEmpty(), "request(0) ends the stream with IllegalArgumentException");
+
+        // the default executor delivers off the subscribing thread
+        Rows background = new Rows(r -> { });
+        m.publishStudents(null, true).subscribe(background);
+        background.subscription.request(Long.MAX_VALUE);
+        check(background.done.await(5, TimeUnit.SECONDS) && background.got.equals(m.getStudentsSortedByMarks()),
+                "the default executor streams every row in marks order");
+
+        // disk-resident: pages are read as demand comes, without holding the manager between them
+        File f = tempFile(".txt");
+        m.saveToFile(f.getPath());
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 1 << 12);
+        Rows fromDisk = new Rows(r -> { });
+        disk.publishStudents(null, true).on(Runnable::run).subscribe(fromDisk);
+        fromDisk.subscription.request(1);
+        List<Student> byMarks = m.getStudentsSortedByMarks();
+        int firstRoll = fromDisk.got.get(0).rollNo, changedRoll = byMarks.get(1999).rollNo, deletedRoll = byMarks.get(1998).rollNo;
+        Thread writer = new Thread(() -> {
+            try {
+                disk.updateMarks(changedRoll, 0);
+                disk.removeStudent(deletedRoll);
+            } catch (StudentNotFoundException | InvalidMarksException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        writer.join(2000);
+        boolean wrote = !writer.isAlive();
+        fromDisk.subscription.request(Long.MAX_VALUE);
+        Student changed = null;
+        for (Student s : fromDisk.got) if (s.rollNo == changedRoll) changed = s;
+        boolean deletedSkipped = fromDisk.got.stream().noneMatch(s -> s.rollNo == deletedRoll);
+        check(wrote && firstRoll == byMarks.get(0).rollNo && fromDisk.completions.get() == 1,
+                "a paused disk-resident stream leaves writers free");
+        check(fromDisk.got.size() == 1999 && deletedSkipped && changed != null && changed.marks() == 0,
+                "rows on later pages come as they are when read: changed ones updated, deleted ones skipped");
+        Rows diskCourse = new Rows(r -> { });
+        disk.publishStudents("SE", false).on(Runnable::run).subscribe(diskCourse);
+        diskCourse.subscription.request(Long.MAX_VALUE);
+        Set<Integer> se = new TreeSet<>();
+        for (Student s : disk.getAllStudents()) if (s.course.equals("SE")) se.add(s.rollNo);
+        check(new TreeSet<>(rollsOf(diskCourse.got)).equals(se) && diskCourse.got.size() == se.size(),
+                "a disk-resident course stream has each of the course's rows once");
     }
 
-    @Override
-    public void addStudent(Scanner sc) throws InvalidMarksException {
-        System.out.print("Enter Roll No: ");
-        String rs = sc.nextLine().trim();
-        if (rs.isEmpty()) { System.out.println("Roll No required."); return; }
-        int roll;
-        try { roll = Integer.parseInt(rs); } catch (NumberFormatException e) { System.out.println("Invalid roll format."); return; }
+    private static Set<Integer> matching(List<Student> students, Predicate<Student> filter) {
+        Set<Integer> rolls = new TreeSet<>();
+        for (Student s : students) if (filter.test(s)) rolls.add(s.rollNo);
+        return rolls;
+    }
 
-        synchronized (this) {
-            if (isDuplicate(roll)) { System.out.println("Duplicate roll number. Aborted."); return; }
+    // every access path the planner picks returns what a plain filter over the roster does
+    private static void queries() throws Exception {
+        StudentManager m = new StudentManager(false);
+        Random rnd = new Random(42);
+        String[] courses = {"CS", "SE", "EE", "ME"};
+        for (int i = 1; i <= 5000; i++) {
+            m.addStudent(new Student(i * 3, "Student" + i, "s" + i + "@uni.edu", courses[rnd.nextInt(courses.length)],
+                    rnd.nextInt(10001) / 100.0));
         }
+        Map<String, Predicate<Student>> filters = new LinkedHashMap<>();
+        filters.put("course = \"CS\" AND marks BETWEEN 60 AND 75", s -> s.course.equals("CS") && s.marks() >= 60 && s.marks() <= 75);
+        filters.put("marks BETWEEN 99.5 AND 100", s -> s.marks() >= 99.5);
+        filters.put("grade = 'A' OR marks < 40", s -> s.grade() == 'A' || s.marks() < 40);
+        filters.put("NOT course IN ('CS', 'EE') AND roll > 6000", s -> !s.course.equals("CS") && !s.course.equals("EE") && s.rollNo > 6000);
+        filters.put("roll IN (3, 9, 4)", s -> s.rollNo == 3 || s.rollNo == 9);
+        for (Map.Entry<String, Predicate<Student>> f : filters.entrySet()) {
+            Set<Integer> expected = matching(m.getAllStudents(), f.getValue());
+            StringBuilder first = new StringBuilder(), second = new StringBuilder();
+            Set<Integer> scanned = matching(m.query(f.getKey(), first), s -> true);
+            Set<Integer> indexed = matching(m.query(f.getKey(), second), s -> true);
+            check(scanned.equals(expected) && indexed.equals(expected),
+                    "query " + f.getKey() + ": " + expected.size() + " row(s) [" + first + "] [" + second + "]");
+        }
+        StringBuilder plan = new StringBuilder();
+        m.query("roll IN (3, 9, 4)", plan);
+        check(plan.toString().startsWith("roll index"), "a query pinned to roll numbers uses the roll index");
 
-        System.out.print("Enter Name: ");
-        String name = sc.nextLine().trim();
-        if (name.isEmpty()) { System.out.println("Name required."); return; }
+        List<Student> top = m.query("marks >= 50 ORDER BY marks DESC LIMIT 10");
+        List<Student> expected = new ArrayList<>(m.getAllStudents());
+        expected.sort(Comparator.comparingInt((Student s) -> -s.hundredths).thenComparingInt(s -> s.rollNo));
+        check(top.equals(expected.subList(0, 10)), "ORDER BY marks DESC LIMIT 10 matches a full sort, ties by roll");
 
-        System.out.print("Enter Email: ");
-        String email = sc.nextLine().trim();
-        if (email.isEmpty()) { System.out.println("Email required."); return; }
+        File f = tempFile(".txt");
+        m.saveToFile(f.getPath());
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 0);
+        disk.updateMarks(3, 65);
+        for (Map.Entry<String, Predicate<Student>> q : filters.entrySet()) {
+            plan.setLength(0);
+            Set<Integer> got = matching(disk.query(q.getKey(), plan), s -> true);
+            check(got.equals(matching(disk.getAllStudents(), q.getValue())), "disk-resident query " + q.getKey() + " [" + plan + "]");
+        }
+        check(throwsA(InvalidQueryException.class, () -> m.query("marks >")), "an incomplete query is rejected with InvalidQueryException");
+    }
 
-        System.out.print("Enter Course: ");
-        String course = sc.nextLine().trim();
-        if (course.isEmpty()) { System.out.println("Course required."); return; }
+    // import validation over several batches: unreadable lines and repeated rolls rejected, out-of-policy
+    // records kept with a warning, both reported in the rejects file in line order
+    private static void imports() throws Exception {
+        Map<Integer, String> bad = new TreeMap<>();
+        bad.put(2, "x,Bad,bad@uni.edu,CS,50");
+        bad.put(5000, "7,Again,again@uni.edu,CS,50");
+        bad.put(6000, "9001,Short,CS,50");
+        bad.put(7000, "9002,NoMarks,n@uni.edu,CS,abc");
+        bad.put(8000, "9003,Over,over@uni.edu,CS,120");
+        bad.put(8500, "9004,OldMail,oldmail,CS,60");
+        File file = tempFile(".txt");
+        int lineCount = 9000, good = lineCount - bad.size();
+        StringBuilder text = new StringBuilder();
+        for (int line = 1; line <= lineCount; line++) {
+            if (bad.containsKey(line)) text.append(bad.get(line)).append('\n');
+            else text.append(new Student(line, "Student" + line, "s" + line + "@uni.edu", "CS", line % 101).toFileString()).append('\n');
+        }
+        write(file, text.toString());
+        StudentManager m = new StudentManager(false);
+        m.loadFromFile(file.getPath());
+        check(m.rejectedOnLoad() == 4 && m.keptOnLoad() == 2 && m.size() == good + 2,
+                "import rejects 4 lines, keeps 2 out-of-policy records (" + m.rejectedOnLoad() + " rejected, "
+                        + m.keptOnLoad() + " kept, " + m.size() + " loaded)");
+        check(m.searchStudent(9003).marks() == 120 && "oldmail".equals(m.searchStudent(9004).email)
+                && "Student7".equals(m.searchStudent(7).name), "kept records load as they were, the first of a repeated roll wins");
+        List<Long> lines = new ArrayList<>();
+        for (String l : Files.readAllLines(ImportValidator.rejectsFile(file).toPath())) lines.add(Long.parseLong(l.substring(0, l.indexOf('\t'))));
+        check(lines.equals(bad.keySet().stream().map(Long::valueOf).collect(Collectors.toList())),
+                "rejects file lists every reported line in file order " + lines);
 
-        System.out.print("Enter Marks (0-100): ");
-        String ms = sc.nextLine().trim();
-        Double marks;
-        try { marks = Double.valueOf(ms); } catch (NumberFormatException e) { System.out.println("Invalid marks."); return; }
+        // the email rule is for imports; the menu and the servers take an address as they always have
+        StudentManager live = new StudentManager(false);
+        live.addStudent(new Scanner("1\nAda\nada\nCS\n91\n"));
+        StudentManager.promptUpdate(new Scanner("2\nada@lab\n"), 1, live);
+        check(live.contains(1) && "ada@lab".equals(live.searchStudent(1).email), "the menu adds and updates addresses without a dot-TLD");
+        StudentHttpServer server = new StudentHttpServer(live, 0);
+        server.start();
+        try {
+            int port = server.port();
+            String[] r = http(port, "POST", "/students", "{\"rollNo\":\"2\",\"name\":\"Alan\",\"email\":\"alan\",\"course\":\"SE\",\"marks\":\"64\"}");
+            check("201".equals(r[0]) && "alan".equals(live.searchStudent(2).email), "HTTP POST takes an address without a domain");
 
-        validateMarks(marks);
+            // PUT checks every field first, and applies marks and email together or not at all
+            r = http(port, "PUT", "/students/2", "{\"marks\":\"70\",\"email\":\" \"}");
+            check("400".equals(r[0]) && live.searchStudent(2).marks() == 64, "PUT with a blank email is 400 and leaves the marks alone");
+            r = http(port, "PUT", "/students/2", "{\"marks\":\"140\",\"email\":\"alan@uni.edu\"}");
+            check("400".equals(r[0]) && "alan".equals(live.searchStudent(2).email), "PUT with bad marks is 400 and leaves the email alone");
+            r = http(port, "PUT", "/students/2", "{\"marks\":\"x\",\"email\":\"alan@uni.edu\"}");
+            check("400".equals(r[0]) && "alan".equals(live.searchStudent(2).email), "PUT with unreadable marks is 400 and changes nothing");
+            r = http(port, "PUT", "/students/99", "{\"marks\":\"70\",\"email\":\"x@uni.edu\"}");
+            check("404".equals(r[0]) && !live.contains(99), "PUT of both fields on a missing roll is 404");
+            r = http(port, "PUT", "/students/2", "{\"marks\":\"70\",\"email\":\"alan@lab\"}");
+            Student both = live.searchStudent(2);
+            check("200".equals(r[0]) && both.marks() == 70 && "alan@lab".equals(both.email) && r[1].contains("alan@lab") && r[1].contains("70"),
+                    "PUT of marks and email applies both and answers the new record");
+        } finally {
+            server.stop();
+        }
+        BinaryStudentServer binary = new BinaryStudentServer(live, 0);
+        Thread bt = new Thread(binary, "check-binary-imports");
+        bt.start();
+        try (BinaryStudentClient c = new BinaryStudentClient("localhost", binary.port())) {
+            c.sendAdd(new Student(3, "Grace", "grace", "CS", 88));
+            c.flush();
+            check(c.receive().status == BinaryProtocol.OK && "grace".equals(live.searchStudent(3).email),
+                    "binary ADD takes an address without a domain");
+        } finally {
+            binary.stop();
+            bt.join();
+        }
 
-        Loader loader = new Loader("Adding student");
-        Thread t = new Thread(loader);
-        t.start();
+        // records kept out of policy replicate as the leader has them, by snapshot and by later writes
+        StudentManager source = new StudentManager(false);
+        File kept = tempFile(".txt");
+        write(kept, "1,Over,over@uni.edu,CS,120\n2,Old,oldmail,CS,60\n3,Fine,f@uni.edu,CS,70\n");
+        source.loadFromFile(kept.getPath());
+        ReplicationLeader leader = new ReplicationLeader(source, 0);
+        leader.start();
+        ReplicationFollower follower = new ReplicationFollower("localhost", leader.port());
+        Thread ft = new Thread(follower, "check-follower-kept");
+        ft.start();
+        try {
+            check(converges(leader, follower) && follower.searchStudent(1).marks() == 120 && "oldmail".equals(follower.searchStudent(2).email),
+                    "a follower's snapshot holds the kept records");
+            leader.updateEmail(1, "over@lab.edu");
+            leader.updateMarks(3, 71);
+            check(converges(leader, follower) && follower.searchStudent(1).marks() == 120 && "over@lab.edu".equals(follower.searchStudent(1).email)
+                    && follower.searchStudent(3).marks() == 71, "a write to a kept record replicates whole, marks of 120 included");
+        } finally {
+            follower.stop();
+            leader.stop();
+            ft.join();
+        }
+    }
 
-        // simulate work
-        try { Thread.sleep(900); } catch (InterruptedException ignored) { }
+    // hundredths from a stored line's marks field, read by the view over bytes
+    private static int viewHundredths(StudentView view, String marks) {
+        byte[] line = ("1,N,n@uni.edu,CS," + marks).getBytes(StandardCharsets.UTF_8);
+        return view.ofLine(line, line.length) ? view.hundredths() : Integer.MIN_VALUE;
+    }
 
-        synchronized (this) {
-            studentMap.put(roll, new Student(roll, name, email, course, marks)); // autoboxing/usage of wrappers happened above
+    private static void marks() throws Exception {
+        // the in-place parsers give what Double.parseDouble and rounding would, on every kind of text
+        StudentView view = new StudentView();
+        List<String> texts = new ArrayList<>(List.of("0", "100", "72.5", "72.50", "07.05", "5.", ".5", "99.99", "99.995",
+                "0.005", "1e2", "-5", "+5", " 7", "7 ", "123456789", "12345678.9", "1.0E7", "2.147483647E7"));
+        Random r = new Random(48);
+        for (int i = 0; i < 2000; i++) {
+            double d = r.nextInt(1_000_001) / 1000.0;
+            texts.add(String.valueOf(d));
+            texts.add(String.format(Locale.ROOT, "%.2f", d));
+        }
+        List<String> differ = new ArrayList<>();
+        for (String t : texts) {
+            int expected = Student.toHundredths(Double.parseDouble(t));
+            if (Student.parseHundredths(t, 0, t.length()) != expected || viewHundredths(view, t) != expected) differ.add(t);
         }
+        check(differ.isEmpty(), "marks text reads the same in place, from a String or bytes, as through parseDouble " + differ);
+        check(throwsA(NumberFormatException.class, () -> Student.parseHundredths(".", 0, 1))
+                && throwsA(NumberFormatException.class, () -> Student.parseHundredths("", 0, 0))
+                && throwsA(NumberFormatException.class, () -> Student.parseHundredths("7a", 0, 2))
+                && viewHundredths(view, ".") == Integer.MIN_VALUE && viewHundredths(view, "abc") == Integer.MIN_VALUE,
+                "text that is not a number is refused by both parsers");
 
-        loader.stop();
-        try { t.join(); } catch (InterruptedException ignored) { }
+        // every hundredth in range, and some kept out of it, survive a save and a load exactly
+        List<Integer> lost = new ArrayList<>();
+        int[] outside = {-1, -500, 10001, 12000, 1_000_000_000, Integer.MAX_VALUE};
+        for (int h = -1; h <= 10000 + outside.length; h++) {
+            int want = h <= 10000 ? h : outside[h - 10001];
+            String line = Student.ofHundredths(1, "N", "n@uni.edu", "CS", want).toFileString();
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            if (Student.fromFileString(line).hundredths != want || !view.ofLine(bytes, bytes.length) || view.hundredths() != want
+                    || view.toStudent().hundredths != want) lost.add(want);
+        }
+        check(lost.isEmpty(), "hundredths survive toFileString and both parsers exactly " + lost);
 
-        System.out.println("Student added successfully.");
+        // marks that add up to the same amount are the same, whatever double arithmetic made them
+        Student sum = new Student(1, "A", "a@uni.edu", "CS", 0.1 + 0.2), plain = new Student(2, "B", "b@uni.edu", "CS", 0.3);
+        check(sum.hundredths == plain.hundredths && sum.grade() == plain.grade(), "0.1 + 0.2 and 0.3 are the same marks");
+        StudentManager m = new StudentManager(false);
+        m.addStudent(new Student(3, "C", "c@uni.edu", "CS", 72.345));
+        m.addStudent(new Student(4, "D", "d@uni.edu", "CS", 72.35));
+        m.addStudent(new Student(5, "E", "e@uni.edu", "CS", 72.34));
+        check(rollsOf(m.getStudentsSortedByMarks()).equals(List.of(5, 3, 4)) && m.searchStudent(3).marks() == 72.35,
+                "marks round to the nearest hundredth and sort as whole hundredths, ties by roll");
+        check(Student.toHundredths(Double.NaN) == Integer.MIN_VALUE && Student.toHundredths(1e300) == Integer.MAX_VALUE
+                && throwsA(InvalidMarksException.class, () -> m.updateMarks(3, Double.NaN)) && m.searchStudent(3).marks() == 72.35,
+                "NaN and huge marks land outside the valid range and are turned away");
     }
 
-    @Override
-    public void updateStudent(Scanner sc, int rollNo) throws StudentNotFoundException, InvalidMarksException {
-        Student s;
-        synchronized (this) {
-            s = studentMap.get(rollNo);
+    // what body prints to System.out
+    private static String printed(Area body) throws Exception {
+        PrintStream console = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true, "UTF-8"));
+        try {
+            body.run();
+        } finally {
+            System.setOut(console);
         }
-        if (s == null) throw new StudentNotFoundException("Student not found: " + rollNo);
+        return bytes.toString("UTF-8");
+    }
 
-        System.out.println("Update Options: 1) Marks  2) Email");
-        System.out.print("Choice: ");
-        String opt = sc.nextLine().trim();
-        if ("1".equals(opt)) {
-            System.out.print("Enter new marks: ");
-            String ms = sc.nextLine().trim();
-            Double marks;
-            try { marks = Double.valueOf(ms); } catch (NumberFormatException e) { System.out.println("Invalid marks."); return; }
-            validateMarks(marks);
-            synchronized (this) { s.update(marks); }
-            System.out.println("Marks updated.");
-        } else if ("2".equals(opt)) {
-            System.out.print("Enter new email: ");
-            String email = sc.nextLine().trim();
-            if (email.isEmpty()) { System.out.println("Email required."); return; }
-            synchronized (this) { s.update(email); }
-            System.out.println("Email updated.");
-        } else {
-            System.out.println("Invalid option.");
+    // every visit of m's views against its own getAllStudents(): same records, each once, through one view,
+    // written and displayed exactly as the Student would be; returns what did not match
+    private static List<String> viewMismatches(StudentManager m) throws Exception {
+        Map<Integer, Student> expected = new HashMap<>();
+        for (Student s : m.getAllStudents()) expected.put(s.rollNo, s);
+        List<String> wrong = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        StudentView[] first = new StudentView[1];
+        int visited = m.forEachView(v -> {
+            if (first[0] == null) first[0] = v;
+            Student want = expected.get(v.rollNo());
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            v.writeLine(line);
+            try {
+                if (v != first[0]) wrong.add("a second view object");
+                if (want == null || !seen.add(v.rollNo())) wrong.add(v.rollNo() + " not expected or seen twice");
+                else if (!v.toStudent().sameState(want) || v.grade() != want.grade() || v.hundredths() != want.hundredths)
+                    wrong.add(v.rollNo() + " has different contents");
+                else if (!line.toString("UTF-8").equals(want.toFileString())) wrong.add(v.rollNo() + " writes " + line.toString("UTF-8"));
+                else if (!v.appendDetails(new StringBuilder()).toString().equals(printed(want::displayDetails)))
+                    wrong.add(v.rollNo() + " displays differently");
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        });
+        if (visited != expected.size() || seen.size() != expected.size()) wrong.add(visited + " visited of " + expected.size());
+        return wrong;
+    }
+
+    private static void views() throws Exception {
+        GradingPolicy term = GradingPolicy.current();
+        try {
+            // a course with its own scale makes a stored line decode its course to be graded
+            GradingPolicy.use(GradingPolicy.parse("A:90,B:75,C:60,D:45,F:0; SE=A:80,B:65,C:50,D:35,F:0"));
+            File f = tempFile(".txt");
+            StringBuilder text = new StringBuilder();
+            for (int roll = 1; roll <= 300; roll++)
+                text.append(new Student(roll, "N" + roll, "n" + roll + "@uni.edu", roll % 2 == 0 ? "SE" : "CS", roll % 101 + 0.25).toFileString()).append('\n');
+            text.append("301,Zoë Ångström,zoe@uni.edu,SE,78.5\n302,李雷,li@uni.edu,CS,64\n303,Over,over@uni.edu,CS,120\n")
+                    .append("304,Old,oldmail,SE,0\n305,Round,r@uni.edu,CS,100.0\n");
+            write(f, text.toString());
+
+            StudentManager m = new StudentManager(false);
+            m.loadFromFile(f.getPath());
+            List<String> wrong = viewMismatches(m);
+            check(wrong.isEmpty(), "in-memory views match their records, written and displayed alike " + wrong);
+
+            StudentManager disk = new StudentManager(false);
+            disk.openDiskResident(f.getPath(), 1 << 12);
+            disk.updateMarks(2, 91);      // now on the heap, over its stored line
+            disk.removeStudent(3);        // a stored line to skip
+            disk.addStudent(new Student(400, "New", "new@uni.edu", "SE", 70));
+            wrong = viewMismatches(disk);
+            check(wrong.isEmpty(), "disk-resident views read off stored lines match, changed and added rows once, deleted ones not at all " + wrong);
+
+            String all = printed(() -> disk.printAll(System.out));
+            List<String> shown = new ArrayList<>(Arrays.asList(all.split(System.lineSeparator())));
+            List<String> byStudent = new ArrayList<>();
+            for (Student s : disk.getAllStudents()) byStudent.add(printed(s::displayDetails).trim());
+            Collections.sort(shown);
+            Collections.sort(byStudent);
+            check(shown.equals(byStudent), "printAll shows what displayDetails does for every student (" + shown.size() + " lines)");
+        } finally {
+            GradingPolicy.use(term);
         }
     }
 
-    @Override
-    public void deleteStudent(int rollNo) throws StudentNotFoundException {
-        synchronized (this) {
-            if (studentMap.remove(rollNo) == null) throw new StudentNotFoundException("Student not found: " + rollNo);
+    // line number and reason of each row in f's rejects file, kept-with-warning rows left out
+    private static List<String> rejectRows(File f) throws IOException {
+        List<String> rows = new ArrayList<>();
+        for (String l : Files.readAllLines(ImportValidator.rejectsFile(f).toPath())) {
+            String[] cols = l.split("\t", 3);
+            if (!cols[1].startsWith("kept")) rows.add(cols[0] + " " + cols[1]);
         }
-        System.out.println("Student deleted: " + rollNo);
+        return rows;
     }
 
-    @Override
-    public Student searchStudent(int rollNo) throws StudentNotFoundException {
-        Student s;
-        synchronized (this) { s = studentMap.get(rollNo); }
-        if (s == null) throw new StudentNotFoundException("Student not found: " + rollNo);
-        return s;
+    private static void rejects() throws Exception {
+        // disk-resident opens turn away the lines a load would: unreadable ones and repeated rolls
+        File f = tempFile(".txt");
+        write(f, "1,Ada,ada@uni.edu,CS,91\nx,Bad,bad@uni.edu,CS,50\n\n2,Alan,alan@uni.edu,SE,64\n1,Again,again@uni.edu,CS,10\n"
+                + "3,Over,over@uni.edu,CS,120\n4,Short,CS,50\n");
+        List<String> expected = List.of("2 roll is not a whole number", "5 " + ImportValidator.duplicate(1),
+                "7 expected 5 comma-separated fields (roll,name,email,course,marks)");
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 1 << 12);
+        check(disk.rejectedOnLoad() == 3 && disk.size() == 3 && rejectRows(f).equals(expected),
+                "a disk-resident open counts and lists the lines it left out " + rejectRows(f));
+        check("Ada".equals(disk.searchStudent(1).name) && disk.searchStudent(3).marks() == 120, "the first of a repeated roll and kept records are served");
+
+        // a load of the same file reports the same lines
+        StudentManager text = new StudentManager(false);
+        text.loadFromFile(f.getPath());
+        check(text.rejectedOnLoad() == 3 && rejectRows(f).equals(expected), "a text load and a disk-resident open reject the same lines");
+
+        // the count lives in the index, so opening again from the mapped sidecar still reports it
+        Files.delete(ImportValidator.rejectsFile(f).toPath());
+        RecordIndex mapped = RecordIndex.load(f);
+        StudentManager again = new StudentManager(false);
+        again.openDiskResident(f.getPath(), 1 << 12);
+        check(mapped != null && mapped.rejected == 3 && again.rejectedOnLoad() == 3, "a mapped index still reports the lines its scan rejected");
+
+        // image startup's background load lists them again as it reads the whole file
+        check(again.loadIntoMemory().get(5, TimeUnit.SECONDS) == 3 && again.rejectedOnLoad() == 3 && rejectRows(f).equals(expected),
+                "the background load into memory counts and lists the rejected lines again");
+
+        // a save writes only the records back; the file it leaves has nothing to reject
+        disk.saveToFile(f.getPath());
+        StudentManager clean = new StudentManager(false);
+        clean.openDiskResident(f.getPath(), 1 << 12);
+        check(clean.rejectedOnLoad() == 0 && clean.size() == 3 && RecordIndex.load(f).rejected == 0, "a saved file opens with nothing rejected");
     }
+}
 
-    @Override
-    public List<Student> getAllStudents() {
-        synchronized (this) {
-            return new ArrayList<>(studentMap.values());
+// --------------------- Main application ---------------------
+public class StudentRecordApp {
+    // -Dstudents.file=students.snap switches to block-compressed snapshots
+    private static final String DATA_FILE = System.getProperty("students.file", "students.txt");
+    // hot set used by image startup until the roster is in memory
+    private static final long IMAGE_HOT_SET = 16L << 20;
+
+    // server mode: --serve <httpPort> and/or --binary <tcpPort>; saves to DATA_FILE on shutdown.
+    // -Dstudents.shards=N partitions the roster into N independently locked shards.
+    // --leader <port> streams writes to followers; --follower <host:port> serves a read-only replica
+    private static void serve(Map<String, Integer> ports, String leaderAddress) throws IOException {
+        int shards = Integer.getInteger("students.shards", 1);
+        ReplicationFollower follower = leaderAddress == null ? null : ReplicationFollower.of(leaderAddress);
+        RecordActions local = follower != null ? null : shards > 1 ? new ShardedStudentManager(shards) : new StudentManager();
+        ReplicationLeader leader = local != null && ports.containsKey("--leader") ? new ReplicationLeader(local, ports.get("--leader")) : null;
+        RecordActions manager = follower != null ? follower : leader != null ? leader : local;
+        Metrics.startIfEnabled(manager);
+        // a follower's roster comes from its leader, so it neither loads nor saves DATA_FILE
+        if (follower == null) manager.loadFromFile(DATA_FILE);
+
+        StudentHttpServer http = ports.containsKey("--serve") ? new StudentHttpServer(manager, ports.get("--serve")) : null;
+        BinaryStudentServer binary = ports.containsKey("--binary") ? new BinaryStudentServer(manager, ports.get("--binary")) : null;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (http != null) http.stop();
+            if (binary != null) binary.stop();
+            if (leader != null) leader.stop();
+            if (follower != null) {
+                follower.stop();
+                return;
+            }
+            try { manager.saveToFile(DATA_FILE); } catch (IOException e) { System.out.println("Save error: " + e.getMessage()); }
+        }));
+        if (http != null) {
+            http.start();
+            System.out.println("Serving /students on port " + http.port());
+        }
+        if (binary != null) {
+            new Thread(binary, "binary-server").start();
+            System.out.println("Binary protocol on port " + binary.port());
+        }
+        if (leader != null) {
+            leader.start();
+            System.out.println("Replication leader on port " + leader.port());
+        }
+        if (follower != null) {
+            new Thread(follower, "replication-follower").start();
+            System.out.println("Following leader at " + leaderAddress);
         }
     }
 
-    @Override
-    public void loadFromFile(String filename) throws IOException {
-        File f = new File(filename);
-        if (!f.exists()) {
-            // create empty file
-            f.createNewFile();
-            System.out.println("Data file created: " + f.getAbsolutePath());
+    // read-only report mode: java StudentRecordApp --report [file]
+    private static void report(String filename) throws IOException {
+        long count = 0;
+        double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        long[] grades = new long[26];
+        if (CompressedSnapshot.isSnapshot(filename)) {
+            System.out.println("Report mode reads text files only; snapshots are compressed.");
             return;
         }
+        long start = System.nanoTime();
+        try (MappedRosterCursor c = MappedRosterCursor.open(new File(filename))) {
+            while (c.next()) {
+                double m = c.marks();
+                count++;
+                sum += m;
+                if (m < min) min = m;
+                if (m > max) max = m;
+                grades[c.grade() - 'A']++;
+            }
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println("Records: " + count + " (scanned in " + micros + " us)");
+        if (count == 0) return;
+        System.out.printf("Marks avg=%.2f min=%.2f max=%.2f%n", sum / count, min, max);
+        for (char g : GradingPolicy.current().letters()) System.out.println("Grade " + g + ": " + grades[g - 'A']);
+    }
 
-        Loader loader = new Loader("Loading records");
-        Thread t = new Thread(loader);
-        t.start();
+    // --grade-bench [n]: the old if/else chain against the compiled default scale over n random marks
+    private static void gradeBench(int n) {
+        double[] marks = new double[n];
+        Random r = new Random(42);
+        for (int i = 0; i < n; i++) marks[i] = r.nextInt(10001) / 100.0;
+        GradeScale scale = GradingPolicy.current().scaleFor(null);
+        System.out.println("Scale " + scale + ", " + n + " marks");
+        for (int round = 1; round <= 5; round++) {
+            long sink = 0;
+            long t0 = System.nanoTime();
+            for (double m : marks) sink += chainGrade(m);
+            long t1 = System.nanoTime();
+            for (double m : marks) sink += scale.gradeOf(m);
+            long t2 = System.nanoTime();
+            System.out.printf("round %d: if/else chain %.2f ns/grade, compiled table %.2f ns/grade (checksum %d)%n",
+                    round, (t1 - t0) / (double) n, (t2 - t1) / (double) n, sink);
+        }
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-            String line;
-            synchronized (this) {
-                studentMap.clear();
-                while ((line = br.readLine()) != null) {
-                    if (line.trim().isEmpty()) continue;
-                    try {
-                        Student s = Student.fromFileString(line);
-                        if (!studentMap.containsKey(s.rollNo)) studentMap.put(s.rollNo, s);
-                    } catch (Exception e) {
-                        System.out.println("Skipping invalid record: " + line);
-                    }
+    // n async lookups over a hot set of 1000 students (of 100k), against the same lookups made blocking one
+    // after another: once in memory (answered inline) and once disk-resident with a hot-set cache too small
+    // to hold them, where lookups queue on the monitor and concurrent ones for the same roll are coalesced
+    private static void lookupBench(int n) throws Exception {
+        StudentManager memory = new StudentManager(false);
+        for (int i = 0; i < 100_000; i++) memory.addStudent(new Student(i, "Student " + i, "s" + i + "@example.com", "CS", i % 101));
+        File f = File.createTempFile("lookup-bench", ".txt");
+        f.deleteOnExit();
+        new File(f.getPath() + ".idx").deleteOnExit();
+        memory.saveToFile(f.getPath());
+        StudentManager disk = new StudentManager(false);
+        disk.openDiskResident(f.getPath(), 32 << 10);
+        Random r = new Random(42);
+        int[] rolls = new int[n];
+        for (int i = 0; i < n; i++) rolls[i] = r.nextInt(1000);
+        for (StudentManager sm : new StudentManager[] {memory, disk}) {
+            try (AsyncRecordActions async = new AsyncRecordActions(sm)) {
+                for (int round = 1; round <= 3; round++) {
+                    long t0 = System.nanoTime();
+                    for (int roll : rolls) sm.searchStudent(roll);
+                    long t1 = System.nanoTime();
+                    long before = async.coalescedLookups();
+                    List<CompletableFuture<Student>> futures = new ArrayList<>(n);
+                    for (int roll : rolls) futures.add(async.searchStudent(roll));
+                    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+                    long t2 = System.nanoTime();
+                    System.out.printf("%s round %d: %d blocking lookups %.1f ms, async fan-out %.1f ms (%d coalesced)%n",
+                            sm == memory ? "in-memory" : "disk-resident", round, n, (t1 - t0) / 1e6, (t2 - t1) / 1e6,
+                            async.coalescedLookups() - before);
                 }
             }
-        } finally {
-            loader.stop();
-            try { t.join(); } catch (InterruptedException ignored) { }
         }
-
-        System.out.println("Load completed. " + studentMap.size() + " record(s) loaded.");
     }
 
-    @Override
-    public void saveToFile(String filename) throws IOException {
-        File f = new File(filename);
-        Loader loader = new Loader("Saving records");
-        Thread t = new Thread(loader);
-        t.start();
-
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))) {
-            synchronized (this) {
-                for (Student s : studentMap.values()) {
-                    bw.write(s.toFileString());
-                    bw.newLine();
+    // --startup-bench [n ...]: time to first lookup, to first full query and to the roster being in memory
+    // at each size (default 1M and 10M), measured in a fresh JVM per run: loading the text file against
+    // opening it from its mapped index image and loading it in the background.
+    // JVM options for those runs (an AppCDS archive, -Xmx) go in -Dstudents.benchJvmArgs. Data files are
+    // generated once under java.io.tmpdir and reused
+    private static void startupBench(int[] sizes) throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String jvmArgs = System.getProperty("students.benchJvmArgs", "").trim();
+        for (int n : sizes) {
+            File f = new File(System.getProperty("java.io.tmpdir"), "startup-bench-" + n + ".txt");
+            if (!f.exists() || !RecordIndex.sidecar(f).exists()) {
+                System.out.println("Writing " + n + " records to " + f + " ...");
+                try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))) {
+                    Random r = new Random(42);
+                    for (int i = 0; i < n; i++) {
+                        w.write(Student.ofHundredths(i, "Student " + i, "s" + i + "@example.com", i % 3 == 0 ? "CS" : "EE", r.nextInt(10001)).toFileString());
+                        w.newLine();
+                    }
+                }
+                try (ImportValidator.Rejects rejects = new ImportValidator.Rejects(f)) {
+                    RecordIndex.forFile(f, rejects);
                 }
             }
-            bw.flush();
-        } finally {
-            loader.stop();
-            try { t.join(); } catch (InterruptedException ignored) { }
+            for (String mode : new String[] {"image", "text"}) {
+                List<String> cmd = new ArrayList<>();
+                cmd.add(java);
+                if (!jvmArgs.isEmpty()) cmd.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+                cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "StudentRecordApp",
+                        "--first-query", mode, f.getPath(), String.valueOf(n / 2)));
+                long t0 = System.nanoTime();
+                Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+                String result = null, last = null;
+                try (BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = out.readLine()) != null) {
+                        last = line;
+                        if (line.startsWith("first query ")) result = line;
+                    }
+                }
+                p.waitFor();
+                System.out.printf("%,d records, %s: %s (process %.0f ms)%n", n, mode,
+                        result != null ? result : "failed: " + last, (System.nanoTime() - t0) / 1e6);
+            }
         }
-        System.out.println("Save completed. File: " + f.getAbsolutePath());
     }
 
-    @Override
-    public void randomRead(String filename) throws IOException {
-        File f = new File(filename);
-        if (!f.exists()) { System.out.println("File does not exist."); return; }
-
-        System.out.println("--- RandomAccessFile read (line by line demo) ---");
-        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
-            long ptr = 0;
-            String line;
-            while ((line = raf.readLine()) != null) {
-                System.out.printf("pos=%d -> %s%n", ptr, line);
-                ptr = raf.getFilePointer();
-            }
+    // --first-query <text|image> <file> <roll>: start as main would, then time one lookup, one query over
+    // the whole roster (run straight away, so in image mode it scans the file) and the roster being in memory
+    private static void firstQuery(String mode, String file, int roll) throws Exception {
+        long start = System.nanoTime();
+        StudentManager m = new StudentManager(false);
+        CompletableFuture<Integer> inMemory;
+        if ("image".equals(mode)) {
+            m.openDiskResident(file, IMAGE_HOT_SET);
+            inMemory = m.loadIntoMemory();
+        } else {
+            m.loadFromFile(file);
+            inMemory = CompletableFuture.completedFuture(m.size());
         }
+        Student s = m.searchStudent(roll);
+        long lookup = System.nanoTime(), uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        int matched = m.query("marks >= 90").size();
+        long full = System.nanoTime();
+        inMemory.join();
+        long loaded = System.nanoTime();
+        System.out.printf("first query %.1f ms, first full query %.1f ms (%d matched), in memory %.1f ms in main;"
+                + " %d ms since JVM start to first query (roll %d: %s)%n", (lookup - start) / 1e6, (full - start) / 1e6,
+                matched, (loaded - start) / 1e6, uptime, roll, s.name);
     }
-}
 
-// --------------------- Main application ---------------------
-public class StudentRecordApp {
-    private static final String DATA_FILE = "students.txt";
+    // a save writes back only what was loaded, so lines the load rejected would then be left only in the
+    // rejects file; the menu asks before that happens
+    private static boolean confirmDropRejects(Scanner sc, int rejected) {
+        System.out.print(rejected + " line(s) rejected on load will not be written back to " + DATA_FILE + " (they are in "
+                + ImportValidator.rejectsFile(new File(DATA_FILE)).getName() + "). Save anyway? (y/n): ");
+        return "y".equalsIgnoreCase(sc.nextLine().trim());
+    }
+
+    // the pre-policy grading, kept only as the benchmark baseline
+    private static char chainGrade(double marks) {
+        if (marks >= 90) return 'A';
+        else if (marks >= 75) return 'B';
+        else if (marks >= 60) return 'C';
+        else if (marks >= 45) return 'D';
+        else return 'F';
+    }
 
     public static void main(String[] args) {
+        if (args.length >= 1 && "--check".equals(args[0])) {
+            int failed;
+            try { failed = SelfCheck.run(Arrays.asList(args).subList(1, args.length)); }
+            catch (Exception e) { System.out.println("Checks stopped: " + e); failed = 1; }
+            System.exit(failed == 0 ? 0 : 1);
+        }
+        if (args.length >= 1 && "--report".equals(args[0])) {
+            try { report(args.length > 1 ? args[1] : DATA_FILE); }
+            catch (IOException e) { System.out.println("Report error: " + e.getMessage()); }
+            return;
+        }
+        if (args.length >= 1 && "--grade-bench".equals(args[0])) {
+            try { gradeBench(args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000); }
+            catch (NumberFormatException e) { System.out.println("Invalid count: " + args[1]); }
+            return;
+        }
+        if (args.length >= 1 && "--startup-bench".equals(args[0])) {
+            try {
+                int[] sizes = args.length > 1 ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                        : new int[] {1_000_000, 10_000_000};
+                startupBench(sizes);
+            }
+            catch (NumberFormatException e) { System.out.println("Invalid count: " + e.getMessage()); }
+            catch (Exception e) { System.out.println("Benchmark failed: " + e); }
+            return;
+        }
+        if (args.length >= 4 && "--first-query".equals(args[0])) {
+            try { firstQuery(args[1], args[2], Integer.parseInt(args[3])); }
+            catch (Exception e) { System.out.println("First query failed: " + e); }
+            return;
+        }
+        if (args.length >= 1 && "--lookup-bench".equals(args[0])) {
+            try { lookupBench(args.length > 1 ? Integer.parseInt(args[1]) : 20_000); }
+            catch (NumberFormatException e) { System.out.println("Invalid count: " + args[1]); }
+            catch (Exception e) { System.out.println("Benchmark failed: " + e); }
+            return;
+        }
+
+        Map<String, Integer> ports = new HashMap<>();
+        String leaderAddress = null;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("--serve".equals(args[i]) || "--binary".equals(args[i]) || "--leader".equals(args[i])) {
+                try { ports.put(args[i], Integer.parseInt(args[++i])); }
+                catch (NumberFormatException e) { System.out.println("Invalid port: " + args[i]); return; }
+            } else if ("--follower".equals(args[i])) {
+                leaderAddress = args[++i];
+            }
+        }
+        if (leaderAddress != null && ports.containsKey("--leader")) {
+            System.out.println("A node is either --leader or --follower, not both.");
+            return;
+        }
+        if (!ports.isEmpty() || leaderAddress != null) {
+            try { serve(ports, leaderAddress); }
+            catch (NumberFormatException e) { System.out.println("Invalid leader address: " + leaderAddress); }
+            catch (IOException e) { System.out.println("Server error: " + e.getMessage()); }
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         StudentManager manager = new StudentManager();
+        Metrics.startIfEnabled(manager);
 
-        // Load at start
+        // Load at start; -Dstudents.cacheBytes=N keeps the roster on disk with an N-byte hot set instead.
+        // -Dstudents.startup=image brings the menu up from the mapped index image (see RecordIndex) without
+        // reading the records, answers from disk meanwhile and loads the roster into memory in the
+        // background; once that is done everything runs as after a normal load
+        long cacheBytes = Long.getLong("students.cacheBytes", 0);
+        boolean image = cacheBytes == 0 && "image".equals(System.getProperty("students.startup"))
+                && !CompressedSnapshot.isSnapshot(DATA_FILE);
         try {
-            manager.loadFromFile(DATA_FILE);
+            if (cacheBytes > 0) manager.openDiskResident(DATA_FILE, cacheBytes);
+            else if (image) {
+                manager.openDiskResident(DATA_FILE, IMAGE_HOT_SET);
+                manager.loadIntoMemory().whenComplete((n, e) -> {
+                    if (e != null) System.out.println("\nBackground load failed, staying disk-resident: " + e.getMessage());
+                    else if (n >= 0) System.out.println("\nRoster loaded into memory (" + n + " record(s)).");
+                });
+            }
+            else manager.loadFromFile(DATA_FILE);
         } catch (IOException e) {
             System.out.println("Error loading file: " + e.getMessage());
         }
+        boolean savedOnce = false; // lines rejected on load are asked about once, at the first save
 
         boolean running = true;
         while (running) {
@@ -326,6 +8296,12 @@ public class StudentRecordApp {
             System.out.println("8. Random Read File (demo)");
             System.out.println("9. File Info");
             System.out.println("10. Exit (auto-save)");
+            System.out.println("11. Read One Record from File (indexed)");
+            System.out.println("12. Top Students per Course");
+            System.out.println("13. Re-grade Everyone with a New Grading Policy");
+            System.out.println("14. Move a Course's Students to Another Course");
+            System.out.println("15. Curve a Course's Marks");
+            System.out.println("16. Query Students");
             System.out.print("Choice: ");
 
             String choice = sc.nextLine().trim();
@@ -372,26 +8348,29 @@ public class StudentRecordApp {
                         break;
 
                     case "5":
-                        List<Student> all = manager.getAllStudents();
-                        if (all.isEmpty()) System.out.println("No records.");
+                        if (manager.size() == 0) System.out.println("No records.");
                         else {
                             System.out.println("--- All Students ---");
-                            Iterator<Student> it = all.iterator();
-                            while (it.hasNext()) it.next().displayDetails();
+                            try { manager.printAll(System.out); }
+                            catch (IOException e) { System.out.println("Read error: " + e.getMessage()); }
                         }
                         break;
 
                     case "6":
-                        List<Student> sorted = manager.getAllStudents();
+                        List<Student> sorted = manager.getStudentsSortedByMarks();
                         if (sorted.isEmpty()) { System.out.println("No records."); }
                         else {
-                            sorted.sort(Comparator.comparingDouble(s -> s.marks)); // ascending by marks
                             System.out.println("--- Students Sorted by Marks (ascending) ---");
                             for (Student s : sorted) s.displayDetails();
                         }
                         break;
 
                     case "7":
+                        if (!savedOnce && manager.rejectedOnLoad() > 0 && !confirmDropRejects(sc, manager.rejectedOnLoad())) {
+                            System.out.println("Not saved.");
+                            break;
+                        }
+                        savedOnce = true;
                         try { manager.saveToFile(DATA_FILE); } catch (IOException e) { System.out.println("Save error: " + e.getMessage()); }
                         break;
 
@@ -407,16 +8386,91 @@ public class StudentRecordApp {
                         System.out.println("Readable: " + f.canRead());
                         System.out.println("Writable: " + f.canWrite());
                         System.out.println("Size (bytes): " + (f.exists() ? f.length() : 0));
+                        String cacheStats = manager.cacheStats();
+                        if (cacheStats != null) System.out.println(cacheStats);
                         break;
                     }
 
                     case "10":
                         // auto-save and exit
-                        try { manager.saveToFile(DATA_FILE); } catch (IOException e) { System.out.println("Save error: " + e.getMessage()); }
+                        if (!savedOnce && manager.rejectedOnLoad() > 0 && !confirmDropRejects(sc, manager.rejectedOnLoad())) System.out.println(DATA_FILE + " left as it was.");
+                        else {
+                            try { manager.saveToFile(DATA_FILE); } catch (IOException e) { System.out.println("Save error: " + e.getMessage()); }
+                        }
                         System.out.println("Exiting. Goodbye!");
                         running = false;
                         break;
 
+                    case "11":
+                        System.out.print("Enter roll to read: ");
+                        String rr = sc.nextLine().trim();
+                        try {
+                            manager.readRecord(DATA_FILE, Integer.parseInt(rr)).displayDetails();
+                        } catch (NumberFormatException nfe) { System.out.println("Invalid roll format."); }
+                        catch (StudentNotFoundException snf) { System.out.println(snf.getMessage()); }
+                        catch (IOException e) { System.out.println("Read error: " + e.getMessage()); }
+                        break;
+
+                    case "12":
+                        System.out.print("How many per course? ");
+                        String kk = sc.nextLine().trim();
+                        try {
+                            Map<String, List<Student>> top = manager.topKPerCourse(Integer.parseInt(kk));
+                            if (top.isEmpty()) System.out.println("No records.");
+                            for (Map.Entry<String, List<Student>> e : top.entrySet()) {
+                                System.out.println("--- " + e.getKey() + " ---");
+                                for (Student s : e.getValue()) s.displayDetails();
+                            }
+                        } catch (NumberFormatException nfe) { System.out.println("Invalid number."); }
+                        catch (IllegalArgumentException iae) { System.out.println(iae.getMessage()); }
+                        break;
+
+                    case "13":
+                        System.out.println("Current policy: " + GradingPolicy.current());
+                        System.out.print("New policy (e.g. A:85,B:70,C:55,D:40,F:0; CS=A:80,B:65,C:50,D:40,F:0): ");
+                        String spec = sc.nextLine().trim();
+                        try {
+                            GradingPolicy policy = GradingPolicy.parse(spec);
+                            System.out.println("Re-graded under " + policy + ": " + manager.regrade(policy) + " grade(s) changed.");
+                        } catch (IllegalArgumentException iae) { System.out.println("Invalid policy: " + iae.getMessage()); }
+                        break;
+
+                    case "14": {
+                        System.out.print("From course: ");
+                        String from = sc.nextLine().trim();
+                        System.out.print("To course: ");
+                        String to = sc.nextLine().trim();
+                        if (from.isEmpty() || to.isEmpty()) { System.out.println("Course required."); break; }
+                        try { System.out.println("Moved " + manager.moveCourse(from, to) + " student(s) from " + from + " to " + to + "."); }
+                        catch (TransactionConflictException tce) { System.out.println(tce.getMessage()); }
+                        break;
+                    }
+
+                    case "15": {
+                        System.out.print("Course: ");
+                        String course = sc.nextLine().trim();
+                        System.out.print("Points to add (negative to lower): ");
+                        String pts = sc.nextLine().trim();
+                        try { System.out.println("Curved " + manager.curveCourse(course, Double.parseDouble(pts)) + " student(s) in " + course + "."); }
+                        catch (NumberFormatException nfe) { System.out.println("Invalid number."); }
+                        catch (TransactionConflictException tce) { System.out.println(tce.getMessage()); }
+                        break;
+                    }
+
+                    case "16": {
+                        System.out.println("e.g. course = \"CS\" AND marks BETWEEN 60 AND 75 ORDER BY marks DESC LIMIT 50");
+                        System.out.print("Query: ");
+                        String q = sc.nextLine().trim();
+                        StringBuilder plan = new StringBuilder();
+                        try {
+                            List<Student> rows = manager.query(q, plan);
+                            if (rows.isEmpty()) System.out.println("No records.");
+                            for (Student s : rows) s.displayDetails();
+                            System.out.println("Plan: " + plan);
+                        } catch (InvalidQueryException iqe) { System.out.println("Invalid query: " + iqe.getMessage()); }
+                        break;
+                    }
+
                     default:
                         System.out.println("Invalid choice.");
                 }
@@ -1,26 +1,34 @@
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 // Student Class
 class Student {
     int rollNo;
     String name;
-    double marks;
+    int hundredths; // marks * 100, compared as an int when sorting
 
     public Student(int rollNo, String name, double marks) {
         this.rollNo = rollNo;
         this.name = name;
-        this.marks = marks;
+        this.hundredths = toHundredths(marks);
     }
 
+    static int toHundredths(double marks) { return (int) Math.round(marks * 100); }
+
+    double marks() { return hundredths / 100.0; }
+
     @Override
     public String toString() {
-        return rollNo + " | " + name + " | " + marks;
+        return rollNo + " | " + name + " | " + marks();
     }
 
     public String toFileString() {
-        return rollNo + "," + name + "," + marks;
+        return rollNo + "," + name + "," + marks();
     }
 
     public static Student fromFileString(String line) {
@@ -29,6 +37,134 @@ class Student {
     }
 }
 
+// Buffered line reader over a FileChannel: reads a whole buffer per system call
+// (RandomAccessFile.readLine reads one byte per call) and decodes lines as UTF-8
+class ChannelLineReader {
+    FileChannel channel;
+    ByteBuffer buf;
+    ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    long lineStart, nextStart;
+
+    ChannelLineReader(File file, int bufferSize) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        buf = ByteBuffer.allocate(bufferSize);
+        buf.flip();
+    }
+
+    // Returns the next line (without "\n" or "\r\n"), or null at end of file
+    String readLine() throws IOException {
+        line.reset();
+        lineStart = nextStart;
+        boolean any = false;
+        while (true) {
+            if (!buf.hasRemaining()) {
+                buf.clear();
+                int n = channel.read(buf);
+                buf.flip();
+                if (n < 0) {
+                    if (!any) return null;
+                    break;
+                }
+                continue;
+            }
+            any = true;
+            byte b = buf.get();
+            nextStart++;
+            if (b == '\n') break;
+            line.write(b);
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    // Byte offset where the last returned line starts
+    long position() {
+        return lineStart;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Sidecar index: roll -> byte offset and length of each line, saved as students.txt.idx
+class RecordIndex {
+    int[] rolls;
+    long[] offsets;
+    int[] lengths;
+    long dataLength;
+
+    RecordIndex(int n) {
+        rolls = new int[n];
+        offsets = new long[n];
+        lengths = new int[n];
+    }
+
+    static File sidecar(File data) {
+        return new File(data.getPath() + ".idx");
+    }
+
+    // Sort entries by roll so lookups can binary search
+    void sort() {
+        long[] keys = new long[rolls.length];
+        for (int i = 0; i < keys.length; i++) keys[i] = ((long) rolls[i] << 32) | i;
+        Arrays.sort(keys);
+        RecordIndex sorted = new RecordIndex(keys.length);
+        for (int k = 0; k < keys.length; k++) {
+            int i = (int) keys[k];
+            sorted.rolls[k] = rolls[i];
+            sorted.offsets[k] = offsets[i];
+            sorted.lengths[k] = lengths[i];
+        }
+        rolls = sorted.rolls;
+        offsets = sorted.offsets;
+        lengths = sorted.lengths;
+    }
+
+    void write(File data) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar(data))));
+        out.writeLong(dataLength);
+        out.writeInt(rolls.length);
+        for (int i = 0; i < rolls.length; i++) {
+            out.writeInt(rolls[i]);
+            out.writeLong(offsets[i]);
+            out.writeInt(lengths[i]);
+        }
+        out.close();
+    }
+
+    // Returns null if the index is missing or the data file changed since it was written
+    static RecordIndex load(File data) throws IOException {
+        File f = sidecar(data);
+        if (!f.exists() || f.lastModified() < data.lastModified()) return null;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        long dataLength = in.readLong();
+        RecordIndex idx = new RecordIndex(in.readInt());
+        for (int i = 0; i < idx.rolls.length; i++) {
+            idx.rolls[i] = in.readInt();
+            idx.offsets[i] = in.readLong();
+            idx.lengths[i] = in.readInt();
+        }
+        in.close();
+        idx.dataLength = dataLength;
+        return dataLength == data.length() ? idx : null;
+    }
+
+    // One positioned read of just this record's bytes
+    Student read(File data, int rollNo) throws IOException {
+        int i = Arrays.binarySearch(rolls, rollNo);
+        if (i < 0) return null;
+
+        ByteBuffer buf = ByteBuffer.allocate(lengths[i]);
+        try (FileChannel ch = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+            while (buf.hasRemaining())
+                if (ch.read(buf, offsets[i] + buf.position()) < 0) break;
+        }
+        return Student.fromFileString(new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8).trim());
+    }
+}
+
 // Management System
 class StudentManager {
     HashMap<Integer, Student> studentMap = new HashMap<>();
@@ -41,7 +177,7 @@ class StudentManager {
             return;
         }
 
-        BufferedReader br = new BufferedReader(new FileReader(file));
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
         String line;
 
         while ((line = br.readLine()) != null) {
@@ -53,14 +189,28 @@ class StudentManager {
         br.close();
     }
 
-    // Save Records to File
+    // Save Records to File (and the roll -> offset index next to it)
     public void saveToFile() throws Exception {
-        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        byte[] newline = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        RecordIndex idx = new RecordIndex(studentMap.size());
+        long offset = 0;
+        int i = 0;
         for (Student s : studentMap.values()) {
-            bw.write(s.toFileString());
-            bw.newLine();
+            byte[] line = s.toFileString().getBytes(StandardCharsets.UTF_8);
+            os.write(line);
+            os.write(newline);
+            idx.rolls[i] = s.rollNo;
+            idx.offsets[i] = offset;
+            idx.lengths[i] = line.length;
+            offset += line.length + newline.length;
+            i++;
         }
-        bw.close();
+        os.close();
+
+        idx.dataLength = offset;
+        idx.sort();
+        idx.write(file);
     }
 
     // Add Student
@@ -81,7 +231,7 @@ class StudentManager {
     public void updateMarks(int rollNo, double newMarks) {
         Student s = studentMap.get(rollNo);
         if (s != null) {
-            s.marks = newMarks;
+            s.hundredths = Student.toHundredths(newMarks);
             System.out.println("Marks Updated!");
         } else {
             System.out.println("Student Not Found!");
@@ -113,28 +263,62 @@ class StudentManager {
             return;
         }
 
-        ArrayList<Student> list = new ArrayList<>(studentMap.values());
-        list.sort(Comparator.comparingDouble(s -> s.marks));
+        Student[] list = studentMap.values().toArray(new Student[0]);
+        int[] order = sortedByMarks(list);
+
+        // print in chunks rather than one println per student
+        StringBuilder out = new StringBuilder("--- Sorted by Marks ---").append(System.lineSeparator());
+        for (int i = 0; i < list.length; i++) {
+            out.append(list[order[i]]).append(System.lineSeparator());
+            if (out.length() > 8192) { System.out.print(out); out.setLength(0); }
+        }
+        System.out.print(out);
+    }
 
-        System.out.println("--- Sorted by Marks ---");
-        for (Student s : list) System.out.println(s);
+    // Positions of 'list' in ascending marks order (ties keep map order), sorted as primitive
+    // keys hundredths << 32 | position
+    static int[] sortedByMarks(Student[] list) {
+        long[] keys = new long[list.length];
+        for (int i = 0; i < list.length; i++) keys[i] = (long) list[i].hundredths << 32 | i;
+        Arrays.parallelSort(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) order[i] = (int) keys[i];
+        return order;
     }
 
-    // Random Access Reading using RandomAccessFile
+    // Random Access Reading: every line with its byte position
     public void randomRead() throws IOException {
         if (!file.exists()) {
             System.out.println("File Not Found!");
             return;
         }
 
-        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ChannelLineReader reader = new ChannelLineReader(file, 64 * 1024);
         System.out.println("\n--- Random Access File Content ---");
 
         String line;
-        while ((line = raf.readLine()) != null)
-            System.out.println(line);
+        while ((line = reader.readLine()) != null)
+            System.out.println("pos=" + reader.position() + " -> " + line);
 
-        raf.close();
+        reader.close();
+    }
+
+    // Read a single record using the sidecar index instead of the whole file
+    public void readRecord(int rollNo) throws IOException {
+        if (!file.exists()) {
+            System.out.println("File Not Found!");
+            return;
+        }
+
+        RecordIndex idx = RecordIndex.load(file);
+        if (idx == null) {
+            System.out.println("Index missing or out of date - save records first!");
+            return;
+        }
+
+        Student s = idx.read(file, rollNo);
+        if (s != null) System.out.println(s);
+        else System.out.println("Student Not Found in File!");
     }
 
     // Show File Properties
@@ -167,6 +351,7 @@ public class StudentRecordManagement {
             System.out.println("7. Show File Details");
             System.out.println("8. Random Read from File");
             System.out.println("9. Save & Exit");
+            System.out.println("10. Read Record from File (indexed)");
             System.out.print("Enter choice: ");
 
             int ch = sc.nextInt();
@@ -223,6 +408,11 @@ public class StudentRecordManagement {
                     System.out.println("Records Saved! Exiting...");
                     return;
 
+                case 10:
+                    System.out.print("Enter Roll No: ");
+                    manager.readRecord(sc.nextInt());
+                    break;
+
                 default:
                     System.out.println("Invalid Choice!");
             }
@@ -4,8 +4,8 @@ class Student {
     int rollNumber;
     String name;
     String course;
-    float marks;
-    char grade;
+    int hundredths; // marks * 100: two decimals held exactly, no float rounding
+    byte grade;     // ASCII letter
 
     
     public void inputDetails(Scanner sc) {
@@ -20,33 +20,41 @@ class Student {
         course = sc.nextLine();
 
         System.out.print("Enter Marks (0-100): ");
-        marks = sc.nextFloat();
+        hundredths = (int) Math.round(sc.nextDouble() * 100);
 
         calculateGrade();
     }
 
 
+    // Lookup table: grade for each whole mark 0-100 (hundredths / 100 indexes it)
+    static final int[] CUTOFFS = {90, 75, 60, 45};
+    static final char[] LETTERS = {'A', 'B', 'C', 'D', 'F'};
+    static final char[] GRADE_TABLE = new char[101];
+
+    static {
+        for (int m = 0; m <= 100; m++) {
+            int i = 0;
+            while (i < CUTOFFS.length && m < CUTOFFS[i]) i++;
+            GRADE_TABLE[m] = LETTERS[i];
+        }
+    }
+
     public void calculateGrade() {
-        if (marks >= 90)
-            grade = 'A';
-        else if (marks >= 75)
-            grade = 'B';
-        else if (marks >= 60)
-            grade = 'C';
-        else if (marks >= 45)
-            grade = 'D';
-        else
-            grade = 'F';
+        grade = (byte) GRADE_TABLE[Math.max(0, Math.min(10000, hundredths)) / 100];
     }
 
+    double marks() { return hundredths / 100.0; }
+
+    char grade() { return (char) grade; }
+
    
     public void displayDetails() {
         System.out.println("\n--- Student Details ---");
         System.out.println("Roll Number : " + rollNumber);
         System.out.println("Name        : " + name);
         System.out.println("Course      : " + course);
-        System.out.println("Marks       : " + marks);
-        System.out.println("Grade       : " + grade);
+        System.out.println("Marks       : " + marks());
+        System.out.println("Grade       : " + grade());
         System.out.println("------------------------");
     }
 }